@@ -15,32 +15,186 @@
  */
 package com.example.android.pets;
 
+import android.annotation.TargetApi;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.support.design.widget.FloatingActionButton;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.support.v4.os.TraceCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.TextView;
+import android.view.ViewTreeObserver;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ProgressBar;
+import android.widget.Spinner;
+import android.widget.Toast;
 
+import com.example.android.pets.data.DatabaseMetrics;
 import com.example.android.pets.data.PetContract.PetEntry;
-import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetImporter;
+import com.example.android.pets.data.PetQuery;
+import com.example.android.pets.data.PetRepository;
+import com.example.android.pets.data.PetRow;
+import com.example.android.pets.data.PetSnapshot;
+import com.example.android.pets.data.PetWindow;
+import com.example.android.pets.data.SyncEngine;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity {
+public class CatalogActivity extends AppCompatActivity implements
+        LoaderManager.LoaderCallbacks<Cursor> {
+
+    public static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
+    /** Identifier for the pet count loader */
+    private static final int PET_COUNT_LOADER = 0;
+
+    /** How long to wait after a change before logging list stats in debug builds */
+    private static final long LIST_STATS_DELAY_MILLIS = 1000;
+
+    /** How long typing has to pause before a search runs */
+    private static final long SEARCH_DEBOUNCE_MILLIS = 300;
+
+    /** Maximum number of pets a search shows */
+    private static final int SEARCH_RESULT_LIMIT = 100;
+
+    /** Width of a bar of the weight histogram in the stats dialog, in kg */
+    private static final int STATS_WEIGHT_BUCKET_SIZE = 5;
+
+    /** Request code for picking a file to import pets from */
+    private static final int REQUEST_IMPORT_FILE = 1;
+
+    /** Request code for creating the file to export pets to */
+    private static final int REQUEST_EXPORT_FILE = 2;
+
+    /** Repository that will provide us access to the database */
+    private PetRepository mRepository;
+
+    /** Adapter for the list of pets */
+    private PetAdapter mAdapter;
+
+    /** Filters and sort order of the list */
+    private PetQuery mQuery;
+
+    /** Shows the progress of a bulk import */
+    private ProgressBar mImportProgress;
+
+    /** Whether the list has been filled from the loader yet */
+    private boolean mListLoaded;
 
-    /** Database helper that will provide us access to the database */
-    private PetDbHelper mDbHelper;
+    /** Measures frame times in debug builds, to see what a change to the list costs */
+    private FrameTimeMonitor mFrameTimeMonitor;
+
+    /** The list of pets */
+    private RecyclerView mPetListView;
+
+    /** Adapter for search results, shown in place of {@link #mAdapter} while searching */
+    private PetSearchAdapter mSearchAdapter;
+
+    /** Text of the search that runs once typing pauses */
+    private String mSearchText = "";
+
+    /** The search that is currently running, if any */
+    private Future<List<PetRow>> mSearchFuture;
+
+    /**
+     * Runs the search for {@link #mSearchText}, dropping any search that is still running.
+     */
+    private final Runnable mRunSearch = new Runnable() {
+        @Override
+        public void run() {
+            cancelSearch();
+            mSearchFuture = mRepository.searchPets(mSearchText, SEARCH_RESULT_LIMIT,
+                    new PetRepository.Callback<List<PetRow>>() {
+                        @Override
+                        public void onResult(List<PetRow> results) {
+                            mSearchFuture = null;
+                            mSearchAdapter.swapResults(results);
+                            if (mPetListView.getAdapter() != mSearchAdapter) {
+                                mPetListView.setAdapter(mSearchAdapter);
+                            }
+                        }
+                    });
+        }
+    };
+
+    /**
+     * Waits for the first frame that shows pets, or shows that there are none, and reports
+     * the catalog as fully drawn then. Only used when the activity starts from scratch.
+     */
+    private final ViewTreeObserver.OnPreDrawListener mFirstDrawListener =
+            new ViewTreeObserver.OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    if (!mAdapter.isShowingRows()
+                            && !(mListLoaded && mAdapter.getItemCount() == 0)) {
+                        return true;
+                    }
+                    mPetListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                    onFirstDraw();
+                    return true;
+                }
+            };
+
+    /**
+     * Logs how many rows were bound and how frames went since the last change to the list.
+     */
+    private final Runnable mLogListStats = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(LOG_TAG, "List update: " + mAdapter.getBindCount() + " binds, "
+                    + mFrameTimeMonitor.summary() + ", " + mRepository.getCache() + ", "
+                    + ThumbnailLoader.getInstance(CatalogActivity.this));
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        TraceCompat.beginSection("CatalogActivity.onCreate");
+        try {
+            setUpViews(savedInstanceState);
+        } finally {
+            TraceCompat.endSection();
+        }
+
+        // Kick off the loader. It keeps its cursor across configuration changes and only
+        // queries again when the pets table changes.
+        getSupportLoaderManager().initLoader(PET_COUNT_LOADER, null, this);
+    }
+
+    /**
+     * Set up the list and the other views. Nothing here waits for the database; the rows the
+     * list starts with were read ahead while the app started, see {@link PetsApplication}.
+     */
+    private void setUpViews(Bundle savedInstanceState) {
         setContentView(R.layout.activity_catalog);
 
         // Setup FAB to open EditorActivity
@@ -53,114 +207,484 @@ public class CatalogActivity extends AppCompatActivity {
             }
         });
 
-        // To access our database, we instantiate our subclass of SQLiteOpenHelper
-        // and pass the context, which is the current activity.
-        mDbHelper = new PetDbHelper(this);
+        // All database access goes through the repository, which does its work on
+        // background threads.
+        mRepository = PetRepository.getInstance(this);
+
+        // Setup the RecyclerView with an adapter that pages rows in from the database
+        // as the user scrolls
+        mPetListView = (RecyclerView) findViewById(R.id.list);
+        mPetListView.setLayoutManager(new LinearLayoutManager(this));
+        mPetListView.addItemDecoration(
+                new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
+        mPetListView.setHasFixedSize(true);
+        mAdapter = new PetAdapter(mRepository, PetWindow.obtain(mRepository));
+        mQuery = PetQuery.fromBundle(savedInstanceState);
+        mAdapter.setQuery(mQuery);
+        mPetListView.setAdapter(mAdapter);
+        mSearchAdapter = new PetSearchAdapter();
+
+        // Open the editor for a pet when it's clicked, in the list or in search results
+        PetAdapter.OnPetClickListener onPetClickListener = new PetAdapter.OnPetClickListener() {
+            @Override
+            public void onPetClick(long id) {
+                Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
+                intent.setData(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+                startActivity(intent);
+            }
+        };
+        mAdapter.setOnPetClickListener(onPetClickListener);
+        mSearchAdapter.setOnPetClickListener(onPetClickListener);
+
+        if (BuildConfig.DEBUG) {
+            mFrameTimeMonitor = new FrameTimeMonitor();
+        }
+
+        mImportProgress = (ProgressBar) findViewById(R.id.import_progress);
+
+        if (savedInstanceState == null) {
+            mPetListView.getViewTreeObserver().addOnPreDrawListener(mFirstDrawListener);
+        }
+    }
+
+    /**
+     * Called just before the first frame that shows the list with its pets is drawn.
+     */
+    private void onFirstDraw() {
+        // Marks the end of the start in traces, and in the "Fully drawn" line of the log
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            reportFullyDrawn();
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(LOG_TAG, "Startup: " + mAdapter.getItemCount() + " pets drawn "
+                    + PetsApplication.getMillisSinceStart() + " ms after the process started\n"
+                    + DatabaseMetrics.getInstance());
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        mQuery.writeToBundle(outState);
+    }
+
+    /**
+     * Adds the database metrics to the output of {@code adb shell dumpsys activity}.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        DatabaseMetrics.getInstance().dump(writer);
     }
 
     @Override
     protected void onStart() {
         super.onStart();
-        displayDatabaseInfo();
+        // Only changes made since the last sync are exchanged, so this is cheap when there
+        // are none
+        if (!TextUtils.isEmpty(BuildConfig.SYNC_URL)) {
+            SyncEngine.getInstance(this, BuildConfig.SYNC_URL).requestSync();
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (mFrameTimeMonitor != null) {
+            mFrameTimeMonitor.start();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mFrameTimeMonitor != null) {
+            mFrameTimeMonitor.stop();
+            mPetListView.removeCallbacks(mLogListStats);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPetListView.getViewTreeObserver().removeOnPreDrawListener(mFirstDrawListener);
+        mPetListView.removeCallbacks(mRunSearch);
+        cancelSearch();
+    }
+
+    /**
+     * Search as the user types. The search only runs once typing pauses, and a search that is
+     * still running when the text changes again is cancelled.
+     */
+    private void onSearchTextChanged(String text) {
+        mPetListView.removeCallbacks(mRunSearch);
+        mSearchText = text.trim();
+        if (mSearchText.isEmpty()) {
+            // Back to the full list
+            cancelSearch();
+            if (mPetListView.getAdapter() != mAdapter) {
+                mPetListView.setAdapter(mAdapter);
+            }
+            return;
+        }
+        mPetListView.postDelayed(mRunSearch, SEARCH_DEBOUNCE_MILLIS);
     }
 
     /**
-     * Temporary helper method to display information in the onscreen TextView about the state of
-     * the pets database.
+     * Cancel the search that is running, if any. Its results will not be shown.
      */
-    private void displayDatabaseInfo() {
-        // Create and/or open a database to read from it
-        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+    private void cancelSearch() {
+        if (mSearchFuture != null) {
+            mSearchFuture.cancel(false);
+            mSearchFuture = null;
+        }
+    }
 
-        // Define a projection that specifies which columns from the database
-        // you will actually use after this query.
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED,
-                PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT };
+    /**
+     * Show the pets matched by a different query. The count loader is restarted for the new
+     * filters, and the list fills again once it has the new count.
+     */
+    private void setQuery(PetQuery query) {
+        mQuery = query;
+        mAdapter.setQuery(query);
+        mListLoaded = false;
+        getSupportLoaderManager().restartLoader(PET_COUNT_LOADER, null, this);
+        invalidateOptionsMenu();
+    }
 
-        // Perform a query on the pets table
-        Cursor cursor = db.query(
-                PetEntry.TABLE_NAME,   // The table to query
-                projection,            // The columns to return
-                null,                  // The columns for the WHERE clause
-                null,                  // The values for the WHERE clause
-                null,                  // Don't group the rows
-                null,                  // Don't filter by row groups
-                null);                   // The sort order
+    /**
+     * Let the user filter the list by gender, breed and weight.
+     */
+    private void showFilterDialog() {
+        View view = getLayoutInflater().inflate(R.layout.dialog_filter, null);
+        final Spinner genderSpinner = (Spinner) view.findViewById(R.id.filter_gender);
+        final EditText breedEditText = (EditText) view.findViewById(R.id.filter_breed);
+        final EditText minWeightEditText = (EditText) view.findViewById(R.id.filter_min_weight);
+        final EditText maxWeightEditText = (EditText) view.findViewById(R.id.filter_max_weight);
+
+        ArrayAdapter<CharSequence> genderAdapter = ArrayAdapter.createFromResource(this,
+                R.array.array_gender_filter_options, android.R.layout.simple_spinner_item);
+        genderAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        genderSpinner.setAdapter(genderAdapter);
+
+        // Start from the filters that are already set. The spinner has "any" in front of the
+        // genders, so each gender is one position further down.
+        genderSpinner.setSelection(mQuery.getGender() + 1);
+        breedEditText.setText(mQuery.getBreed());
+        minWeightEditText.setText(weightText(mQuery.getMinWeight()));
+        maxWeightEditText.setText(weightText(mQuery.getMaxWeight()));
 
-        TextView displayView = (TextView) findViewById(R.id.text_view_pet);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.filter_dialog_title)
+                .setView(view)
+                .setPositiveButton(R.string.filter_apply, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        setQuery(mQuery.buildUpon()
+                                .gender(genderSpinner.getSelectedItemPosition() - 1)
+                                .breed(breedEditText.getText().toString().trim())
+                                .weightBetween(parseWeight(minWeightEditText),
+                                        parseWeight(maxWeightEditText))
+                                .build());
+                    }
+                })
+                .setNeutralButton(R.string.filter_clear, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        // Keep the sort order, drop every filter
+                        setQuery(new PetQuery.Builder().sortBy(mQuery.getSortBy()).build());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Returns the text for a weight filter field, which is empty when there is no bound.
+     */
+    private static String weightText(int weight) {
+        return weight >= 0 ? String.valueOf(weight) : "";
+    }
 
+    /**
+     * Returns the weight typed into a filter field, or -1 if it's empty or not a number.
+     */
+    private static int parseWeight(EditText editText) {
         try {
-            // Create a header in the Text View that looks like this:
-            //
-            // The pets table contains <number of rows in Cursor> pets.
-            // _id - name - breed - gender - weight
-            //
-            // In the while loop below, iterate through the rows of the cursor and display
-            // the information from each column in this order.
-            displayView.setText("The pets table contains " + cursor.getCount() + " pets.\n\n");
-            displayView.append(PetEntry._ID + " - " +
-                    PetEntry.COLUMN_PET_NAME + " - " +
-                    PetEntry.COLUMN_PET_BREED + " - " +
-                    PetEntry.COLUMN_PET_GENDER + " - " +
-                    PetEntry.COLUMN_PET_WEIGHT + "\n");
-
-            // Figure out the index of each column
-            int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
-            int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
-            int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
-            int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
-            int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
-
-            // Iterate through all the returned rows in the cursor
-            while (cursor.moveToNext()) {
-                // Use that index to extract the String or Int value of the word
-                // at the current row the cursor is on.
-                int currentID = cursor.getInt(idColumnIndex);
-                String currentName = cursor.getString(nameColumnIndex);
-                String currentBreed = cursor.getString(breedColumnIndex);
-                int currentGender = cursor.getInt(genderColumnIndex);
-                int currentWeight = cursor.getInt(weightColumnIndex);
-                // Display the values from each column of the current row in the cursor in the TextView
-                displayView.append(("\n" + currentID + " - " +
-                        currentName + " - " +
-                        currentBreed + " - " +
-                        currentGender + " - " +
-                        currentWeight));
+            return Integer.parseInt(editText.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Count the pets in the shelter in the background, then show the counts in a dialog.
+     */
+    private void showStats() {
+        mRepository.loadStats(STATS_WEIGHT_BUCKET_SIZE,
+                new PetRepository.Callback<PetSnapshot.Stats>() {
+                    @Override
+                    public void onResult(PetSnapshot.Stats stats) {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        new AlertDialog.Builder(CatalogActivity.this)
+                                .setTitle(R.string.stats_dialog_title)
+                                .setMessage(formatStats(stats))
+                                .setPositiveButton(android.R.string.ok, null)
+                                .show();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        super.onError(e);
+                        Toast.makeText(CatalogActivity.this, R.string.stats_failed,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
+    }
+
+    /**
+     * Returns the text of the stats dialog.
+     */
+    private String formatStats(PetSnapshot.Stats stats) {
+        StringBuilder text = new StringBuilder(getString(R.string.stats_summary,
+                stats.getCount(),
+                stats.getGenderCount(PetEntry.GENDER_MALE),
+                stats.getGenderCount(PetEntry.GENDER_FEMALE),
+                stats.getGenderCount(PetEntry.GENDER_UNKNOWN),
+                stats.getAverageWeight()));
+
+        text.append("\n\n").append(getString(R.string.stats_weight_heading));
+        int[] histogram = stats.getWeightHistogram();
+        int bucketSize = stats.getWeightBucketSize();
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                text.append('\n').append(getString(R.string.stats_weight_bucket,
+                        i * bucketSize, (i + 1) * bucketSize - 1, histogram[i]));
             }
-        } finally {
-            // Always close the cursor when you're done reading from it. This releases all its
-            // resources and makes it invalid.
-            cursor.close();
         }
+
+        text.append("\n\n").append(getString(R.string.stats_breed_heading));
+        String[] breeds = stats.getBreeds();
+        int[] breedCounts = stats.getBreedCounts();
+        for (int i = 0; i < breeds.length; i++) {
+            text.append('\n').append(getString(R.string.stats_breed_count,
+                    breeds[i], breedCounts[i]));
+        }
+        if (stats.getNoBreedCount() > 0) {
+            text.append('\n').append(getString(R.string.stats_breed_count,
+                    getString(R.string.unknown_breed), stats.getNoBreedCount()));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Show how long database calls took so far. For debugging purposes only.
+     */
+    private void showDatabaseMetrics() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_database_metrics)
+                .setMessage(DatabaseMetrics.getInstance().toString())
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.database_metrics_reset,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                DatabaseMetrics.getInstance().reset();
+                            }
+                        })
+                .show();
+    }
+
+    /**
+     * Ask the user to confirm, then delete every pet. The pets disappear as soon as the delete
+     * commits; their rows are purged in the background afterwards.
+     */
+    private void showDeleteAllDialog() {
+        new AlertDialog.Builder(this)
+                .setMessage(R.string.delete_all_dialog_msg)
+                .setPositiveButton(R.string.action_delete, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        deleteAllPets();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Delete every pet in the background.
+     */
+    private void deleteAllPets() {
+        mRepository.deleteAllPets(new PetRepository.Callback<Integer>() {
+            @Override
+            public void onResult(Integer rowsDeleted) {
+                Toast.makeText(CatalogActivity.this,
+                        getString(R.string.delete_all_finished, rowsDeleted),
+                        Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                Toast.makeText(CatalogActivity.this, R.string.delete_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * Ask the user how many fake pets to insert, then insert them. For debugging purposes only.
+     */
+    private void showDummyDataDialog() {
+        final int[] counts = getResources().getIntArray(R.array.array_dummy_data_counts);
+        String[] labels = new String[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            labels[i] = String.valueOf(counts[i]);
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dummy_data_dialog_title)
+                .setItems(labels, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        importPets(PetImporter.dummyPets(counts[which]), counts[which]);
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Let the user pick a CSV, JSON or archive file of pets to import.
+     */
+    private void pickImportFile() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(intent, REQUEST_IMPORT_FILE);
+    }
+
+    /**
+     * Let the user pick where to save an archive of every pet. Creating a document needs
+     * KitKat, so the menu option is hidden on older versions.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void pickExportFile() {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.setType("application/octet-stream");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.putExtra(Intent.EXTRA_TITLE, getString(R.string.export_file_name));
+        startActivityForResult(intent, REQUEST_EXPORT_FILE);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null) {
+            return;
+        }
+        if (requestCode == REQUEST_IMPORT_FILE) {
+            importFile(data.getData());
+        } else if (requestCode == REQUEST_EXPORT_FILE) {
+            exportPets(data.getData());
+        }
+    }
+
+    /**
+     * Import the pets in a file picked by the user. The file is opened and its format told in
+     * the background, since a content URI may be served by another app.
+     */
+    private void importFile(Uri uri) {
+        mRepository.importFile(uri, showImportProgress(-1), newImportCallback());
+    }
+
+    /**
+     * Write every pet to a file created by the user.
+     */
+    private void exportPets(Uri uri) {
+        ParcelFileDescriptor file;
+        try {
+            file = getContentResolver().openFileDescriptor(uri, "w");
+        } catch (FileNotFoundException e) {
+            Log.e(LOG_TAG, "Unable to open " + uri, e);
+            Toast.makeText(this, R.string.export_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (file == null) {
+            Toast.makeText(this, R.string.export_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        mRepository.exportPets(new ParcelFileDescriptor.AutoCloseOutputStream(file),
+                new PetRepository.Callback<Integer>() {
+                    @Override
+                    public void onResult(Integer count) {
+                        Toast.makeText(CatalogActivity.this,
+                                getString(R.string.export_finished, count),
+                                Toast.LENGTH_SHORT).show();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        super.onError(e);
+                        Toast.makeText(CatalogActivity.this, R.string.export_failed,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
     }
 
     /**
-     * Helper method to insert hardcoded pet data into the database. For debugging purposes only.
+     * Insert pets in bulk, showing progress while the import runs.
+     *
+     * @param rows to insert
+     * @param total number of rows, or -1 if it isn't known up front
      */
-    private void insertPet() {
-        // Gets the database in write mode
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+    private void importPets(Iterator<ContentValues> rows, int total) {
+        mRepository.importPets(rows, showImportProgress(total), newImportCallback());
+    }
 
-        // Create a ContentValues object where column names are the keys,
-        // and Toto's pet attributes are the values.
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, "Toto");
-        values.put(PetEntry.COLUMN_PET_BREED, "Terrier");
-        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+    /**
+     * Show the progress bar of an import.
+     *
+     * @param total number of rows, or -1 if it isn't known up front
+     * @return listener that moves the progress bar along
+     */
+    private PetImporter.ProgressListener showImportProgress(int total) {
+        mImportProgress.setIndeterminate(total <= 0);
+        mImportProgress.setMax(Math.max(total, 0));
+        mImportProgress.setProgress(0);
+        mImportProgress.setVisibility(View.VISIBLE);
+        return new PetImporter.ProgressListener() {
+            @Override
+            public void onProgress(int rowsImported) {
+                mImportProgress.setProgress(rowsImported);
+            }
+        };
+    }
+
+    /**
+     * Returns a callback that hides the progress bar and reports how an import went.
+     */
+    private PetRepository.Callback<Integer> newImportCallback() {
+        return new PetRepository.Callback<Integer>() {
+            @Override
+            public void onResult(Integer rowsImported) {
+                mImportProgress.setVisibility(View.GONE);
+                Toast.makeText(CatalogActivity.this,
+                        getString(R.string.import_finished, rowsImported),
+                        Toast.LENGTH_SHORT).show();
+            }
 
-        // Insert a new row for Toto in the database, returning the ID of that new row.
-        // The first argument for db.insert() is the pets table name.
-        // The second argument provides the name of a column in which the framework
-        // can insert NULL in the event that the ContentValues is empty (if
-        // this is set to "null", then the framework will not insert a row when
-        // there are no values).
-        // The third argument is the ContentValues object containing the info for Toto.
-        long newRowId = db.insert(PetEntry.TABLE_NAME, null, values);
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                mImportProgress.setVisibility(View.GONE);
+                Toast.makeText(CatalogActivity.this, R.string.import_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        };
     }
 
     @Override
@@ -168,6 +692,45 @@ public class CatalogActivity extends AppCompatActivity {
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                // Results are already shown as the user types
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                onSearchTextChanged(newText);
+                return true;
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        // Tick the current sort order
+        int sortItemId;
+        switch (mQuery.getSortBy()) {
+            case PetQuery.SORT_BY_NAME:
+                sortItemId = R.id.action_sort_by_name;
+                break;
+            case PetQuery.SORT_BY_WEIGHT:
+                sortItemId = R.id.action_sort_by_weight;
+                break;
+            default:
+                sortItemId = R.id.action_sort_by_date_added;
+                break;
+        }
+        menu.findItem(sortItemId).setChecked(true);
+        menu.findItem(R.id.action_database_metrics).setVisible(BuildConfig.DEBUG);
+        menu.findItem(R.id.action_export_pets)
+                .setVisible(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
         return true;
     }
 
@@ -175,16 +738,90 @@ public class CatalogActivity extends AppCompatActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on the "Filter" menu option
+            case R.id.action_filter:
+                showFilterDialog();
+                return true;
+            // Respond to a click on one of the "Sort by" menu options
+            case R.id.action_sort_by_date_added:
+                setQuery(mQuery.buildUpon().sortBy(PetQuery.SORT_BY_ID).build());
+                return true;
+            case R.id.action_sort_by_name:
+                setQuery(mQuery.buildUpon().sortBy(PetQuery.SORT_BY_NAME).build());
+                return true;
+            case R.id.action_sort_by_weight:
+                setQuery(mQuery.buildUpon().sortBy(PetQuery.SORT_BY_WEIGHT).build());
+                return true;
+            // Respond to a click on the "Shelter stats" menu option
+            case R.id.action_stats:
+                showStats();
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
-                insertPet();
-                displayDatabaseInfo();
+                showDummyDataDialog();
+                return true;
+            // Respond to a click on the "Database metrics" menu option
+            case R.id.action_database_metrics:
+                showDatabaseMetrics();
+                return true;
+            // Respond to a click on the "Import pets" menu option
+            case R.id.action_import_pets:
+                pickImportFile();
+                return true;
+            // Respond to a click on the "Export pets" menu option
+            case R.id.action_export_pets:
+                pickExportFile();
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
-                // Do nothing for now
+                showDeleteAllDialog();
                 return true;
         }
         return super.onOptionsItemSelected(item);
     }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        // The list pages its rows in by itself, so all the loader needs to watch is the
+        // number of pets the filters match. The loader is told about every change to the
+        // pets table.
+        String[] projection = { "COUNT(*) AS " + PetEntry._COUNT };
+
+        // This loader will execute the ContentProvider's query method on a background thread
+        return new CursorLoader(this,       // Parent activity context
+                PetEntry.CONTENT_URI,       // Provider content URI to query
+                projection,                 // Columns to include in the resulting Cursor
+                mQuery.getSelection(),      // Filters of the list
+                mQuery.getSelectionArgs(),  // Values for the filters
+                null);                      // Default sort order
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        if (mFrameTimeMonitor != null) {
+            // Measure the cost of applying this change, once the list has settled
+            mPetListView.removeCallbacks(mLogListStats);
+            mAdapter.resetBindCount();
+            mFrameTimeMonitor.reset();
+            mPetListView.postDelayed(mLogListStats, LIST_STATS_DELAY_MILLIS);
+        }
+
+        if (!mListLoaded) {
+            // First load for this activity or this query, so fill the list from scratch
+            mListLoaded = true;
+            int count = data != null && data.moveToFirst() ? data.getInt(0) : 0;
+            mAdapter.swapCount(count);
+        } else {
+            // The table changed. Work out which rows changed in the background and only
+            // update those.
+            mAdapter.refresh();
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        // Callback called when the data needs to be deleted
+        mListLoaded = false;
+        mAdapter.swapCount(0);
+    }
 }
@@ -15,10 +15,15 @@
  */
 package com.example.android.pets;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
-import android.database.sqlite.SQLiteDatabase;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
 import android.view.Menu;
@@ -27,11 +32,13 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.Pet;
 import com.example.android.pets.data.PetContract.PetEntry;
-import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetRepository;
 
 /**
  * Allows user to create a new pet or edit an existing one.
@@ -50,6 +57,18 @@ public class EditorActivity extends AppCompatActivity {
     /** EditText field to enter the pet's gender */
     private Spinner mGenderSpinner;
 
+    /** ImageView that shows the pet's photo, and picks a new one when clicked */
+    private ImageView mPhotoImageView;
+
+    /** Request code for picking a photo */
+    private static final int REQUEST_PICK_PHOTO = 1;
+
+    /** Key of {@link #mPhoto} in the saved instance state */
+    private static final String STATE_PHOTO = "photo";
+
+    /** File name of the pet's photo, or null if it has none */
+    private String mPhoto;
+
     /**
      * Gender of the pet. The possible valid values are in the PetContract.java file:
      * {@link PetEntry#GENDER_UNKNOWN}, {@link PetEntry#GENDER_MALE}, or
@@ -57,6 +76,9 @@ public class EditorActivity extends AppCompatActivity {
      */
     private int mGender = PetEntry.GENDER_UNKNOWN;
 
+    /** Content URI of the pet being edited, or null when adding a new pet */
+    private Uri mCurrentPetUri;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -67,8 +89,102 @@ public class EditorActivity extends AppCompatActivity {
         mBreedEditText = (EditText) findViewById(R.id.edit_pet_breed);
         mWeightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         mGenderSpinner = (Spinner) findViewById(R.id.spinner_gender);
+        mPhotoImageView = (ImageView) findViewById(R.id.edit_pet_photo);
 
         setupSpinner();
+
+        mPhotoImageView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("image/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(intent, REQUEST_PICK_PHOTO);
+            }
+        });
+        if (savedInstanceState != null) {
+            setPhoto(savedInstanceState.getString(STATE_PHOTO));
+        }
+
+        // The catalog passes the URI of the pet that was clicked. Without one, this is a new pet.
+        mCurrentPetUri = getIntent().getData();
+        if (mCurrentPetUri != null) {
+            setTitle(R.string.editor_activity_title_edit_pet);
+            // After a configuration change the fields restore their own state
+            if (savedInstanceState == null) {
+                loadPet(ContentUris.parseId(mCurrentPetUri));
+            }
+        }
+    }
+
+    /**
+     * Fill the fields with the pet being edited. Pets that were shown recently come from the
+     * cache without touching the database.
+     */
+    private void loadPet(long id) {
+        PetRepository.getInstance(this).getPet(id, new PetRepository.Callback<Pet>() {
+            @Override
+            public void onResult(Pet pet) {
+                if (pet == null || isFinishing()) {
+                    return;
+                }
+                mNameEditText.setText(pet.getName());
+                mBreedEditText.setText(pet.getBreed());
+                mWeightEditText.setText(String.valueOf(pet.getWeight()));
+                // The spinner lists the genders in the order of their constants
+                mGenderSpinner.setSelection(pet.getGender());
+                setPhoto(pet.getPhoto());
+            }
+        });
+    }
+
+    /**
+     * Show a photo and save it with the pet.
+     *
+     * @param photo file name of the photo, or null for none
+     */
+    private void setPhoto(String photo) {
+        mPhoto = photo;
+        ThumbnailLoader.getInstance(this).load(photo, mPhotoImageView);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_PHOTO, mPhoto);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        ThumbnailLoader.getInstance(this).cancel(mPhotoImageView);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != REQUEST_PICK_PHOTO || resultCode != RESULT_OK || data == null) {
+            return;
+        }
+
+        // Copy the photo into the app's storage in the background, since the picked one may
+        // not stay readable
+        PetRepository.getInstance(this).importPhoto(data.getData(),
+                new PetRepository.Callback<String>() {
+                    @Override
+                    public void onResult(String photo) {
+                        if (!isFinishing()) {
+                            setPhoto(photo);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        super.onError(e);
+                        Toast.makeText(EditorActivity.this, R.string.editor_photo_failed,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
     }
 
     /**
@@ -111,21 +227,37 @@ public class EditorActivity extends AppCompatActivity {
     }
 
     /**
-     * Get user input from editor and save new pet into database.
+     * Get user input from editor and save the pet into database, as a new pet or over the one
+     * being edited. The write happens in the background, and the catalog shows the pet as
+     * saved until it commits; if it fails, the catalog shows the pet as it was and a toast
+     * says so.
+     *
+     * @return false if the input isn't valid, in which case the fields show what's wrong
      */
-    private void insertPet() {
+    private boolean savePet() {
         // Read from input fields
         // Use trim to eliminate leading or trailing white space
-        String nameString = mNameEditText.getText().toString().trim();
+        final String nameString = mNameEditText.getText().toString().trim();
         String breedString = mBreedEditText.getText().toString().trim();
         String weightString = mWeightEditText.getText().toString().trim();
-        int weight = Integer.parseInt(weightString);
 
-        // Create database helper
-        PetDbHelper mDbHelper = new PetDbHelper(this);
-
-        // Gets the database in write mode
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if (TextUtils.isEmpty(nameString)) {
+            mNameEditText.setError(getString(R.string.editor_name_required));
+            return false;
+        }
+        // An empty weight is stored as the column's default of 0 kg
+        int weight = 0;
+        if (!TextUtils.isEmpty(weightString)) {
+            try {
+                weight = Integer.parseInt(weightString);
+            } catch (NumberFormatException e) {
+                weight = -1;
+            }
+            if (weight < 0) {
+                mWeightEditText.setError(getString(R.string.editor_weight_invalid));
+                return false;
+            }
+        }
 
         // Create a ContentValues object where column names are the keys,
         // and pet attributes from the editor are the values.
@@ -134,18 +266,33 @@ public class EditorActivity extends AppCompatActivity {
         values.put(PetEntry.COLUMN_PET_BREED, breedString);
         values.put(PetEntry.COLUMN_PET_GENDER, mGender);
         values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        values.put(PetEntry.COLUMN_PET_PHOTO, mPhoto);
+
+        // The editor closes straight away, so the result is shown with the application context
+        final Context appContext = getApplicationContext();
+        long id = mCurrentPetUri == null ? -1 : ContentUris.parseId(mCurrentPetUri);
+        PetRepository.getInstance(this).savePet(id, values, new PetRepository.Callback<Long>() {
+            @Override
+            public void onResult(Long petId) {
+                // -1 means the pet was deleted while the change was being saved
+                if (petId == -1) {
+                    showSaveFailed();
+                }
+            }
 
-        // Insert a new row for pet in the database, returning the ID of that new row.
-        long newRowId = db.insert(PetEntry.TABLE_NAME, null, values);
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                showSaveFailed();
+            }
 
-        // Show a toast message depending on whether or not the insertion was successful
-        if (newRowId == -1) {
-            // If the row ID is -1, then there was an error with insertion.
-            Toast.makeText(this, "Error with saving pet", Toast.LENGTH_SHORT).show();
-        } else {
-            // Otherwise, the insertion was successful and we can display a toast with the row ID.
-            Toast.makeText(this, "Pet saved with row id: " + newRowId, Toast.LENGTH_SHORT).show();
-        }
+            private void showSaveFailed() {
+                Toast.makeText(appContext,
+                        appContext.getString(R.string.editor_save_pet_failed, nameString),
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+        return true;
     }
 
     @Override
@@ -156,20 +303,71 @@ public class EditorActivity extends AppCompatActivity {
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        // A new pet isn't in the database yet, so there is nothing to delete
+        if (mCurrentPetUri == null) {
+            menu.findItem(R.id.action_delete).setVisible(false);
+        }
+        return true;
+    }
+
+    /**
+     * Ask the user to confirm, then delete the pet being edited.
+     */
+    private void showDeleteConfirmationDialog() {
+        new AlertDialog.Builder(this)
+                .setMessage(R.string.delete_dialog_msg)
+                .setPositiveButton(R.string.action_delete, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        deletePet();
+                        finish();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Delete the pet being edited. The catalog drops it as soon as the delete commits.
+     */
+    private void deletePet() {
+        final Context appContext = getApplicationContext();
+        PetRepository.getInstance(this).deletePet(ContentUris.parseId(mCurrentPetUri),
+                new PetRepository.Callback<Integer>() {
+                    @Override
+                    public void onResult(Integer rowsDeleted) {
+                        Toast.makeText(appContext, rowsDeleted == 0
+                                        ? R.string.editor_delete_pet_failed
+                                        : R.string.editor_delete_pet_successful,
+                                Toast.LENGTH_SHORT).show();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        super.onError(e);
+                        Toast.makeText(appContext, R.string.editor_delete_pet_failed,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save pet to database
-                insertPet();
-                // Exit activity
-                finish();
+                // Save pet to database, and exit activity unless the input needs fixing
+                if (savePet()) {
+                    finish();
+                }
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
-                // Do nothing for now
+                showDeleteConfirmationDialog();
                 return true;
             // Respond to a click on the "Up" arrow button in the app bar
             case android.R.id.home:
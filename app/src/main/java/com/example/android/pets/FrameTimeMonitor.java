@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.view.Choreographer;
+
+import java.util.Locale;
+
+/**
+ * Measures the time between frames with {@link Choreographer} callbacks. Debug builds use it
+ * to check how much drawing work a change to the catalog costs.
+ *
+ * While it runs, the monitor asks for every frame, which keeps the display from going idle,
+ * so it shouldn't be left running in release builds.
+ */
+public class FrameTimeMonitor implements Choreographer.FrameCallback {
+
+    /** Time a frame may take at 60 frames per second */
+    private static final long FRAME_BUDGET_NANOS = 16666667L;
+
+    private boolean mRunning;
+    private long mLastFrameNanos;
+    private int mFrameCount;
+    private int mJankyFrameCount;
+    private long mMaxFrameNanos;
+
+    /**
+     * Start measuring frames.
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mLastFrameNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Stop measuring frames. The numbers gathered so far are kept.
+     */
+    public void stop() {
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    /**
+     * Forget the numbers gathered so far.
+     */
+    public void reset() {
+        mFrameCount = 0;
+        mJankyFrameCount = 0;
+        mMaxFrameNanos = 0;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        if (mLastFrameNanos != 0) {
+            long frameNanos = frameTimeNanos - mLastFrameNanos;
+            mFrameCount++;
+            mMaxFrameNanos = Math.max(mMaxFrameNanos, frameNanos);
+            if (frameNanos > FRAME_BUDGET_NANOS * 3 / 2) {
+                // Took long enough that at least one vsync was missed
+                mJankyFrameCount++;
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Returns a one line summary of the frames measured since the last {@link #reset()}.
+     */
+    public String summary() {
+        return String.format(Locale.US, "%d frames, %d janky, slowest %.1f ms",
+                mFrameCount, mJankyFrameCount, mMaxFrameNanos / 1e6);
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.util.LongSparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetQuery;
+import com.example.android.pets.data.PetRepository;
+import com.example.android.pets.data.PetRow;
+import com.example.android.pets.data.PetWindow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link PetAdapter} binds the rows of a {@link PetWindow} to the catalog list.
+ * Only the rows near the visible part of the list are ever loaded from the database.
+ *
+ * Pets that are still being saved are shown as they will be once the save commits: new pets
+ * at the top of the list, whatever the sort order, and changed pets in place. Once the save
+ * commits the window picks up the real row, and if it fails the pet goes back to how it was.
+ * A new pet stays at the top until the window has been refreshed with its row, and is then
+ * taken out in the same pass as the row is put in, so it's never missing for a frame.
+ */
+public class PetAdapter extends RecyclerView.Adapter<PetAdapter.PetViewHolder>
+        implements PetWindow.Listener, PetRepository.SaveListener {
+
+    /** Repository the pending saves come from */
+    private final PetRepository mRepository;
+
+    /** Window of rows that backs this adapter */
+    private final PetWindow mWindow;
+
+    /** New pets being saved, shown above the rows of the window */
+    private final ArrayList<PetRepository.PendingSave> mPendingInserts = new ArrayList<>();
+
+    /** Saved new pets that are still shown, before the window was asked to refresh */
+    private final ArrayList<PetRepository.PendingSave> mSavedInserts = new ArrayList<>();
+
+    /** Saved new pets that are still shown, until the window's refresh is done */
+    private final ArrayList<PetRepository.PendingSave> mRefreshingInserts = new ArrayList<>();
+
+    /** Changes being saved, by the ID of the pet */
+    private final LongSparseArray<PetRow> mPendingUpdates = new LongSparseArray<>();
+
+    /** Number of times a row was bound since the last {@link #resetBindCount()} */
+    private int mBindCount;
+
+    /** Told when a pet in the list is clicked */
+    private OnPetClickListener mOnPetClickListener;
+
+    /**
+     * Told when the user clicks a pet in the list.
+     */
+    public interface OnPetClickListener {
+
+        /** Called when the pet with the given {@link PetEntry#_ID} was clicked. */
+        void onPetClick(long id);
+    }
+
+    /**
+     * Constructs a new {@link PetAdapter}.
+     *
+     * @param repository that saves pets
+     * @param window of pets to display
+     */
+    public PetAdapter(PetRepository repository, PetWindow window) {
+        mRepository = repository;
+        mWindow = window;
+        mWindow.setListener(this);
+    }
+
+    /**
+     * Set the listener that is told when a pet is clicked.
+     */
+    public void setOnPetClickListener(OnPetClickListener listener) {
+        mOnPetClickListener = listener;
+    }
+
+    /**
+     * Show the pets matched by a different query. The list is empty until
+     * {@link #swapCount(int)} is called with the number of pets the query matches.
+     */
+    public void setQuery(PetQuery query) {
+        mWindow.setQuery(query);
+    }
+
+    /**
+     * Redraw the whole list for a query that now matches the given number of rows. Rows that
+     * were read ahead while the app started are kept, and only the ones that changed since
+     * are redrawn.
+     */
+    public void swapCount(int count) {
+        mWindow.setCount(count);
+    }
+
+    /**
+     * Returns whether the list shows loaded pets, rather than nothing or rows still loading.
+     */
+    public boolean isShowingRows() {
+        return mWindow.getResidentCount() > 0 || !mPendingInserts.isEmpty();
+    }
+
+    /**
+     * Update the list after the pets table changed. Only rows that actually changed are
+     * redrawn.
+     */
+    public void refresh() {
+        // The saved pets are in the table by now, so this refresh brings in their rows
+        mRefreshingInserts.addAll(mSavedInserts);
+        mSavedInserts.clear();
+        mWindow.refresh();
+    }
+
+    /**
+     * Returns the number of times a row was bound since the last {@link #resetBindCount()}.
+     */
+    public int getBindCount() {
+        return mBindCount;
+    }
+
+    /**
+     * Start counting binds from zero.
+     */
+    public void resetBindCount() {
+        mBindCount = 0;
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        mRepository.addSaveListener(this);
+        onPendingSavesChanged();
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        mRepository.removeSaveListener(this);
+    }
+
+    @Override
+    public void onPendingSavesChanged() {
+        List<PetRepository.PendingSave> saves = mRepository.getPendingSaves();
+
+        // Saves only ever finish or get added at the end, so the new pets that are left keep
+        // their order
+        for (int i = mPendingInserts.size() - 1; i >= 0; i--) {
+            PetRepository.PendingSave save = mPendingInserts.get(i);
+            if (saves.contains(save) || mSavedInserts.contains(save)
+                    || mRefreshingInserts.contains(save)) {
+                continue;
+            }
+            if (save.isSaved()) {
+                // Keep showing the pet until the window has its row
+                mSavedInserts.add(save);
+            } else {
+                mPendingInserts.remove(i);
+                notifyItemRemoved(i);
+            }
+        }
+        boolean hadUpdates = mPendingUpdates.size() > 0;
+        mPendingUpdates.clear();
+        for (PetRepository.PendingSave save : saves) {
+            if (!save.isNew()) {
+                mPendingUpdates.put(save.getRow().id, save.getRow());
+            } else if (!mPendingInserts.contains(save)) {
+                mPendingInserts.add(save);
+                notifyItemInserted(mPendingInserts.size() - 1);
+            }
+        }
+        if (hadUpdates || mPendingUpdates.size() > 0) {
+            // Only the rows on screen are bound again
+            notifyItemRangeChanged(mPendingInserts.size(), mWindow.getCount());
+        }
+    }
+
+    @Override
+    public void onWindowReset() {
+        // The window is read again from scratch, saved pets included
+        mPendingInserts.removeAll(mSavedInserts);
+        mPendingInserts.removeAll(mRefreshingInserts);
+        mSavedInserts.clear();
+        mRefreshingInserts.clear();
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public void onRefreshed() {
+        // The window has reported the rows of the saved pets, if they're in it, in this same
+        // pass, so the list never shows a pet twice or not at all
+        for (int i = mPendingInserts.size() - 1; i >= 0; i--) {
+            if (mRefreshingInserts.contains(mPendingInserts.get(i))) {
+                mPendingInserts.remove(i);
+                notifyItemRemoved(i);
+            }
+        }
+        mRefreshingInserts.clear();
+    }
+
+    @Override
+    public void onInserted(int position, int count) {
+        notifyItemRangeInserted(mPendingInserts.size() + position, count);
+    }
+
+    @Override
+    public void onRemoved(int position, int count) {
+        notifyItemRangeRemoved(mPendingInserts.size() + position, count);
+    }
+
+    @Override
+    public void onMoved(int fromPosition, int toPosition) {
+        notifyItemMoved(mPendingInserts.size() + fromPosition,
+                mPendingInserts.size() + toPosition);
+    }
+
+    @Override
+    public void onChanged(int position, int count, Object payload) {
+        notifyItemRangeChanged(mPendingInserts.size() + position, count, payload);
+    }
+
+    @Override
+    public PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.list_item, parent, false);
+        return new PetViewHolder(view, mOnPetClickListener);
+    }
+
+    @Override
+    public void onBindViewHolder(PetViewHolder holder, int position) {
+        mBindCount++;
+        if (position < mPendingInserts.size()) {
+            holder.bindPending(mPendingInserts.get(position).getRow());
+            return;
+        }
+
+        // If the row is still loading this shows an empty item, and the window will tell us
+        // when the row arrives
+        PetRow row = mWindow.getRow(position - mPendingInserts.size());
+        if (row != null && mPendingUpdates.size() > 0) {
+            PetRow pending = mPendingUpdates.get(row.id);
+            if (pending != null) {
+                holder.bind(pending);
+                return;
+            }
+        }
+        holder.bind(row);
+    }
+
+    @Override
+    public void onViewRecycled(PetViewHolder holder) {
+        holder.unbind();
+    }
+
+    @Override
+    public int getItemCount() {
+        return mPendingInserts.size() + mWindow.getCount();
+    }
+
+    /**
+     * Holds the views of a single list item so they don't need to be looked up on every bind.
+     */
+    static class PetViewHolder extends RecyclerView.ViewHolder {
+
+        /** TextView for the pet's name */
+        final TextView nameTextView;
+
+        /** TextView for the pet's breed */
+        final TextView summaryTextView;
+
+        /** ImageView for the pet's photo */
+        final ImageView thumbnailImageView;
+
+        /** Decodes the pet's photo in the background */
+        private final ThumbnailLoader mThumbnailLoader;
+
+        /** ID of the pet shown, or -1 while the row is loading */
+        private long mId = -1;
+
+        PetViewHolder(View itemView, final OnPetClickListener listener) {
+            super(itemView);
+            nameTextView = (TextView) itemView.findViewById(R.id.name);
+            summaryTextView = (TextView) itemView.findViewById(R.id.summary);
+            thumbnailImageView = (ImageView) itemView.findViewById(R.id.thumbnail);
+            mThumbnailLoader = ThumbnailLoader.getInstance(itemView.getContext());
+            if (listener != null) {
+                itemView.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        if (mId != -1) {
+                            listener.onPetClick(mId);
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Show the given row, or an empty item if the row is null.
+         */
+        void bind(PetRow row) {
+            if (row == null) {
+                mId = -1;
+                nameTextView.setText(null);
+                summaryTextView.setText(null);
+                mThumbnailLoader.cancel(thumbnailImageView);
+                return;
+            }
+
+            mId = row.id;
+            nameTextView.setText(row.name);
+            if (TextUtils.isEmpty(row.breed)) {
+                summaryTextView.setText(R.string.unknown_breed);
+            } else {
+                summaryTextView.setText(row.breed);
+            }
+            mThumbnailLoader.load(row.photo, thumbnailImageView);
+        }
+
+        /**
+         * Show a new pet that is still being saved. It can't be opened until it has an ID.
+         */
+        void bindPending(PetRow row) {
+            mId = -1;
+            nameTextView.setText(row.name);
+            summaryTextView.setText(R.string.pet_saving);
+            mThumbnailLoader.load(row.photo, thumbnailImageView);
+        }
+
+        /**
+         * Let go of the photo, so its bitmap can be reused once the item is off screen.
+         */
+        void unbind() {
+            mThumbnailLoader.cancel(thumbnailImageView);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.example.android.pets.data.PetRow;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link PetSearchAdapter} shows the results of a search in the catalog list. Searches return
+ * a limited number of rows, so unlike {@link PetAdapter} all of them are held in memory.
+ */
+public class PetSearchAdapter extends RecyclerView.Adapter<PetAdapter.PetViewHolder> {
+
+    /** Pets that matched the search, best match first */
+    private List<PetRow> mResults = Collections.emptyList();
+
+    /** Told when a pet in the results is clicked */
+    private PetAdapter.OnPetClickListener mOnPetClickListener;
+
+    /**
+     * Set the listener that is told when a pet is clicked.
+     */
+    public void setOnPetClickListener(PetAdapter.OnPetClickListener listener) {
+        mOnPetClickListener = listener;
+    }
+
+    /**
+     * Show a new set of search results.
+     */
+    public void swapResults(List<PetRow> results) {
+        mResults = results;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public PetAdapter.PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.list_item, parent, false);
+        return new PetAdapter.PetViewHolder(view, mOnPetClickListener);
+    }
+
+    @Override
+    public void onBindViewHolder(PetAdapter.PetViewHolder holder, int position) {
+        holder.bind(mResults.get(position));
+    }
+
+    @Override
+    public void onViewRecycled(PetAdapter.PetViewHolder holder) {
+        holder.unbind();
+    }
+
+    @Override
+    public int getItemCount() {
+        return mResults.size();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.app.Application;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
+
+import com.example.android.pets.data.PetRepository;
+import com.example.android.pets.data.PetWindow;
+
+/**
+ * Starts reading the first page of the catalog as soon as the process starts, so it's
+ * usually there by the time the catalog draws its first frame.
+ *
+ * Nothing here touches the database on the main thread. The database is opened by the reader
+ * thread that reads the page.
+ */
+public class PetsApplication extends Application {
+
+    /** When the process started, in {@link SystemClock#elapsedRealtime()} time */
+    private static long sStartMillis;
+
+    @Override
+    public void onCreate() {
+        // Newer versions know when the process was forked; before that, this is the closest
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            sStartMillis = Process.getStartElapsedRealtime();
+        } else {
+            sStartMillis = SystemClock.elapsedRealtime();
+        }
+        super.onCreate();
+
+        TraceCompat.beginSection("PetsApplication.onCreate");
+        try {
+            PetWindow.prefetch(PetRepository.getInstance(this));
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * Returns the time since the process started, in milliseconds.
+     */
+    public static long getMillisSinceStart() {
+        return SystemClock.elapsedRealtime() - sStartMillis;
+    }
+}
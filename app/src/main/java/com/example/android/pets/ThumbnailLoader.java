@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetPhotos;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shows pet photos as square thumbnails in {@link ImageView}s, decoding them on background
+ * threads.
+ *
+ * A photo is decoded only once at a fraction of its full size, cropped to a square of
+ * {@link R.dimen#thumbnail_size} and written to a thumbnail file in the cache directory.
+ * Thumbnails are kept in memory in a {@link LruCache} bounded in bytes; thumbnails that fall
+ * out of it are read back from their files, which is much cheaper than decoding the photo.
+ *
+ * Every thumbnail has the same size and pixel format, so a bitmap that was evicted from the
+ * memory cache and is no longer shown is decoded into again instead of allocating a new one.
+ * This keeps the heap flat while a long list scrolls.
+ *
+ * {@link #load(String, ImageView)} and {@link #cancel(ImageView)} must be called on the main
+ * thread.
+ */
+public class ThumbnailLoader {
+
+    public static final String LOG_TAG = ThumbnailLoader.class.getSimpleName();
+
+    /** Fraction of the app's memory class the memory cache may use */
+    private static final int MEMORY_CLASS_FRACTION = 8;
+
+    /** Space the thumbnail files may take up in the cache directory, in bytes */
+    private static final long DISK_CACHE_BYTES = 10 * 1024 * 1024;
+
+    /** Directory in the cache directory that holds the thumbnail files */
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+    private static final int JPEG_QUALITY = 85;
+
+    /** Number of threads that decode photos */
+    private static final int DECODE_THREADS = 2;
+
+    /** Most evicted bitmaps kept around for reuse */
+    private static final int MAX_REUSABLE_BITMAPS = 8;
+
+    /** Thumbnails are opaque, so two bytes per pixel are enough */
+    private static final Bitmap.Config BITMAP_CONFIG = Bitmap.Config.RGB_565;
+
+    /** The one instance of this class, created on first use */
+    private static ThumbnailLoader sInstance;
+
+    private final Context mContext;
+
+    /** Width and height of a thumbnail, in pixels */
+    private final int mSize;
+
+    /** Thumbnails by key. Only used on the main thread. */
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /** Number of views showing each bitmap. Only used on the main thread. */
+    private final IdentityHashMap<Bitmap, Integer> mShownCounts = new IdentityHashMap<>();
+
+    /** Bitmaps that were evicted from the memory cache while views still showed them */
+    private final IdentityHashMap<Bitmap, Boolean> mEvictedWhileShown = new IdentityHashMap<>();
+
+    /** Bitmaps that nothing uses any more, to decode into. Guarded by itself. */
+    private final ArrayList<Bitmap> mReusableBitmaps = new ArrayList<>();
+
+    /** What each view shows or is waiting for. Only used on the main thread. */
+    private final WeakHashMap<ImageView, Binding> mBindings = new WeakHashMap<>();
+
+    private final File mDiskCacheDirectory;
+
+    /** Bytes in the thumbnail files, or -1 until counted. Guarded by the directory. */
+    private long mDiskCacheBytes = -1;
+
+    private final ExecutorService mExecutor;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * A thumbnail a view shows, or is waiting for.
+     */
+    private static class Binding {
+
+        final String key;
+
+        /** Set when the view moves on to another thumbnail before this one is decoded */
+        volatile boolean cancelled;
+
+        /** Bitmap the view shows, or null while it's being loaded */
+        Bitmap bitmap;
+
+        Binding(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Returns the loader for this process, creating it if needed.
+     *
+     * @param context of the app
+     */
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ThumbnailLoader(Context context) {
+        mContext = context;
+        mSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+        mDiskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassBytes = activityManager.getMemoryClass() * 1024 * 1024;
+        mMemoryCache = new LruCache<String, Bitmap>(memoryClassBytes / MEMORY_CLASS_FRACTION) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                    Bitmap newValue) {
+                if (mShownCounts.containsKey(oldValue)) {
+                    // Reused once the last view showing it moves on
+                    mEvictedWhileShown.put(oldValue, Boolean.TRUE);
+                } else {
+                    addReusableBitmap(oldValue);
+                }
+            }
+        };
+
+        mExecutor = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "ThumbnailLoader-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Show the thumbnail of a photo in a view. The view is cleared until the thumbnail is
+     * ready, unless it's in memory already. A load still running for the view is cancelled.
+     *
+     * @param photo file name from the pets table, or null to only clear the view
+     * @param view to show the thumbnail in
+     */
+    public void load(String photo, final ImageView view) {
+        if (photo == null) {
+            cancel(view);
+            return;
+        }
+
+        final String key = photo + "_" + mSize;
+        Binding current = mBindings.get(view);
+        if (current != null && key.equals(current.key)) {
+            // Already showing or loading this thumbnail
+            return;
+        }
+        cancel(view);
+
+        final Binding binding = new Binding(key);
+        mBindings.put(view, binding);
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            show(view, binding, cached);
+            return;
+        }
+
+        final File source = PetPhotos.getFile(mContext, photo);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (binding.cancelled) {
+                    return;
+                }
+                final Bitmap bitmap = loadThumbnail(key, source);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (bitmap == null) {
+                            return;
+                        }
+                        Bitmap cached = mMemoryCache.get(key);
+                        if (cached == null) {
+                            mMemoryCache.put(key, bitmap);
+                            cached = bitmap;
+                        } else {
+                            // Another view loaded the same thumbnail first
+                            addReusableBitmap(bitmap);
+                        }
+                        if (!binding.cancelled && mBindings.get(view) == binding) {
+                            show(view, binding, cached);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Clear a view and stop loading a thumbnail for it, for example when its list item is
+     * recycled.
+     */
+    public void cancel(ImageView view) {
+        Binding binding = mBindings.remove(view);
+        if (binding == null) {
+            return;
+        }
+        binding.cancelled = true;
+        view.setImageDrawable(null);
+        release(binding.bitmap);
+    }
+
+    private void show(ImageView view, Binding binding, Bitmap bitmap) {
+        binding.bitmap = bitmap;
+        Integer count = mShownCounts.get(bitmap);
+        mShownCounts.put(bitmap, count == null ? 1 : count + 1);
+        view.setImageBitmap(bitmap);
+    }
+
+    /**
+     * Called when a view no longer shows a bitmap.
+     */
+    private void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        int count = mShownCounts.get(bitmap) - 1;
+        if (count > 0) {
+            mShownCounts.put(bitmap, count);
+            return;
+        }
+        mShownCounts.remove(bitmap);
+        if (mEvictedWhileShown.remove(bitmap) != null) {
+            addReusableBitmap(bitmap);
+        }
+    }
+
+    private void addReusableBitmap(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.getWidth() != mSize || bitmap.getHeight() != mSize
+                || bitmap.getConfig() != BITMAP_CONFIG) {
+            return;
+        }
+        synchronized (mReusableBitmaps) {
+            if (mReusableBitmaps.size() < MAX_REUSABLE_BITMAPS) {
+                mReusableBitmaps.add(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Returns a bitmap nothing uses any more, or null if there is none.
+     */
+    private Bitmap takeReusableBitmap() {
+        synchronized (mReusableBitmaps) {
+            int size = mReusableBitmaps.size();
+            return size == 0 ? null : mReusableBitmaps.remove(size - 1);
+        }
+    }
+
+    /**
+     * Returns the thumbnail of a photo, from its thumbnail file if there is one and by
+     * decoding the photo otherwise. Runs on a decode thread.
+     *
+     * @return the thumbnail, or null if the photo can't be read
+     */
+    private Bitmap loadThumbnail(String key, File source) {
+        File thumbnailFile = new File(mDiskCacheDirectory, key + ".jpg");
+        if (thumbnailFile.exists()) {
+            Bitmap bitmap = decodeThumbnailFile(thumbnailFile);
+            if (bitmap != null) {
+                // Touch the file so the least recently used ones are trimmed first
+                thumbnailFile.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+
+        Bitmap bitmap = decodePhoto(source);
+        if (bitmap != null) {
+            writeThumbnailFile(thumbnailFile, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decode a thumbnail file into a reusable bitmap if there is one. Thumbnail files are
+     * exactly the size of a thumbnail, which is what reusing a bitmap needs before KitKat.
+     */
+    private Bitmap decodeThumbnailFile(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = BITMAP_CONFIG;
+        options.inMutable = true;
+        options.inSampleSize = 1;
+        options.inBitmap = takeReusableBitmap();
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The bitmap couldn't be reused after all. Decode into a new one.
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+    }
+
+    /**
+     * Decode a photo at the smallest power of two fraction of its size that still covers a
+     * thumbnail, then crop and scale the middle of it into a thumbnail.
+     */
+    private Bitmap decodePhoto(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(LOG_TAG, "Unable to read photo " + file);
+            return null;
+        }
+
+        int shortSide = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (shortSide / (sampleSize * 2) >= mSize) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = BITMAP_CONFIG;
+        Bitmap decoded = BitmapFactory.decodeFile(file.getPath(), options);
+        if (decoded == null) {
+            Log.w(LOG_TAG, "Unable to decode photo " + file);
+            return null;
+        }
+
+        Bitmap thumbnail = takeReusableBitmap();
+        if (thumbnail == null) {
+            thumbnail = Bitmap.createBitmap(mSize, mSize, BITMAP_CONFIG);
+        }
+        int side = Math.min(decoded.getWidth(), decoded.getHeight());
+        int left = (decoded.getWidth() - side) / 2;
+        int top = (decoded.getHeight() - side) / 2;
+        Canvas canvas = new Canvas(thumbnail);
+        canvas.drawBitmap(decoded, new Rect(left, top, left + side, top + side),
+                new Rect(0, 0, mSize, mSize), new Paint(Paint.FILTER_BITMAP_FLAG));
+        decoded.recycle();
+        return thumbnail;
+    }
+
+    /**
+     * Write a thumbnail file, then delete the least recently used ones if the thumbnail files
+     * take up more than {@link #DISK_CACHE_BYTES}.
+     */
+    private void writeThumbnailFile(File file, Bitmap bitmap) {
+        synchronized (mDiskCacheDirectory) {
+            if (!mDiskCacheDirectory.isDirectory() && !mDiskCacheDirectory.mkdirs()) {
+                Log.w(LOG_TAG, "Unable to create " + mDiskCacheDirectory);
+                return;
+            }
+            File partial = new File(file.getPath() + ".partial");
+            try {
+                OutputStream out = new FileOutputStream(partial);
+                try {
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Unable to write " + file, e);
+                partial.delete();
+                return;
+            }
+            if (!partial.renameTo(file)) {
+                partial.delete();
+                return;
+            }
+
+            if (mDiskCacheBytes < 0) {
+                mDiskCacheBytes = 0;
+                File[] files = mDiskCacheDirectory.listFiles();
+                if (files != null) {
+                    for (File existing : files) {
+                        mDiskCacheBytes += existing.length();
+                    }
+                }
+            } else {
+                mDiskCacheBytes += file.length();
+            }
+            if (mDiskCacheBytes > DISK_CACHE_BYTES) {
+                trimDiskCache();
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used thumbnail files until they take up three quarters of
+     * {@link #DISK_CACHE_BYTES}, so the next few writes don't have to trim again.
+     */
+    private void trimDiskCache() {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        long target = DISK_CACHE_BYTES * 3 / 4;
+        for (File file : files) {
+            if (mDiskCacheBytes <= target) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                mDiskCacheBytes -= length;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        int reusable;
+        synchronized (mReusableBitmaps) {
+            reusable = mReusableBitmaps.size();
+        }
+        return String.format(Locale.US,
+                "ThumbnailLoader[memory=%d/%d bytes, hits=%d, misses=%d, evictions=%d, "
+                        + "reusable=%d]",
+                mMemoryCache.size(), mMemoryCache.maxSize(), mMemoryCache.hitCount(),
+                mMemoryCache.missCount(), mMemoryCache.evictionCount(), reusable);
+    }
+}
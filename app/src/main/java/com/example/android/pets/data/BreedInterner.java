@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * Reads breeds from cursors so that every pet of a breed shares one String.
+ *
+ * A shelter has few breeds and many pets, so instead of a new String per row the breed is
+ * copied into a reused {@link CharArrayBuffer} and looked up by its characters in a table
+ * shared by every interner. Only a breed that isn't in the table yet is turned into a String.
+ *
+ * The table has a fixed number of slots and a breed takes the slot its hash points to, pushing
+ * out whatever was there, so it never holds more than {@link #TABLE_SIZE} breeds. Slots are
+ * read and written without a lock: Strings are immutable, so a thread sees either the old
+ * breed or the new one, and either way it checks the characters before using it.
+ *
+ * The buffer isn't shared, so each thread uses an interner of its own, kept for the life of
+ * the thread by {@link #forCurrentThread()} so reading a row allocates nothing once its breed
+ * is in the table.
+ */
+final class BreedInterner {
+
+    /** Number of slots in the table, a power of two */
+    private static final int TABLE_SIZE = 512;
+
+    /** Interned breeds, by the hash of their characters */
+    private static final String[] sTable = new String[TABLE_SIZE];
+
+    /** The interner of each thread */
+    private static final ThreadLocal<BreedInterner> sThreadInterners =
+            new ThreadLocal<BreedInterner>() {
+                @Override
+                protected BreedInterner initialValue() {
+                    return new BreedInterner();
+                }
+            };
+
+    /** Holds the breed being read */
+    private final CharArrayBuffer mBuffer = new CharArrayBuffer(32);
+
+    /**
+     * Returns the interner of the calling thread.
+     */
+    static BreedInterner forCurrentThread() {
+        return sThreadInterners.get();
+    }
+
+    /**
+     * Returns the breed in the given column of the cursor's current row, or null if it's null
+     * or empty.
+     */
+    String read(Cursor cursor, int column) {
+        cursor.copyStringToBuffer(column, mBuffer);
+        int size = mBuffer.sizeCopied;
+        if (size == 0) {
+            return null;
+        }
+
+        char[] chars = mBuffer.data;
+        int hash = 0;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+
+        String breed = sTable[slot];
+        if (breed == null || !sameChars(breed, chars, size)) {
+            breed = new String(chars, 0, size);
+            sTable[slot] = breed;
+        }
+        return breed;
+    }
+
+    private static boolean sameChars(String s, char[] chars, int size) {
+        if (s.length() != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (s.charAt(i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
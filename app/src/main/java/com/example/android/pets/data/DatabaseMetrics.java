@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records how long database calls take, per operation and table.
+ *
+ * Every query, insert, update and delete in the data layer goes through the static methods
+ * of this class rather than straight to {@link SQLiteDatabase}. Each call is timed, and its
+ * latency, row count and thread are added to the metrics for its operation and table. Calls
+ * slower than {@link #setSlowThresholdMillis(long)}, and any call made on the main thread, are
+ * logged with a stack trace so they can be traced back to their caller.
+ *
+ * The metrics can be written out with {@link #dump(PrintWriter)}, for example from
+ * {@code adb shell dumpsys activity}.
+ */
+public final class DatabaseMetrics {
+
+    public static final String LOG_TAG = DatabaseMetrics.class.getSimpleName();
+
+    /** Default for {@link #setSlowThresholdMillis(long)} */
+    private static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 100;
+
+    /** Upper bounds of the latency histogram buckets, in microseconds. A last bucket is open. */
+    private static final long[] BUCKET_BOUNDS_MICROS = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+            1000000 };
+
+    /** The one instance of this class */
+    private static final DatabaseMetrics sInstance = new DatabaseMetrics();
+
+    /** Metrics per "operation table" key, guarded by this */
+    private final Map<String, OperationMetrics> mMetrics = new TreeMap<>();
+
+    /** Calls made on the main thread, guarded by this */
+    private int mMainThreadCalls;
+
+    /** Calls slower than the threshold, guarded by this */
+    private int mSlowCalls;
+
+    private volatile long mSlowThresholdNanos = DEFAULT_SLOW_THRESHOLD_MILLIS * 1000000L;
+
+    /**
+     * Metrics for one operation on one table.
+     */
+    private static final class OperationMetrics {
+        int count;
+        long rows;
+        long totalNanos;
+        long maxNanos;
+        final int[] histogram = new int[BUCKET_BOUNDS_MICROS.length + 1];
+        final Map<String, Integer> threads = new HashMap<>();
+    }
+
+    private DatabaseMetrics() {
+    }
+
+    /**
+     * Returns the metrics of this process.
+     */
+    public static DatabaseMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Set how long a call may take before it is logged as slow.
+     */
+    public void setSlowThresholdMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Invalid threshold " + millis);
+        }
+        mSlowThresholdNanos = millis * 1000000L;
+    }
+
+    /**
+     * Forget every call recorded so far.
+     */
+    public synchronized void reset() {
+        mMetrics.clear();
+        mMainThreadCalls = 0;
+        mSlowCalls = 0;
+    }
+
+    /**
+     * Returns the number of rows read or written by the calls of an operation on a table.
+     */
+    synchronized long getRows(String operation, String table) {
+        OperationMetrics metrics = mMetrics.get(operation + " " + table);
+        return metrics == null ? 0 : metrics.rows;
+    }
+
+    /**
+     * Returns the number of calls recorded since the last {@link #reset()}, of any operation.
+     */
+    public synchronized int getCalls() {
+        int calls = 0;
+        for (OperationMetrics metrics : mMetrics.values()) {
+            calls += metrics.count;
+        }
+        return calls;
+    }
+
+    /**
+     * Returns the number of calls made on the main thread.
+     */
+    synchronized int getMainThreadCalls() {
+        return mMainThreadCalls;
+    }
+
+    /**
+     * Returns the time to pass to {@link #record}, taken when a call starts.
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add a finished call to the metrics, and log it if it was slow or made on the main
+     * thread.
+     *
+     * @param operation kind of call, for example "query"
+     * @param table the call ran against
+     * @param startNanos returned by {@link #start()} when the call started
+     * @param rows read or written by the call
+     */
+    static void record(String operation, String table, long startNanos, long rows) {
+        sInstance.add(operation, table, System.nanoTime() - startNanos, rows);
+    }
+
+    private void add(String operation, String table, long nanos, long rows) {
+        boolean onMainThread = Looper.myLooper() == Looper.getMainLooper();
+        boolean slow = nanos > mSlowThresholdNanos;
+        String threadName = Thread.currentThread().getName();
+        String key = operation + " " + table;
+
+        synchronized (this) {
+            OperationMetrics metrics = mMetrics.get(key);
+            if (metrics == null) {
+                metrics = new OperationMetrics();
+                mMetrics.put(key, metrics);
+            }
+            metrics.count++;
+            metrics.rows += rows;
+            metrics.totalNanos += nanos;
+            metrics.maxNanos = Math.max(metrics.maxNanos, nanos);
+            metrics.histogram[bucketOf(nanos / 1000)]++;
+            Integer threadCount = metrics.threads.get(threadName);
+            metrics.threads.put(threadName, threadCount == null ? 1 : threadCount + 1);
+            if (onMainThread) {
+                mMainThreadCalls++;
+            }
+            if (slow) {
+                mSlowCalls++;
+            }
+        }
+
+        // The stack trace shows where the call came from
+        if (onMainThread) {
+            Log.w(LOG_TAG, String.format(Locale.US, "Database %s on the main thread, %.1f ms",
+                    key, nanos / 1e6), new Throwable("Main thread database call"));
+        } else if (slow) {
+            Log.w(LOG_TAG, String.format(Locale.US, "Slow database %s, %.1f ms, %d rows",
+                    key, nanos / 1e6, rows), new Throwable("Slow database call"));
+        }
+    }
+
+    private static int bucketOf(long micros) {
+        for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+            if (micros <= BUCKET_BOUNDS_MICROS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MICROS.length;
+    }
+
+    /**
+     * Write the metrics recorded so far in a human readable form.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println(String.format(Locale.US,
+                "Database metrics: %d on main thread, %d slower than %d ms",
+                mMainThreadCalls, mSlowCalls, mSlowThresholdNanos / 1000000L));
+        for (Map.Entry<String, OperationMetrics> entry : mMetrics.entrySet()) {
+            OperationMetrics metrics = entry.getValue();
+            writer.println(String.format(Locale.US,
+                    "  %s: %d calls, %d rows, avg %.2f ms, max %.2f ms",
+                    entry.getKey(), metrics.count, metrics.rows,
+                    metrics.totalNanos / 1e6 / metrics.count, metrics.maxNanos / 1e6));
+
+            StringBuilder histogram = new StringBuilder("    latency:");
+            for (int i = 0; i < metrics.histogram.length; i++) {
+                if (metrics.histogram[i] == 0) {
+                    continue;
+                }
+                histogram.append(' ');
+                if (i < BUCKET_BOUNDS_MICROS.length) {
+                    histogram.append("<=").append(formatMicros(BUCKET_BOUNDS_MICROS[i]));
+                } else {
+                    histogram.append('>').append(
+                            formatMicros(BUCKET_BOUNDS_MICROS[BUCKET_BOUNDS_MICROS.length - 1]));
+                }
+                histogram.append(':').append(metrics.histogram[i]);
+            }
+            writer.println(histogram);
+            writer.println("    threads: " + metrics.threads);
+        }
+        writer.flush();
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros < 1000) {
+            return micros + "us";
+        }
+        return String.format(Locale.US, "%sms", micros % 1000 == 0
+                ? String.valueOf(micros / 1000) : String.valueOf(micros / 1000.0));
+    }
+
+    @Override
+    public String toString() {
+        StringWriter out = new StringWriter();
+        dump(new PrintWriter(out));
+        return out.toString();
+    }
+
+    // Timed versions of the SQLiteDatabase calls used by the data layer. Queries are run to the
+    // end of their first window with Cursor.getCount(), so the time includes executing them.
+
+    static Cursor query(SQLiteDatabase db, String table, String[] columns, String selection,
+            String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
+        long start = start();
+        Cursor cursor = db.query(table, columns, selection, selectionArgs, groupBy, having,
+                orderBy, limit);
+        record("query", table, start, cursor.getCount());
+        return cursor;
+    }
+
+    static Cursor query(SQLiteDatabase db, String table, String[] columns, String selection,
+            String[] selectionArgs, String groupBy, String having, String orderBy) {
+        return query(db, table, columns, selection, selectionArgs, groupBy, having, orderBy,
+                null);
+    }
+
+    /**
+     * @param table that the query mostly reads from, to file its metrics under
+     */
+    static Cursor rawQuery(SQLiteDatabase db, String table, String sql, String[] selectionArgs,
+            CancellationSignal cancellationSignal) {
+        long start = start();
+        Cursor cursor = db.rawQuery(sql, selectionArgs, cancellationSignal);
+        record("query", table, start, cursor.getCount());
+        return cursor;
+    }
+
+    static long count(SQLiteDatabase db, String table, String selection,
+            String[] selectionArgs) {
+        long start = start();
+        long count = DatabaseUtils.queryNumEntries(db, table, selection, selectionArgs);
+        record("count", table, start, 1);
+        return count;
+    }
+
+    static long insert(SQLiteDatabase db, String table, ContentValues values) {
+        long start = start();
+        long id = db.insert(table, null, values);
+        record("insert", table, start, id == -1 ? 0 : 1);
+        return id;
+    }
+
+    static long insertOrThrow(SQLiteDatabase db, String table, ContentValues values) {
+        long start = start();
+        long id = db.insertOrThrow(table, null, values);
+        record("insert", table, start, 1);
+        return id;
+    }
+
+    static int update(SQLiteDatabase db, String table, ContentValues values, String whereClause,
+            String[] whereArgs) {
+        long start = start();
+        int rows = db.update(table, values, whereClause, whereArgs);
+        record("update", table, start, rows);
+        return rows;
+    }
+
+    static int delete(SQLiteDatabase db, String table, String whereClause, String[] whereArgs) {
+        long start = start();
+        int rows = db.delete(table, whereClause, whereArgs);
+        record("delete", table, start, rows);
+        return rows;
+    }
+}
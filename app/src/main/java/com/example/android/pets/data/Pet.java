@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * A pet as stored in the pets table. Pets are immutable, so the same object can be handed
+ * out by the {@link PetCache} to any number of threads.
+ */
+public final class Pet {
+
+    /** Rough size of an object header plus the fields of this class, in bytes */
+    private static final int SHALLOW_SIZE = 40;
+
+    /** Rough size of a String without its characters, in bytes */
+    private static final int STRING_SIZE = 40;
+
+    private final long mId;
+    private final String mName;
+    private final String mBreed;
+    private final int mGender;
+    private final int mWeight;
+    private final String mPhoto;
+
+    /**
+     * Constructs a new {@link Pet}.
+     *
+     * @param id of the row in the pets table
+     * @param name of the pet
+     * @param breed of the pet, or null if it isn't known
+     * @param gender one of the gender constants in {@link PetEntry}
+     * @param weight of the pet in kg
+     * @param photo file name of the pet's photo, or null if it has none
+     */
+    public Pet(long id, String name, String breed, int gender, int weight, String photo) {
+        mId = id;
+        mName = name;
+        mBreed = breed;
+        mGender = gender;
+        mWeight = weight;
+        mPhoto = photo;
+    }
+
+    /**
+     * Returns the pet at the current position of a cursor queried with
+     * {@link PetRow#PROJECTION}.
+     *
+     * @param breeds shares the breed with other pets of the same breed
+     */
+    static Pet fromCursor(Cursor cursor, BreedInterner breeds) {
+        return new Pet(cursor.getLong(0), cursor.getString(1), breeds.read(cursor, 2),
+                cursor.getInt(3), cursor.getInt(4), cursor.getString(5));
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getBreed() {
+        return mBreed;
+    }
+
+    public int getGender() {
+        return mGender;
+    }
+
+    public int getWeight() {
+        return mWeight;
+    }
+
+    public String getPhoto() {
+        return mPhoto;
+    }
+
+    /**
+     * Returns the values of this pet keyed by column name, without its ID.
+     */
+    public ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, mName);
+        values.put(PetEntry.COLUMN_PET_BREED, mBreed);
+        values.put(PetEntry.COLUMN_PET_GENDER, mGender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, mWeight);
+        values.put(PetEntry.COLUMN_PET_PHOTO, mPhoto);
+        return values;
+    }
+
+    /**
+     * Returns roughly how much memory this pet takes up, in bytes. Strings are counted at
+     * two bytes per character. The breed is left out, since pets read from the database share
+     * it with every other pet of their breed, see {@link BreedInterner}.
+     */
+    int getSizeInBytes() {
+        int size = SHALLOW_SIZE;
+        if (mName != null) {
+            size += STRING_SIZE + mName.length() * 2;
+        }
+        if (mPhoto != null) {
+            size += STRING_SIZE + mPhoto.length() * 2;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Pet)) {
+            return false;
+        }
+        Pet other = (Pet) o;
+        return mId == other.mId
+                && mGender == other.mGender
+                && mWeight == other.mWeight
+                && TextUtils.equals(mName, other.mName)
+                && TextUtils.equals(mBreed, other.mBreed)
+                && TextUtils.equals(mPhoto, other.mPhoto);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (mId ^ (mId >>> 32));
+        result = 31 * result + (mName != null ? mName.hashCode() : 0);
+        result = 31 * result + (mBreed != null ? mBreed.hashCode() : 0);
+        result = 31 * result + mGender;
+        result = 31 * result + mWeight;
+        result = 31 * result + (mPhoto != null ? mPhoto.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "Pet{id=" + mId + ", name=" + mName + ", breed=" + mBreed
+                + ", gender=" + mGender + ", weight=" + mWeight + ", photo=" + mPhoto + "}";
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary file holding every pet, for moving a shelter to another device or keeping
+ * a backup.
+ *
+ * The file starts with the bytes "PETS" and a format version byte, followed by records that
+ * each start with a tag byte:
+ * <ul>
+ *     <li>{@link #TAG_BREED}: a breed, as a length-prefixed UTF-8 string. Breeds are numbered
+ *     from 1 in the order they appear.</li>
+ *     <li>{@link #TAG_PET}: a pet, as its length-prefixed UTF-8 name, then the number of its
+ *     breed or 0 for none, its gender and its weight.</li>
+ * </ul>
+ * Lengths and numbers are unsigned varints, 7 bits per byte with the high bit set on every
+ * byte but the last. The file ends with a footer of two big-endian ints: the number of pets,
+ * and a CRC32 of every byte before it.
+ *
+ * IDs aren't stored, so imported pets get new ones, and neither are photos, which are files
+ * of their own.
+ */
+public final class PetArchive {
+
+    /** Extension of archive files */
+    public static final String FILE_EXTENSION = ".pets";
+
+    private static final byte[] MAGIC = { 'P', 'E', 'T', 'S' };
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int TAG_BREED = 1;
+    private static final int TAG_PET = 2;
+
+    /** Size of the pet count and the checksum at the end of the file */
+    private static final int FOOTER_SIZE = 8;
+
+    /** Size of the buffer the file is written through, and read through for the checksum */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Number of pets read per query while exporting */
+    private static final int EXPORT_PAGE_SIZE = 2000;
+
+    /** Longest a varint of an int can be */
+    private static final int MAX_VARINT_SIZE = 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] EXPORT_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    /** Number of bytes {@link #isArchive} needs to recognize an archive */
+    public static final int HEADER_SIZE = MAGIC.length + 1;
+
+    private PetArchive() {
+    }
+
+    /**
+     * Returns true if the given bytes from the start of a file are the header of an archive
+     * this version can read.
+     *
+     * @param length number of bytes read, which may be fewer than {@link #HEADER_SIZE}
+     */
+    public static boolean isArchive(byte[] bytes, int length) {
+        if (length < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return bytes[MAGIC.length] == FORMAT_VERSION;
+    }
+
+    /**
+     * Write every pet that isn't deleted to a file. Must be called on a background thread.
+     *
+     * Pets are read in pages by ID rather than through one cursor, because a cursor that
+     * doesn't fit in its window runs its query again from the start for every window. Only
+     * one page and the breeds seen so far are held in memory.
+     *
+     * @param channel to write to, from its current position
+     * @return the number of pets written
+     */
+    static int export(SQLiteDatabase db, FileChannel channel) throws IOException {
+        long start = DatabaseMetrics.start();
+        Writer writer = new Writer(channel);
+        HashMap<String, Integer> breedCodes = new HashMap<>();
+        BreedInterner breeds = BreedInterner.forCurrentThread();
+        CharArrayBuffer name = new CharArrayBuffer(64);
+        String[] selectionArgs = new String[1];
+        long lastId = 0;
+        int count = 0;
+        int pageSize;
+        do {
+            selectionArgs[0] = String.valueOf(lastId);
+            Cursor cursor = db.query(PetDbHelper.LIVE_VIEW_NAME, EXPORT_PROJECTION,
+                    PetEntry._ID + " > ?", selectionArgs, null, null, PetEntry._ID,
+                    String.valueOf(EXPORT_PAGE_SIZE));
+            try {
+                pageSize = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+
+                    // Interned breeds already know their hash code, so nothing is allocated
+                    // per pet to look up a breed seen before
+                    int breedCode = 0;
+                    String breed = breeds.read(cursor, 2);
+                    if (breed != null) {
+                        Integer code = breedCodes.get(breed);
+                        if (code == null) {
+                            code = breedCodes.size() + 1;
+                            breedCodes.put(breed, code);
+                            writer.writeBreed(breed);
+                        }
+                        breedCode = code;
+                    }
+
+                    cursor.copyStringToBuffer(1, name);
+                    writer.writePet(name, breedCode, cursor.getInt(3), cursor.getInt(4));
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+        } while (pageSize == EXPORT_PAGE_SIZE);
+
+        writer.finish(count);
+        // Overwriting a longer file would otherwise leave its end, and its footer, in place
+        channel.truncate(channel.position());
+        DatabaseMetrics.record("export", PetEntry.TABLE_NAME, start, count);
+        return count;
+    }
+
+    /**
+     * Writes the records of an archive through a buffer, keeping a running checksum.
+     */
+    private static class Writer {
+
+        private final FileChannel mChannel;
+        private ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 mChecksum = new CRC32();
+        private final CharsetEncoder mEncoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        /** Holds an encoded string until its length is known */
+        private ByteBuffer mEncoded = ByteBuffer.allocate(256);
+
+        Writer(FileChannel channel) throws IOException {
+            mChannel = channel;
+            mBuffer.put(MAGIC);
+            mBuffer.put((byte) FORMAT_VERSION);
+        }
+
+        void writeBreed(String breed) throws IOException {
+            encode(CharBuffer.wrap(breed));
+            ensureRoom(1 + MAX_VARINT_SIZE + mEncoded.remaining());
+            mBuffer.put((byte) TAG_BREED);
+            writeString();
+        }
+
+        void writePet(CharArrayBuffer name, int breedCode, int gender, int weight)
+                throws IOException {
+            encode(CharBuffer.wrap(name.data, 0, name.sizeCopied));
+            ensureRoom(1 + MAX_VARINT_SIZE + mEncoded.remaining() + 3 * MAX_VARINT_SIZE);
+            mBuffer.put((byte) TAG_PET);
+            writeString();
+            writeVarint(breedCode);
+            writeVarint(gender);
+            writeVarint(weight);
+        }
+
+        /**
+         * Write the footer and everything still in the buffer.
+         */
+        void finish(int count) throws IOException {
+            ensureRoom(4);
+            mBuffer.putInt(count);
+            flush();
+            // The checksum covers everything before it, so it goes out on its own
+            mBuffer.putInt((int) mChecksum.getValue());
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        private void encode(CharBuffer chars) {
+            mEncoder.reset();
+            mEncoded.clear();
+            while (true) {
+                CoderResult result = mEncoder.encode(chars, mEncoded, true);
+                if (result.isOverflow()) {
+                    ByteBuffer larger = ByteBuffer.allocate(mEncoded.capacity() * 2);
+                    mEncoded.flip();
+                    larger.put(mEncoded);
+                    mEncoded = larger;
+                } else {
+                    break;
+                }
+            }
+            mEncoder.flush(mEncoded);
+            mEncoded.flip();
+        }
+
+        private void writeString() {
+            writeVarint(mEncoded.remaining());
+            mBuffer.put(mEncoded);
+        }
+
+        private void writeVarint(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Negative value " + value);
+            }
+            while ((value & ~0x7F) != 0) {
+                mBuffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mBuffer.put((byte) value);
+        }
+
+        private void ensureRoom(int bytes) throws IOException {
+            if (mBuffer.remaining() >= bytes) {
+                return;
+            }
+            flush();
+            if (mBuffer.capacity() < bytes) {
+                mBuffer = ByteBuffer.allocate(bytes);
+            }
+        }
+
+        private void flush() throws IOException {
+            mChecksum.update(mBuffer.array(), 0, mBuffer.position());
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+    }
+
+    /**
+     * Reads the pets of an archive from a memory mapped file. The whole file is checked
+     * against its checksum before the first pet is returned, so a damaged file is rejected
+     * before anything is imported.
+     */
+    static class Reader {
+
+        private final ByteBuffer mBuffer;
+        private final int mEnd;
+        private final int mCount;
+        private final ArrayList<String> mBreeds = new ArrayList<>();
+        private byte[] mStringBytes = new byte[256];
+
+        /**
+         * Map a file and check that it's a complete archive.
+         *
+         * @throws IOException if the file can't be read or isn't a valid archive
+         */
+        Reader(FileChannel channel) throws IOException {
+            long size = channel.size();
+            if (size < MAGIC.length + 1 + FOOTER_SIZE) {
+                throw new IOException("Not a pets archive");
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Archive too large");
+            }
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mBuffer.order(ByteOrder.BIG_ENDIAN);
+
+            for (byte b : MAGIC) {
+                if (mBuffer.get() != b) {
+                    throw new IOException("Not a pets archive");
+                }
+            }
+            int version = mBuffer.get();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported archive version " + version);
+            }
+
+            int checksumPosition = (int) size - 4;
+            CRC32 checksum = new CRC32();
+            byte[] chunk = new byte[BUFFER_SIZE];
+            ByteBuffer data = mBuffer.duplicate();
+            data.position(0);
+            data.limit(checksumPosition);
+            while (data.hasRemaining()) {
+                int length = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, length);
+                checksum.update(chunk, 0, length);
+            }
+            if ((int) checksum.getValue() != mBuffer.getInt(checksumPosition)) {
+                throw new IOException("Archive is damaged");
+            }
+
+            mEnd = (int) size - FOOTER_SIZE;
+            mCount = mBuffer.getInt(mEnd);
+        }
+
+        /** Returns the number of pets in the archive */
+        int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Read the next pet into the given values.
+         *
+         * @return false if there are no more pets
+         * @throws IOException if a record is malformed
+         */
+        boolean readPet(ContentValues values) throws IOException {
+            while (mBuffer.position() < mEnd) {
+                int tag = mBuffer.get();
+                if (tag == TAG_BREED) {
+                    mBreeds.add(readString());
+                } else if (tag == TAG_PET) {
+                    values.put(PetEntry.COLUMN_PET_NAME, readString());
+                    int breedCode = readVarint();
+                    if (breedCode > mBreeds.size()) {
+                        throw new IOException("Unknown breed " + breedCode);
+                    }
+                    values.put(PetEntry.COLUMN_PET_BREED,
+                            breedCode == 0 ? null : mBreeds.get(breedCode - 1));
+                    values.put(PetEntry.COLUMN_PET_GENDER, readVarint());
+                    values.put(PetEntry.COLUMN_PET_WEIGHT, readVarint());
+                    return true;
+                } else {
+                    throw new IOException("Unknown record " + tag);
+                }
+            }
+            return false;
+        }
+
+        private String readString() throws IOException {
+            int length = readVarint();
+            if (length > mEnd - mBuffer.position()) {
+                throw new IOException("String runs past the end of the archive");
+            }
+            if (length > mStringBytes.length) {
+                mStringBytes = new byte[Math.max(length, mStringBytes.length * 2)];
+            }
+            mBuffer.get(mStringBytes, 0, length);
+            return new String(mStringBytes, 0, length, UTF_8);
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+                if (mBuffer.position() >= mEnd) {
+                    throw new IOException("Number runs past the end of the archive");
+                }
+                byte b = mBuffer.get();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    // Only numbers that fit an int without its sign bit are ever written, and
+                    // a negative length or breed would get past the checks made with them
+                    if (value < 0 || (shift == 28 && (b & 0x70) != 0)) {
+                        throw new IOException("Number out of range");
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("Malformed number");
+        }
+    }
+}
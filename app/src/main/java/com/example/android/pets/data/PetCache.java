@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Locale;
+
+/**
+ * Keeps recently used {@link Pet}s in memory, keyed by {@link PetEntry#_ID}, so the catalog
+ * and the editor don't have to read them from disk again. The cache is bounded by the memory
+ * the pets take up rather than by their number, and drops the least recently used pets first.
+ *
+ * Writes through the {@link PetRepository} put the new pet straight into the cache. Readers
+ * may only add a pet they read if no write happened since they started reading, so a slow
+ * read can't put back a pet that was changed in the meantime.
+ *
+ * The cache is safe to use from any thread.
+ */
+public class PetCache {
+
+    /** Fraction of the app's memory class the cache may use */
+    private static final int MEMORY_CLASS_FRACTION = 32;
+
+    /** Pets, sized by {@link Pet#getSizeInBytes()} */
+    private final LruCache<Long, Pet> mPets;
+
+    /** Incremented on every write, guarded by this */
+    private long mWriteStamp;
+
+    /**
+     * Constructs a new {@link PetCache}.
+     *
+     * @param maxSizeBytes memory the cached pets may take up, in bytes
+     */
+    public PetCache(int maxSizeBytes) {
+        mPets = new LruCache<Long, Pet>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(Long id, Pet pet) {
+                return pet.getSizeInBytes();
+            }
+        };
+    }
+
+    /**
+     * Returns a cache sized for the memory class of the device.
+     *
+     * @param context of the app
+     */
+    static PetCache forDevice(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassBytes = activityManager.getMemoryClass() * 1024 * 1024;
+        return new PetCache(memoryClassBytes / MEMORY_CLASS_FRACTION);
+    }
+
+    /**
+     * Returns the pet with the given ID, or null if it isn't cached.
+     */
+    public Pet get(long id) {
+        return mPets.get(id);
+    }
+
+    /**
+     * Returns a stamp to pass to {@link #putIfUnchanged(Pet, long)}. Take it before starting
+     * to read from the database.
+     */
+    synchronized long getWriteStamp() {
+        return mWriteStamp;
+    }
+
+    /**
+     * Add a pet that was read from the database, unless something was written since the
+     * given stamp was taken.
+     */
+    synchronized void putIfUnchanged(Pet pet, long writeStamp) {
+        if (writeStamp == mWriteStamp) {
+            mPets.put(pet.getId(), pet);
+        }
+    }
+
+    /**
+     * Add or replace a pet that was just written to the database.
+     */
+    synchronized void put(Pet pet) {
+        mWriteStamp++;
+        mPets.put(pet.getId(), pet);
+    }
+
+    /**
+     * Drop the pet with the given ID, for example after it was deleted.
+     */
+    public synchronized void remove(long id) {
+        mWriteStamp++;
+        mPets.remove(id);
+    }
+
+    /**
+     * Drop every pet, for example after a write that may have changed any number of them.
+     */
+    public synchronized void clear() {
+        mWriteStamp++;
+        mPets.evictAll();
+    }
+
+    /** Returns the number of lookups that found a pet */
+    public int hitCount() {
+        return mPets.hitCount();
+    }
+
+    /** Returns the number of lookups that didn't find a pet */
+    public int missCount() {
+        return mPets.missCount();
+    }
+
+    /** Returns the number of pets dropped to make room for others */
+    public int evictionCount() {
+        return mPets.evictionCount();
+    }
+
+    /** Returns the memory the cached pets take up, in bytes */
+    public int size() {
+        return mPets.size();
+    }
+
+    /** Returns the memory the cached pets may take up, in bytes */
+    public int maxSize() {
+        return mPets.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "PetCache[size=%d/%d bytes, hits=%d, misses=%d, evictions=%d]",
+                size(), maxSize(), hitCount(), missCount(), evictionCount());
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and applies the changes that are synced with the server.
+ *
+ * Local changes are logged in {@link PetDbHelper#CHANGE_LOG_TABLE_NAME} by triggers, so every
+ * way of writing pets is covered. They are sent in order of {@link PetDbHelper#COLUMN_SEQ} and
+ * removed from the log once the server acknowledges them. Changes pulled from the server are
+ * applied without being logged again, and the sequence number of the last one is kept in
+ * {@link PetDbHelper#SYNC_STATE_TABLE_NAME} so the next pull starts after it.
+ *
+ * Changes name pets by their row IDs, which are only unique on the device that gave them out,
+ * so a server is assumed to hold the pets of a single device. Everything pulled from it is
+ * then that device's own changes coming back, with IDs it has already given out. A pull with
+ * a higher ID must come from another device, whose pets would overwrite different pets with
+ * the same IDs here, so it is rejected. The one exception is restoring onto a device that has
+ * never had a pet, which takes on the server's IDs. That has to finish in one sync: once the
+ * device has pets, the rest of the server's IDs look like another device's.
+ *
+ * All methods must be called on a background thread.
+ */
+final class PetChangeLog {
+
+    /** The pet was added or edited */
+    static final int OP_UPSERT = 0;
+
+    /** The pet was deleted */
+    static final int OP_DELETE = 1;
+
+    /** Every pet with an ID up to and including the change's pet ID was deleted */
+    static final int OP_DELETE_UP_TO = 2;
+
+    /**
+     * A single change of a pet. For upserts it holds the pet's values as they are now, not as
+     * they were when the change was logged.
+     */
+    static final class Change {
+        long seq;
+        int op;
+        long petId;
+        String name;
+        String breed;
+        int gender;
+        int weight;
+    }
+
+    /**
+     * The oldest changes that haven't been acknowledged yet.
+     */
+    static final class Batch {
+
+        final List<Change> changes = new ArrayList<>();
+
+        /**
+         * Sequence number of the last change read. It can be past the last change in
+         * {@link #changes}, because upserts of pets that were purged since are left out; their
+         * deletes come later in the log.
+         */
+        long lastSeq;
+
+        /** Whether the log may hold more changes after this batch */
+        boolean more;
+    }
+
+    private PetChangeLog() {
+    }
+
+    /**
+     * Read the oldest logged changes, joined with the current values of the pets.
+     *
+     * @param limit maximum number of changes to read
+     */
+    static Batch readPending(SQLiteDatabase db, int limit) {
+        String sql = "SELECT c." + PetDbHelper.COLUMN_SEQ + ", c." + PetDbHelper.COLUMN_OP
+                + ", c." + PetDbHelper.COLUMN_PET_ID + ", p." + PetEntry.COLUMN_PET_NAME
+                + ", p." + PetEntry.COLUMN_PET_BREED + ", p." + PetEntry.COLUMN_PET_GENDER
+                + ", p." + PetEntry.COLUMN_PET_WEIGHT
+                + " FROM " + PetDbHelper.CHANGE_LOG_TABLE_NAME + " c"
+                + " LEFT JOIN " + PetEntry.TABLE_NAME + " p ON p." + PetEntry._ID
+                + " = c." + PetDbHelper.COLUMN_PET_ID + " AND c." + PetDbHelper.COLUMN_OP
+                + " = " + OP_UPSERT
+                + " ORDER BY c." + PetDbHelper.COLUMN_SEQ + " LIMIT " + limit;
+        Batch batch = new Batch();
+        Cursor cursor = DatabaseMetrics.rawQuery(db, PetDbHelper.CHANGE_LOG_TABLE_NAME, sql,
+                null, null);
+        try {
+            BreedInterner breeds = BreedInterner.forCurrentThread();
+            batch.more = cursor.getCount() == limit;
+            while (cursor.moveToNext()) {
+                batch.lastSeq = cursor.getLong(0);
+                int op = cursor.getInt(1);
+                if (op == OP_UPSERT && cursor.isNull(3)) {
+                    continue;
+                }
+                Change change = new Change();
+                change.seq = batch.lastSeq;
+                change.op = op;
+                change.petId = cursor.getLong(2);
+                if (op == OP_UPSERT) {
+                    change.name = cursor.getString(3);
+                    change.breed = breeds.read(cursor, 4);
+                    change.gender = cursor.getInt(5);
+                    change.weight = cursor.getInt(6);
+                }
+                batch.changes.add(change);
+            }
+        } finally {
+            cursor.close();
+        }
+        return batch;
+    }
+
+    /**
+     * Remove the changes the server has acknowledged. A pet changed again since it was sent
+     * has a newer change with a higher sequence number, which stays.
+     *
+     * @param seq sequence number of the last change the server has
+     * @return the number of changes removed
+     */
+    static int acknowledge(SQLiteDatabase db, long seq) {
+        return DatabaseMetrics.delete(db, PetDbHelper.CHANGE_LOG_TABLE_NAME,
+                PetDbHelper.COLUMN_SEQ + " <= ?", new String[] { String.valueOf(seq) });
+    }
+
+    /**
+     * Returns the sequence number of the last change pulled from the server.
+     */
+    static long getPulledSeq(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + PetDbHelper.COLUMN_PULLED_SEQ
+                + " FROM " + PetDbHelper.SYNC_STATE_TABLE_NAME, null);
+    }
+
+    /**
+     * Returns the highest pet ID ever given out on this device, including IDs of pets that
+     * were pulled, or 0 if there has never been a pet.
+     */
+    static long getLastPetId(SQLiteDatabase db) {
+        // AUTOINCREMENT keeps the highest ID in sqlite_sequence, even once its pet is purged
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence"
+                + " WHERE name = ?", new String[] { PetEntry.TABLE_NAME });
+    }
+
+    /**
+     * Apply changes pulled from the server in one transaction, and remember where the next
+     * pull starts.
+     *
+     * Local changes are pushed before pulling, so the server's changes win, except over a pet
+     * that was changed here again since the push: that change is newer and is pushed next
+     * time. An upsert brings back a pet that was deleted on its own, but not one deleted along
+     * with every other pet, since its row may already be purged.
+     *
+     * @param changes with sequence numbers of the server
+     * @param pulledSeq sequence number of the last change pulled
+     * @param restoring whether the device had never had a pet when the pull started, so it
+     *                  may take on pet IDs it hasn't given out
+     * @throws IllegalStateException if a change has a pet ID this device never gave out, and
+     *                               it isn't restoring. Nothing is applied then.
+     */
+    static void applyRemote(SQLiteDatabase db, List<Change> changes, long pulledSeq,
+            boolean restoring) {
+        long start = DatabaseMetrics.start();
+        db.beginTransaction();
+        try {
+            if (!restoring) {
+                long lastPetId = getLastPetId(db);
+                for (Change change : changes) {
+                    if (change.petId > lastPetId) {
+                        throw new IllegalStateException("Pulled pet " + change.petId
+                                + " was never on this device, is the server shared?");
+                    }
+                }
+            }
+
+            // Whatever the triggers log from here on is the server's own changes
+            long lastLocalSeq = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                    + PetDbHelper.COLUMN_SEQ + "), 0) FROM "
+                    + PetDbHelper.CHANGE_LOG_TABLE_NAME, null);
+            long deletedUpTo = DatabaseUtils.longForQuery(db, "SELECT "
+                    + PetDbHelper.COLUMN_DELETED_UP_TO + " FROM "
+                    + PetDbHelper.PURGE_STATE_TABLE_NAME, null);
+
+            // A pet changed here since the push has a change in the log that the server
+            // hasn't seen. The pulled change, often the push coming back, would overwrite it,
+            // and the triggers' log of that would replace it, so the pet is left alone and its
+            // change goes out with the next push.
+            ContentValues values = new ContentValues();
+            SQLiteStatement pending = db.compileStatement("SELECT COUNT(*) FROM "
+                    + PetDbHelper.CHANGE_LOG_TABLE_NAME + " WHERE "
+                    + PetDbHelper.COLUMN_PET_ID + " = ?");
+            try {
+                for (Change change : changes) {
+                    if (change.op != OP_DELETE_UP_TO) {
+                        pending.bindLong(1, change.petId);
+                        if (pending.simpleQueryForLong() > 0) {
+                            continue;
+                        }
+                    }
+                    deletedUpTo = applyChange(db, change, deletedUpTo, values);
+                }
+            } finally {
+                pending.close();
+            }
+
+            db.delete(PetDbHelper.CHANGE_LOG_TABLE_NAME, PetDbHelper.COLUMN_SEQ + " > ?",
+                    new String[] { String.valueOf(lastLocalSeq) });
+            db.execSQL("UPDATE " + PetDbHelper.SYNC_STATE_TABLE_NAME + " SET "
+                    + PetDbHelper.COLUMN_PULLED_SEQ + " = ?", new Object[] { pulledSeq });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        DatabaseMetrics.record("sync", PetEntry.TABLE_NAME, start, changes.size());
+    }
+
+    /**
+     * Apply one pulled change.
+     *
+     * @param deletedUpTo highest pet ID deleted along with every pet before it
+     * @param values reused for the pet's values
+     * @return the new highest pet ID deleted along with every pet before it
+     */
+    private static long applyChange(SQLiteDatabase db, Change change, long deletedUpTo,
+            ContentValues values) {
+        String[] idArgs = { String.valueOf(change.petId) };
+        if (change.op == OP_UPSERT) {
+            if (change.petId <= deletedUpTo) {
+                return deletedUpTo;
+            }
+            values.clear();
+            values.put(PetEntry.COLUMN_PET_NAME, change.name);
+            values.put(PetEntry.COLUMN_PET_BREED, change.breed);
+            values.put(PetEntry.COLUMN_PET_GENDER, change.gender);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, change.weight);
+            // An update keeps the photo, which isn't synced
+            if (db.update(PetEntry.TABLE_NAME, values, PetEntry._ID + " = ?", idArgs) == 0) {
+                values.put(PetEntry._ID, change.petId);
+                db.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+            }
+            db.delete(PetDbHelper.TOMBSTONE_TABLE_NAME, PetEntry._ID + " = ?", idArgs);
+        } else if (change.op == OP_DELETE) {
+            PetPurger.deletePet(db, change.petId);
+        } else if (change.op == OP_DELETE_UP_TO && change.petId > deletedUpTo) {
+            deletedUpTo = change.petId;
+            db.execSQL("UPDATE " + PetDbHelper.PURGE_STATE_TABLE_NAME + " SET "
+                    + PetDbHelper.COLUMN_DELETED_UP_TO + " = ?", idArgs);
+            db.delete(PetDbHelper.TOMBSTONE_TABLE_NAME, PetEntry._ID + " <= ?", idArgs);
+        }
+        return deletedUpTo;
+    }
+}
@@ -16,33 +16,234 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.support.v4.os.TraceCompat;
+import android.text.TextUtils;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 
 /**
  * Database helper for Pets app. Manages database creation and version management.
+ *
+ * There is one instance per process for the default shelter, shared by everything that reads
+ * or writes its pets. Every other shelter has a database file of its own, with the same
+ * schema, opened through {@link ShelterShards}. The database runs in write-ahead logging mode,
+ * so reads from the catalog can run on their own connections while the editor is writing,
+ * instead of waiting for the write to finish.
  */
 public class PetDbHelper extends SQLiteOpenHelper {
 
     public static final String LOG_TAG = PetDbHelper.class.getSimpleName();
 
-    /** Name of the database file */
+    /** Name of the database file of the default shelter */
     private static final String DATABASE_NAME = "shelter.db";
 
+    /** ID of the shelter whose pets the app shows, kept in {@link #DATABASE_NAME} */
+    public static final String DEFAULT_SHELTER_ID = "default";
+
+    /** Start and end of the names of the database files of the other shelters */
+    static final String SHELTER_DATABASE_PREFIX = "shelter_";
+    static final String SHELTER_DATABASE_SUFFIX = ".db";
+
     /**
      * Database version. If you change the database schema, you must increment the database version.
+     * Add a step for the new version to {@link PetMigrations} as well.
+     */
+    private static final int DATABASE_VERSION = 8;
+
+    /**
+     * Full-text index over the name and breed of every pet. It's an external content table, so
+     * it stores only the index and reads the text itself from the pets table. Each row's docid
+     * is the {@link PetEntry#_ID} of its pet.
+     */
+    static final String SEARCH_TABLE_NAME = "pets_fts";
+
+    /**
+     * IDs of pets that were deleted one at a time but are still in the pets table, until the
+     * {@link PetPurger} removes them.
+     */
+    static final String TOMBSTONE_TABLE_NAME = "pet_tombstones";
+
+    /**
+     * A single row holding {@link #COLUMN_DELETED_UP_TO}. Deleting every pet only moves that
+     * mark instead of touching the rows, which the {@link PetPurger} removes later.
+     */
+    static final String PURGE_STATE_TABLE_NAME = "pet_purge_state";
+
+    /** Every pet with an ID up to and including this one is deleted */
+    static final String COLUMN_DELETED_UP_TO = "deleted_up_to";
+
+    /**
+     * Selection that matches the pets that aren't deleted. It only leaves out rows, so queries
+     * that add it can still use the same indexes. The unary + keeps SQLite from reading pets
+     * by a range of IDs for it, which it would otherwise prefer over the index that matches a
+     * query's filter and sort order, leaving every matching row to be sorted.
      */
-    private static final int DATABASE_VERSION = 1;
+    static final String LIVE_SELECTION = "+" + PetEntry._ID + " > (SELECT " + COLUMN_DELETED_UP_TO
+            + " FROM " + PURGE_STATE_TABLE_NAME + ") AND " + PetEntry._ID + " NOT IN (SELECT "
+            + PetEntry._ID + " FROM " + TOMBSTONE_TABLE_NAME + ")";
+
+    /**
+     * View of the pets table without the deleted pets. Everything that reads pets reads them
+     * from here, so a deleted pet disappears as soon as its delete commits, even while its row
+     * is still waiting to be purged. SQLite merges the view into each query, so the indexes on
+     * the pets table still apply.
+     */
+    static final String LIVE_VIEW_NAME = "live_pets";
+
+    /**
+     * Pets changed since they were last sent to the server, filled in by triggers. Each pet
+     * has at most one row, for its latest change, and every change gets a higher
+     * {@link #COLUMN_SEQ} than the ones before it. See {@link PetChangeLog}.
+     */
+    static final String CHANGE_LOG_TABLE_NAME = "pet_changes";
+
+    /** Sequence number of a change, which only goes up */
+    static final String COLUMN_SEQ = "seq";
+
+    /** The pet that changed, or for {@link PetChangeLog#OP_DELETE_UP_TO} the highest ID */
+    static final String COLUMN_PET_ID = "pet_id";
+
+    /** What happened to the pet, one of the OP_ constants of {@link PetChangeLog} */
+    static final String COLUMN_OP = "op";
+
+    /** A single row holding {@link #COLUMN_PULLED_SEQ} */
+    static final String SYNC_STATE_TABLE_NAME = "pet_sync_state";
+
+    /** Sequence number of the last change pulled from the server */
+    static final String COLUMN_PULLED_SEQ = "pulled_seq";
+
+    /** Size of the page cache of the connection that does the writes, in KiB */
+    private static final int PAGE_CACHE_SIZE_KB = 4096;
+
+    /** Number of compiled statements each connection keeps around for reuse */
+    private static final int STATEMENT_CACHE_SIZE = 50;
+
+    /** The one instance of this class, created on first use */
+    private static PetDbHelper sInstance;
+
+    /** Whether the database was opened yet, so the first open can be traced */
+    private volatile boolean mOpened;
+
+    /**
+     * Returns the database helper for this process, creating it if needed. The database itself
+     * isn't opened until it's first used.
+     *
+     * @param context of the app
+     */
+    public static synchronized PetDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            TraceCompat.beginSection("PetDbHelper.create");
+            try {
+                sInstance = new PetDbHelper(context.getApplicationContext(), DATABASE_NAME);
+            } finally {
+                TraceCompat.endSection();
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns a new helper for the database of a shelter other than the default one. Unlike
+     * the helper of {@link #getInstance(Context)} it isn't shared, so the caller closes it;
+     * {@link ShelterShards} keeps these helpers.
+     *
+     * @param context of the app
+     * @param shelterId letters, digits, '-' and '_' only, since it's part of a file name
+     * @throws IllegalArgumentException if the shelter ID can't be used
+     */
+    static PetDbHelper forShelter(Context context, String shelterId) {
+        if (DEFAULT_SHELTER_ID.equals(shelterId) || !isValidShelterId(shelterId)) {
+            throw new IllegalArgumentException("Invalid shelter ID " + shelterId);
+        }
+        return new PetDbHelper(context.getApplicationContext(),
+                SHELTER_DATABASE_PREFIX + shelterId + SHELTER_DATABASE_SUFFIX);
+    }
+
+    /**
+     * Returns whether a shelter ID can be part of the name of a database file.
+     */
+    static boolean isValidShelterId(String shelterId) {
+        return shelterId.matches("[A-Za-z0-9_-]+");
+    }
 
     /**
      * Constructs a new instance of {@link PetDbHelper}.
      *
      * @param context of the app
+     * @param name of the database file
      */
-    public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    private PetDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+
+        // With write-ahead logging the framework keeps a pool of read-only connections next to
+        // the one that writes, so readers see the last committed state without taking a lock.
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public SQLiteDatabase getWritableDatabase() {
+        if (mOpened) {
+            return super.getWritableDatabase();
+        }
+        return open(true);
+    }
+
+    @Override
+    public SQLiteDatabase getReadableDatabase() {
+        if (mOpened) {
+            return super.getReadableDatabase();
+        }
+        return open(false);
+    }
+
+    /**
+     * Open the database for the first time, which also creates or upgrades it. The time it
+     * takes is part of the app's start, so it's traced and added to the metrics.
+     */
+    private synchronized SQLiteDatabase open(boolean writable) {
+        TraceCompat.beginSection("PetDbHelper.open");
+        long start = DatabaseMetrics.start();
+        try {
+            SQLiteDatabase db = writable ? super.getWritableDatabase()
+                    : super.getReadableDatabase();
+            if (!mOpened) {
+                mOpened = true;
+                DatabaseMetrics.record("open", PetEntry.TABLE_NAME, start, 0);
+            }
+            return db;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * This is called when the database connection is being configured, before it is created
+     * or upgraded.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+
+        // These settings apply to the primary connection, which is the one all writes go
+        // through. In WAL mode NORMAL only syncs at checkpoints, which is still safe against
+        // corruption but avoids an fsync on every commit.
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        // A negative cache size is in KiB rather than pages
+        db.execSQL("PRAGMA cache_size = -" + PAGE_CACHE_SIZE_KB);
+        db.setMaxSqlCacheSize(STATEMENT_CACHE_SIZE);
+
+        // Auto-vacuum only takes effect on a VACUUM once a table exists, and the framework has
+        // made its metadata table by now. A new database is that table and nothing else, so
+        // the VACUUM is instant; an existing one is left as it is, see PetPurger#vacuumStep.
+        if (db.getVersion() == 0 && !db.isReadOnly()
+                && DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                        != PetPurger.AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
     }
 
     /**
@@ -56,17 +257,158 @@ public class PetDbHelper extends SQLiteOpenHelper {
                 + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
                 + PetEntry.COLUMN_PET_BREED + " TEXT, "
                 + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
-                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
+                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, "
+                + PetEntry.COLUMN_PET_PHOTO + " TEXT);";
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_PETS_TABLE);
+
+        createSearchIndex(db);
+        createQueryIndexes(db);
+        createTombstones(db);
+        createChangeLog(db);
+        PetMigrations.createJobTable(db);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. Only quick schema changes are
+     * made here; work over the existing rows is left to run in the background, see
+     * {@link PetMigrations}.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        PetMigrations.upgrade(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Create the change log, the triggers that fill it in and the sync state.
+     *
+     * Each trigger removes the pet's earlier change before logging the new one, so the log
+     * grows with the number of changed pets rather than the number of changes. They don't
+     * use INSERT OR REPLACE for that, because the conflict clause of the statement that fires
+     * a trigger overrides the clauses inside it.
+     */
+    static void createChangeLog(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + CHANGE_LOG_TABLE_NAME + " ("
+                + COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_PET_ID + " INTEGER NOT NULL UNIQUE, "
+                + COLUMN_OP + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + SYNC_STATE_TABLE_NAME + " ("
+                + COLUMN_PULLED_SEQ + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + SYNC_STATE_TABLE_NAME + " VALUES (0)");
+
+        String petId = "new." + PetEntry._ID;
+        db.execSQL("CREATE TRIGGER pet_changes_after_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + logChange(petId, PetChangeLog.OP_UPSERT));
+        db.execSQL("CREATE TRIGGER pet_changes_after_update AFTER UPDATE ON "
+                + PetEntry.TABLE_NAME + logChange(petId, PetChangeLog.OP_UPSERT));
+        db.execSQL("CREATE TRIGGER pet_changes_after_tombstone AFTER INSERT ON "
+                + TOMBSTONE_TABLE_NAME + logChange(petId, PetChangeLog.OP_DELETE));
+        // Deleting every pet replaces the changes of all the pets it covers
+        db.execSQL("CREATE TRIGGER pet_changes_after_delete_all AFTER UPDATE OF "
+                + COLUMN_DELETED_UP_TO + " ON " + PURGE_STATE_TABLE_NAME
+                + " WHEN new." + COLUMN_DELETED_UP_TO + " > old." + COLUMN_DELETED_UP_TO
+                + " BEGIN DELETE FROM " + CHANGE_LOG_TABLE_NAME + " WHERE " + COLUMN_PET_ID
+                + " <= new." + COLUMN_DELETED_UP_TO + "; INSERT INTO " + CHANGE_LOG_TABLE_NAME
+                + " (" + COLUMN_PET_ID + ", " + COLUMN_OP + ") VALUES (new."
+                + COLUMN_DELETED_UP_TO + ", " + PetChangeLog.OP_DELETE_UP_TO + "); END");
+    }
+
+    /**
+     * Returns the body of a trigger that logs a change of the pet with the given ID.
+     */
+    private static String logChange(String petId, int op) {
+        return " BEGIN DELETE FROM " + CHANGE_LOG_TABLE_NAME
+                + " WHERE " + COLUMN_PET_ID + " = " + petId + ";"
+                + " INSERT INTO " + CHANGE_LOG_TABLE_NAME + " (" + COLUMN_PET_ID + ", "
+                + COLUMN_OP + ") VALUES (" + petId + ", " + op + "); END";
+    }
+
+    /**
+     * Create the tables that mark pets as deleted, and the view of the pets that aren't.
+     */
+    static void createTombstones(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TOMBSTONE_TABLE_NAME + " ("
+                + PetEntry._ID + " INTEGER PRIMARY KEY)");
+        db.execSQL("CREATE TABLE " + PURGE_STATE_TABLE_NAME + " ("
+                + COLUMN_DELETED_UP_TO + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + PURGE_STATE_TABLE_NAME + " VALUES (0)");
+        createLiveView(db);
+    }
+
+    /**
+     * Create {@link #LIVE_VIEW_NAME} from the current {@link #LIVE_SELECTION}.
+     */
+    static void createLiveView(SQLiteDatabase db) {
+        db.execSQL("CREATE VIEW " + LIVE_VIEW_NAME + " AS SELECT * FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + LIVE_SELECTION);
+    }
+
+    /**
+     * Columns of an index for every filter and sort order a {@link PetQuery} supports.
+     *
+     * Each filter column leads an index that continues with a sort column, so filtering on
+     * one value and sorting by the other reads the rows already in order. Every index ends in
+     * the rowid implicitly, which is the tie breaker of every sort order, so the single column
+     * indexes on the filters also serve the default order by {@link PetEntry#_ID}.
+     */
+    static final String[][] QUERY_INDEXES = {
+            { PetEntry.COLUMN_PET_NAME },
+            { PetEntry.COLUMN_PET_WEIGHT },
+            { PetEntry.COLUMN_PET_GENDER },
+            { PetEntry.COLUMN_PET_BREED },
+            { PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_NAME },
+            { PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT },
+            { PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_NAME },
+            { PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_WEIGHT } };
+
+    /**
+     * Create every index in {@link #QUERY_INDEXES}.
+     */
+    private static void createQueryIndexes(SQLiteDatabase db) {
+        for (String[] columns : QUERY_INDEXES) {
+            createIndex(db, columns);
+        }
+    }
+
+    /**
+     * Create an index on the pets table named after its columns, for example
+     * "pets_gender_weight", unless it exists already.
+     */
+    static void createIndex(SQLiteDatabase db, String... columns) {
+        String name = PetEntry.TABLE_NAME + "_" + TextUtils.join("_", columns);
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + name + " ON " + PetEntry.TABLE_NAME
+                + " (" + TextUtils.join(", ", columns) + ")");
+    }
+
+    /**
+     * Create the full-text index over pet names and breeds, and the triggers that keep it in
+     * step with the pets table.
+     */
+    static void createSearchIndex(SQLiteDatabase db) {
+        // The prefix option adds indexes for 2 and 3 letter prefixes, so the short prefixes a
+        // user types first are answered from the index instead of by scanning terms
+        db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE_NAME + " USING fts4("
+                + "content=\"" + PetEntry.TABLE_NAME + "\", "
+                + "prefix=\"2,3\", "
+                + PetEntry.COLUMN_PET_NAME + ", "
+                + PetEntry.COLUMN_PET_BREED + ")");
+
+        // The old text must be removed from the index before the row changes, and the new text
+        // added after it changed
+        String deleteOld = " BEGIN DELETE FROM " + SEARCH_TABLE_NAME
+                + " WHERE docid = old." + PetEntry._ID + "; END";
+        String insertNew = " BEGIN INSERT INTO " + SEARCH_TABLE_NAME
+                + "(docid, " + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ")"
+                + " VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME
+                + ", new." + PetEntry.COLUMN_PET_BREED + "); END";
+        db.execSQL("CREATE TRIGGER pets_fts_before_update BEFORE UPDATE ON "
+                + PetEntry.TABLE_NAME + deleteOld);
+        db.execSQL("CREATE TRIGGER pets_fts_before_delete BEFORE DELETE ON "
+                + PetEntry.TABLE_NAME + deleteOld);
+        db.execSQL("CREATE TRIGGER pets_fts_after_update AFTER UPDATE ON "
+                + PetEntry.TABLE_NAME + insertNew);
+        db.execSQL("CREATE TRIGGER pets_fts_after_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + insertNew);
     }
 }
\ No newline at end of file
@@ -0,0 +1,625 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Writes a stream of pets into the database in bulk.
+ *
+ * Rows are read one at a time from an {@link Iterator}, so a source file never has to fit in
+ * memory. They are written through a single compiled INSERT statement, and committed in chunks
+ * of {@link #CHUNK_SIZE} rows so that there is one transaction per chunk instead of one per pet.
+ */
+public final class PetImporter {
+
+    public static final String LOG_TAG = PetImporter.class.getSimpleName();
+
+    /** Number of rows written in each transaction */
+    public static final int CHUNK_SIZE = 500;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Number of bytes read from the start of a file to tell its format */
+    private static final int HEAD_SIZE = 64;
+
+    /**
+     * Told how many rows have been imported so far, after each chunk is committed.
+     */
+    public interface ProgressListener {
+        void onProgress(int rowsImported);
+    }
+
+    // This class only has static methods, so it should never be instantiated.
+    private PetImporter() {}
+
+    /**
+     * Insert every row from the iterator. Rows without a name are skipped. Chunks that were
+     * committed before an error stay in the database.
+     *
+     * @param db to write to, on the writer thread
+     * @param rows to insert, keyed by the column names in {@link PetEntry}. The iterator may
+     *             reuse the same {@link ContentValues} for every row.
+     * @param listener told about progress on the calling thread, or null
+     * @return the number of rows inserted
+     */
+    static int importRows(SQLiteDatabase db, Iterator<ContentValues> rows,
+            ProgressListener listener) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME + " ("
+                + PetEntry.COLUMN_PET_NAME + ", "
+                + PetEntry.COLUMN_PET_BREED + ", "
+                + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)");
+        int imported = 0;
+        int skipped = 0;
+        try {
+            while (rows.hasNext()) {
+                // Each chunk is recorded as one insert of many rows
+                long start = DatabaseMetrics.start();
+                int chunkImported = imported;
+                db.beginTransactionNonExclusive();
+                try {
+                    for (int i = 0; i < CHUNK_SIZE && rows.hasNext(); i++) {
+                        if (bindRow(insert, rows.next())) {
+                            insert.executeInsert();
+                            imported++;
+                        } else {
+                            skipped++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                DatabaseMetrics.record("insert", PetEntry.TABLE_NAME, start,
+                        imported - chunkImported);
+                if (listener != null) {
+                    listener.onProgress(imported);
+                }
+            }
+        } finally {
+            insert.close();
+        }
+
+        if (skipped > 0) {
+            Log.w(LOG_TAG, "Skipped " + skipped + " pets without a name");
+        }
+        return imported;
+    }
+
+    /**
+     * Bind the values of one pet to the compiled INSERT statement.
+     *
+     * @return false if the pet has no name and can't be inserted
+     */
+    private static boolean bindRow(SQLiteStatement insert, ContentValues values) {
+        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+        if (TextUtils.isEmpty(name)) {
+            return false;
+        }
+        insert.clearBindings();
+        insert.bindString(1, name);
+        String breed = values.getAsString(PetEntry.COLUMN_PET_BREED);
+        if (breed != null) {
+            insert.bindString(2, breed);
+        }
+        Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        insert.bindLong(3, gender != null ? gender : PetEntry.GENDER_UNKNOWN);
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        insert.bindLong(4, weight != null ? weight : 0);
+        return true;
+    }
+
+    /**
+     * Returns an iterator over pets read from a CSV file. The first line must be a header
+     * naming the columns, using the column names in {@link PetEntry}; unknown columns are
+     * ignored. Fields may be quoted, but may not contain line breaks. The gender column can
+     * hold either a number or "male"/"female".
+     *
+     * The stream is closed once the last row has been read or the import is done.
+     */
+    public static Iterator<ContentValues> fromCsv(InputStream in) {
+        return new CsvPetIterator(in);
+    }
+
+    /**
+     * Returns an iterator over pets read from a JSON array of objects, each keyed by the
+     * column names in {@link PetEntry}. The stream is closed once the last row has been read or
+     * the import is done.
+     */
+    public static Iterator<ContentValues> fromJson(InputStream in) {
+        return new JsonPetIterator(in);
+    }
+
+    /**
+     * Returns an iterator over pets read from a {@link PetArchive} file. The file is memory
+     * mapped and its checksum verified when the first row is read, so nothing is imported from
+     * a damaged file. The stream is closed once the last row has been read or the import is
+     * done.
+     */
+    public static Iterator<ContentValues> fromArchive(FileInputStream in) {
+        return new ArchivePetIterator(in);
+    }
+
+    /**
+     * Opens a file picked by the user and returns an iterator over its pets, choosing the
+     * format by the file's first bytes or its type. Picked files are usually content URIs,
+     * whose paths don't end in the file's extension. Opening a content URI can wait on another
+     * app, so this must be called on a background thread.
+     *
+     * The file is closed once the last row has been read or the import is done.
+     *
+     * @throws IOException if the file can't be opened or read, or is an archive that can't be
+     *                     memory mapped
+     */
+    public static Iterator<ContentValues> fromFile(ContentResolver resolver, Uri uri)
+            throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Unable to open " + uri);
+        }
+
+        byte[] head = new byte[HEAD_SIZE];
+        int length;
+        try {
+            if (!(in instanceof FileInputStream) && !in.markSupported()) {
+                in = new BufferedInputStream(in);
+            }
+            length = peek(in, head);
+        } catch (IOException e) {
+            close(in);
+            throw e;
+        }
+
+        if (PetArchive.isArchive(head, length)) {
+            // Archives are memory mapped, which needs a file rather than any stream
+            if (!(in instanceof FileInputStream)) {
+                close(in);
+                throw new IOException("Unable to map " + uri);
+            }
+            return fromArchive((FileInputStream) in);
+        }
+        String type = resolver.getType(uri);
+        if ((type != null && type.contains("json")) || isJson(head, length)) {
+            return fromJson(in);
+        }
+        return fromCsv(in);
+    }
+
+    /**
+     * Read the first bytes of a stream without consuming them. A file is read at its current
+     * position without moving it, and any other stream must support mark and reset.
+     *
+     * @return the number of bytes read, fewer than the buffer holds if the stream is shorter
+     */
+    private static int peek(InputStream in, byte[] buffer) throws IOException {
+        if (in instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) in).getChannel();
+            ByteBuffer bytes = ByteBuffer.wrap(buffer);
+            long position = channel.position();
+            while (bytes.hasRemaining()) {
+                int read = channel.read(bytes, position + bytes.position());
+                if (read < 0) {
+                    break;
+                }
+            }
+            return bytes.position();
+        }
+
+        int length = 0;
+        in.mark(buffer.length);
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        in.reset();
+        return length;
+    }
+
+    /**
+     * Returns true if the given bytes start like JSON, with an array or object after any byte
+     * order mark and whitespace. A CSV file starts with its header row instead.
+     */
+    private static boolean isJson(byte[] head, int length) {
+        int i = 0;
+        if (length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB
+                && (head[2] & 0xFF) == 0xBF) {
+            i = 3;
+        }
+        while (i < length && Character.isWhitespace(head[i])) {
+            i++;
+        }
+        return i < length && (head[i] == '[' || head[i] == '{');
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to close import file", e);
+        }
+    }
+
+    /**
+     * Returns an iterator over made-up pets, for filling the database with test data.
+     *
+     * @param count number of pets to make
+     */
+    public static Iterator<ContentValues> dummyPets(int count) {
+        return new DummyPetIterator(count);
+    }
+
+    /**
+     * Parse a gender from a number or a word like "male".
+     */
+    private static int parseGender(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return PetEntry.GENDER_UNKNOWN;
+        }
+        if ("male".equalsIgnoreCase(value) || "m".equalsIgnoreCase(value)) {
+            return PetEntry.GENDER_MALE;
+        }
+        if ("female".equalsIgnoreCase(value) || "f".equalsIgnoreCase(value)) {
+            return PetEntry.GENDER_FEMALE;
+        }
+        try {
+            int gender = Integer.parseInt(value);
+            if (gender == PetEntry.GENDER_MALE || gender == PetEntry.GENDER_FEMALE) {
+                return gender;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to unknown
+        }
+        return PetEntry.GENDER_UNKNOWN;
+    }
+
+    /**
+     * Parse a weight, treating anything that isn't a whole number as 0.
+     */
+    private static int parseWeight(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Base class for iterators that read ahead one row from a stream.
+     */
+    private abstract static class StreamPetIterator implements Iterator<ContentValues>,
+            Closeable {
+
+        /** Reused for every row */
+        final ContentValues mValues = new ContentValues();
+
+        private boolean mHasNext;
+        private boolean mReadAhead;
+        private boolean mClosed;
+
+        /**
+         * Read the next row into {@link #mValues}.
+         *
+         * @return false at the end of the stream
+         */
+        abstract boolean readRow() throws IOException;
+
+        abstract void closeStream() throws IOException;
+
+        @Override
+        public boolean hasNext() {
+            if (!mReadAhead) {
+                mReadAhead = true;
+                try {
+                    mValues.clear();
+                    mHasNext = !mClosed && readRow();
+                } catch (IOException e) {
+                    close();
+                    throw new IllegalStateException("Unable to read pets", e);
+                }
+                if (!mHasNext) {
+                    close();
+                }
+            }
+            return mHasNext;
+        }
+
+        @Override
+        public ContentValues next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mReadAhead = false;
+            return mValues;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                closeStream();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Unable to close import stream", e);
+            }
+        }
+    }
+
+    /**
+     * Reads pets from CSV, one line at a time.
+     */
+    private static class CsvPetIterator extends StreamPetIterator {
+
+        private final BufferedReader mReader;
+        private final ArrayList<String> mFields = new ArrayList<>();
+        private final StringBuilder mField = new StringBuilder();
+
+        /** Index of each known column in a line, or -1 if the file doesn't have it */
+        private int mNameIndex = -1;
+        private int mBreedIndex = -1;
+        private int mGenderIndex = -1;
+        private int mWeightIndex = -1;
+        private boolean mHeaderRead;
+
+        CsvPetIterator(InputStream in) {
+            mReader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        }
+
+        @Override
+        boolean readRow() throws IOException {
+            if (!mHeaderRead) {
+                mHeaderRead = true;
+                String header = mReader.readLine();
+                if (header == null) {
+                    return false;
+                }
+                splitLine(header);
+                for (int i = 0; i < mFields.size(); i++) {
+                    String column = mFields.get(i).trim();
+                    if (PetEntry.COLUMN_PET_NAME.equalsIgnoreCase(column)) {
+                        mNameIndex = i;
+                    } else if (PetEntry.COLUMN_PET_BREED.equalsIgnoreCase(column)) {
+                        mBreedIndex = i;
+                    } else if (PetEntry.COLUMN_PET_GENDER.equalsIgnoreCase(column)) {
+                        mGenderIndex = i;
+                    } else if (PetEntry.COLUMN_PET_WEIGHT.equalsIgnoreCase(column)) {
+                        mWeightIndex = i;
+                    }
+                }
+            }
+
+            String line;
+            do {
+                line = mReader.readLine();
+                if (line == null) {
+                    return false;
+                }
+            } while (line.trim().isEmpty());
+
+            splitLine(line);
+            mValues.put(PetEntry.COLUMN_PET_NAME, field(mNameIndex));
+            mValues.put(PetEntry.COLUMN_PET_BREED, field(mBreedIndex));
+            mValues.put(PetEntry.COLUMN_PET_GENDER, parseGender(field(mGenderIndex)));
+            mValues.put(PetEntry.COLUMN_PET_WEIGHT, parseWeight(field(mWeightIndex)));
+            return true;
+        }
+
+        @Override
+        void closeStream() throws IOException {
+            mReader.close();
+        }
+
+        private String field(int index) {
+            if (index < 0 || index >= mFields.size()) {
+                return null;
+            }
+            String value = mFields.get(index).trim();
+            return value.isEmpty() ? null : value;
+        }
+
+        /**
+         * Split a line into {@link #mFields}, honouring double quotes.
+         */
+        private void splitLine(String line) {
+            mFields.clear();
+            mField.setLength(0);
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"') {
+                        if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                            // A doubled quote inside a quoted field is a literal quote
+                            mField.append('"');
+                            i++;
+                        } else {
+                            quoted = false;
+                        }
+                    } else {
+                        mField.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    mFields.add(mField.toString());
+                    mField.setLength(0);
+                } else {
+                    mField.append(c);
+                }
+            }
+            mFields.add(mField.toString());
+        }
+    }
+
+    /**
+     * Reads pets from a JSON array, one object at a time.
+     */
+    private static class JsonPetIterator extends StreamPetIterator {
+
+        private final JsonReader mReader;
+        private boolean mArrayStarted;
+
+        JsonPetIterator(InputStream in) {
+            mReader = new JsonReader(new InputStreamReader(in, UTF_8));
+        }
+
+        @Override
+        boolean readRow() throws IOException {
+            if (!mArrayStarted) {
+                mArrayStarted = true;
+                mReader.beginArray();
+            }
+            if (!mReader.hasNext()) {
+                mReader.endArray();
+                return false;
+            }
+
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String key = mReader.nextName();
+                if (mReader.peek() == JsonToken.NULL) {
+                    mReader.nextNull();
+                } else if (PetEntry.COLUMN_PET_NAME.equals(key)) {
+                    mValues.put(PetEntry.COLUMN_PET_NAME, mReader.nextString());
+                } else if (PetEntry.COLUMN_PET_BREED.equals(key)) {
+                    mValues.put(PetEntry.COLUMN_PET_BREED, mReader.nextString());
+                } else if (PetEntry.COLUMN_PET_GENDER.equals(key)) {
+                    mValues.put(PetEntry.COLUMN_PET_GENDER, parseGender(mReader.nextString()));
+                } else if (PetEntry.COLUMN_PET_WEIGHT.equals(key)) {
+                    mValues.put(PetEntry.COLUMN_PET_WEIGHT, parseWeight(mReader.nextString()));
+                } else {
+                    mReader.skipValue();
+                }
+            }
+            mReader.endObject();
+            return true;
+        }
+
+        @Override
+        void closeStream() throws IOException {
+            mReader.close();
+        }
+    }
+
+    /**
+     * Reads pets from an archive, mapping the file on the first read.
+     */
+    private static class ArchivePetIterator extends StreamPetIterator {
+
+        private final FileInputStream mIn;
+        private PetArchive.Reader mReader;
+
+        ArchivePetIterator(FileInputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        boolean readRow() throws IOException {
+            if (mReader == null) {
+                mReader = new PetArchive.Reader(mIn.getChannel());
+            }
+            return mReader.readPet(mValues);
+        }
+
+        @Override
+        void closeStream() throws IOException {
+            mIn.close();
+        }
+    }
+
+    /**
+     * Makes up pets from a few lists of names and breeds.
+     */
+    private static class DummyPetIterator implements Iterator<ContentValues> {
+
+        private static final String[] NAMES = { "Toto", "Binx", "Molly", "Buddy", "Daisy",
+                "Max", "Luna", "Charlie", "Bella", "Rocky", "Coco", "Milo", "Nala", "Oscar" };
+
+        private static final String[] BREEDS = { "Terrier", "Tabby", "Beagle", "Siamese",
+                "Labrador", "Persian", "Poodle", "Maine Coon", "Bulldog", "Mixed breed" };
+
+        private final int mCount;
+        private final Random mRandom = new Random();
+        private final ContentValues mValues = new ContentValues();
+        private int mMade;
+
+        DummyPetIterator(int count) {
+            mCount = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mMade < mCount;
+        }
+
+        @Override
+        public ContentValues next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mMade++;
+            mValues.put(PetEntry.COLUMN_PET_NAME, NAMES[mRandom.nextInt(NAMES.length)]);
+            mValues.put(PetEntry.COLUMN_PET_BREED, BREEDS[mRandom.nextInt(BREEDS.length)]);
+            mValues.put(PetEntry.COLUMN_PET_GENDER, mRandom.nextInt(3));
+            mValues.put(PetEntry.COLUMN_PET_WEIGHT, 1 + mRandom.nextInt(40));
+            return mValues;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
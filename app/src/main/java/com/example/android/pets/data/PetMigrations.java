@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Upgrades the database from any earlier version, one version at a time.
+ *
+ * An upgrade runs inside {@link PetDbHelper#onUpgrade(SQLiteDatabase, int, int)}, in one
+ * transaction, on whichever thread opens the database first. So every {@link Migration} only
+ * makes changes whose cost doesn't depend on the number of pets, such as creating tables and
+ * triggers or adding a column. Work over the existing rows, like filling an index or a new
+ * table, is queued as a {@link Job} instead.
+ *
+ * Jobs run later on the writer thread of the {@link PetRepository}, a chunk per transaction,
+ * so other writes get in between. Each job's progress is saved with every chunk in
+ * {@link #TABLE_NAME}, and a job that was cut short by the process stopping goes on from
+ * there the next time. Until a job is done the app works in a degraded way: queries run
+ * without the indexes still to be built, and search falls back to a slower scan while the
+ * search index is being filled.
+ *
+ * All methods must be called on a background thread, with the writable database.
+ */
+final class PetMigrations {
+
+    public static final String LOG_TAG = PetMigrations.class.getSimpleName();
+
+    /** Jobs left by upgrades that haven't finished yet */
+    static final String TABLE_NAME = "pet_migration_jobs";
+
+    /** Name of the job, one of the JOB_ constants */
+    private static final String COLUMN_JOB = "job";
+
+    /** How far the job got */
+    private static final String COLUMN_POSITION = "position";
+
+    /** Position at which the job is done */
+    private static final String COLUMN_END = "end_position";
+
+    /** Fills the search index with the pets that were there before it */
+    static final String JOB_SEARCH_INDEX = "search_index";
+
+    /** Builds the indexes behind the filters and sort orders, one per chunk */
+    static final String JOB_QUERY_INDEXES = "query_indexes";
+
+    /** Logs the pets that were there before the change log, so the first sync sends them */
+    static final String JOB_CHANGE_LOG = "change_log";
+
+    /** Number of rows a job handles per chunk */
+    private static final int ROWS_PER_CHUNK = 5000;
+
+    /**
+     * Changes the schema from the version before {@link #version} to that version.
+     */
+    private abstract static class Migration {
+
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        /**
+         * Make the changes. Must not do work per row; queue a job with
+         * {@link #queue(SQLiteDatabase, String)} for that.
+         */
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * Work over existing rows, split into chunks.
+     */
+    private abstract static class Job {
+
+        final String name;
+
+        Job(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the position at which the job is done. Called once, when the job is queued.
+         */
+        abstract long getEnd(SQLiteDatabase db);
+
+        /**
+         * Do one chunk of the job, inside a transaction.
+         *
+         * @param position how far the job got
+         * @param end position at which the job is done
+         * @return the new position
+         */
+        abstract long runChunk(SQLiteDatabase db, long position, long end);
+    }
+
+    /** Every migration, in order of version */
+    private static final Migration[] MIGRATIONS = {
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // The triggers index new and changed pets from here on
+                    PetDbHelper.createSearchIndex(db);
+                    queue(db, JOB_SEARCH_INDEX);
+                }
+            },
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    queue(db, JOB_QUERY_INDEXES);
+                }
+            },
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    PetDbHelper.createTombstones(db);
+                }
+            },
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Adding a column with no default doesn't touch the rows. The live pets
+                    // view picks it up by itself.
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.COLUMN_PET_PHOTO + " TEXT");
+                }
+            },
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // The triggers log new changes from here on
+                    PetDbHelper.createChangeLog(db);
+                    queue(db, JOB_CHANGE_LOG);
+                }
+            },
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Version 7 only adds the table of jobs, which every upgrade creates
+                }
+            },
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // A view is only its query, so replacing it doesn't touch the rows
+                    db.execSQL("DROP VIEW " + PetDbHelper.LIVE_VIEW_NAME);
+                    PetDbHelper.createLiveView(db);
+                }
+            } };
+
+    /** Every job a migration can queue */
+    private static final Job[] JOBS = {
+            new Job(JOB_SEARCH_INDEX) {
+                @Override
+                long getEnd(SQLiteDatabase db) {
+                    // Pets added later are indexed by the triggers
+                    return getLastId(db);
+                }
+
+                @Override
+                long runChunk(SQLiteDatabase db, long position, long end) {
+                    long last = getChunkEnd(db, PetEntry.TABLE_NAME, position, end);
+                    // An external content index is filled like any other, a range of rows at
+                    // a time. A pet that changed since the upgrade was indexed by the
+                    // triggers already, and has a row in the index's table of document sizes.
+                    db.execSQL("INSERT INTO " + PetDbHelper.SEARCH_TABLE_NAME + " (docid, "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED
+                            + ") SELECT " + PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME
+                            + ", " + PetEntry.COLUMN_PET_BREED
+                            + " FROM " + PetEntry.TABLE_NAME
+                            + " WHERE " + PetEntry._ID + " > " + position
+                            + " AND " + PetEntry._ID + " <= " + last
+                            + " AND NOT EXISTS (SELECT 1 FROM " + PetDbHelper.SEARCH_TABLE_NAME
+                            + "_docsize WHERE docid = " + PetEntry._ID + ")"
+                            + " ORDER BY " + PetEntry._ID);
+                    return last;
+                }
+            },
+            new Job(JOB_QUERY_INDEXES) {
+                @Override
+                long getEnd(SQLiteDatabase db) {
+                    return PetDbHelper.QUERY_INDEXES.length;
+                }
+
+                @Override
+                long runChunk(SQLiteDatabase db, long position, long end) {
+                    // SQLite builds an index in one statement that sorts the whole table, so
+                    // unlike the other jobs this chunk grows with the pets: seconds for a
+                    // million of them. Other writes still get in between the indexes.
+                    PetDbHelper.createIndex(db, PetDbHelper.QUERY_INDEXES[(int) position]);
+                    return position + 1;
+                }
+            },
+            new Job(JOB_CHANGE_LOG) {
+                @Override
+                long getEnd(SQLiteDatabase db) {
+                    // Pets added later are logged by the triggers
+                    return getLastId(db);
+                }
+
+                @Override
+                long runChunk(SQLiteDatabase db, long position, long end) {
+                    long last = getChunkEnd(db, PetDbHelper.LIVE_VIEW_NAME, position, end);
+                    // A pet that changed since the upgrade is logged already, with a newer
+                    // change.
+                    db.execSQL("INSERT OR IGNORE INTO " + PetDbHelper.CHANGE_LOG_TABLE_NAME
+                            + " (" + PetDbHelper.COLUMN_PET_ID + ", " + PetDbHelper.COLUMN_OP
+                            + ") SELECT " + PetEntry._ID + ", " + PetChangeLog.OP_UPSERT
+                            + " FROM " + PetDbHelper.LIVE_VIEW_NAME
+                            + " WHERE " + PetEntry._ID + " > " + position
+                            + " AND " + PetEntry._ID + " <= " + last
+                            + " ORDER BY " + PetEntry._ID);
+                    return last;
+                }
+            } };
+
+    private PetMigrations() {
+    }
+
+    /**
+     * Returns the highest pet ID, or 0 if there are no pets.
+     */
+    private static long getLastId(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + PetEntry._ID + "), 0) FROM "
+                + PetEntry.TABLE_NAME, null);
+    }
+
+    /**
+     * Returns the ID a chunk of rows ends at, so that it holds {@link #ROWS_PER_CHUNK} rows of
+     * the table, or the end of the job if fewer are left.
+     *
+     * @param position ID the last chunk ended at
+     * @param end ID the job ends at
+     */
+    private static long getChunkEnd(SQLiteDatabase db, String table, long position, long end) {
+        // Only one upper bound, so the scan of the rowid stops at the chunk's end
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + PetEntry._ID + "), "
+                + end + ") FROM (SELECT " + PetEntry._ID + " FROM " + table
+                + " WHERE " + PetEntry._ID + " > " + position
+                + " AND " + PetEntry._ID + " <= " + end
+                + " ORDER BY " + PetEntry._ID + " LIMIT " + ROWS_PER_CHUNK + ")", null);
+    }
+
+    /**
+     * Create the table of jobs left by upgrades.
+     */
+    static void createJobTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                + COLUMN_JOB + " TEXT PRIMARY KEY, "
+                + COLUMN_POSITION + " INTEGER NOT NULL, "
+                + COLUMN_END + " INTEGER NOT NULL)");
+    }
+
+    /**
+     * Run the migrations from the old version up to the new one, in order.
+     *
+     * @throws IllegalStateException if a version in between has no migration
+     */
+    static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        long start = DatabaseMetrics.start();
+        createJobTable(db);
+        int version = oldVersion;
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= version || migration.version > newVersion) {
+                continue;
+            }
+            if (migration.version != version + 1) {
+                break;
+            }
+            Log.i(LOG_TAG, "Upgrading the database to version " + migration.version);
+            migration.migrate(db);
+            version = migration.version;
+        }
+        if (version != newVersion) {
+            throw new IllegalStateException("No migration to version " + (version + 1));
+        }
+        DatabaseMetrics.record("upgrade", PetEntry.TABLE_NAME, start, 0);
+    }
+
+    /**
+     * Queue a job to run after the upgrade. Queuing a job that is queued already starts it
+     * over.
+     */
+    private static void queue(SQLiteDatabase db, String name) {
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_NAME + " (" + COLUMN_JOB + ", "
+                + COLUMN_POSITION + ", " + COLUMN_END + ") VALUES (?, 0, ?)",
+                new Object[] { name, getJob(name).getEnd(db) });
+    }
+
+    /**
+     * Returns whether a job hasn't finished yet.
+     */
+    static boolean isPending(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_JOB + " = ?", new String[] { name }) > 0;
+    }
+
+    /**
+     * Do the next chunk of the oldest job, in one transaction with saving its progress.
+     *
+     * @return whether there is more to do
+     */
+    static boolean runChunk(SQLiteDatabase db) {
+        Cursor cursor = db.query(TABLE_NAME, new String[] { COLUMN_JOB, COLUMN_POSITION,
+                COLUMN_END }, null, null, null, null, "rowid", "1");
+        String name;
+        long position;
+        long end;
+        try {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            name = cursor.getString(0);
+            position = cursor.getLong(1);
+            end = cursor.getLong(2);
+        } finally {
+            cursor.close();
+        }
+
+        long start = DatabaseMetrics.start();
+        db.beginTransaction();
+        try {
+            if (position < end) {
+                position = getJob(name).runChunk(db, position, end);
+            }
+            if (position >= end) {
+                Log.i(LOG_TAG, "Finished " + name);
+                db.delete(TABLE_NAME, COLUMN_JOB + " = ?", new String[] { name });
+            } else {
+                db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_POSITION + " = ? WHERE "
+                        + COLUMN_JOB + " = ?", new Object[] { position, name });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        DatabaseMetrics.record("migrate", PetEntry.TABLE_NAME, start, 1);
+        return true;
+    }
+
+    private static Job getJob(String name) {
+        for (Job job : JOBS) {
+            if (job.name.equals(name)) {
+                return job;
+            }
+        }
+        throw new IllegalArgumentException("Unknown migration job " + name);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.UUID;
+
+/**
+ * Stores the photos of pets as files in the app's private storage. The pets table only holds
+ * the file name, in {@link PetEntry#COLUMN_PET_PHOTO}.
+ *
+ * Photo files are never changed once written. Picking a new photo for a pet writes a new file,
+ * and files that no pet refers to any more are deleted by
+ * {@link #deleteUnreferenced(Context, SQLiteDatabase)}.
+ *
+ * None of the methods may be called on the main thread.
+ */
+public final class PetPhotos {
+
+    public static final String LOG_TAG = PetPhotos.class.getSimpleName();
+
+    /** Directory in the app's files directory that holds the photos */
+    private static final String DIRECTORY_NAME = "photos";
+
+    /**
+     * How old a file must be before it may be deleted for not being referenced. A photo is
+     * copied in while the user is still editing the pet, well before the pet is saved.
+     */
+    private static final long MIN_UNREFERENCED_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private PetPhotos() {
+    }
+
+    /**
+     * Returns the file of the photo with the given name.
+     *
+     * @param name from {@link PetEntry#COLUMN_PET_PHOTO}
+     */
+    public static File getFile(Context context, String name) {
+        return new File(getDirectory(context), name);
+    }
+
+    private static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Copy an image picked by the user into a new photo file.
+     *
+     * @param source content URI of the image
+     * @return the name of the new file, to store in {@link PetEntry#COLUMN_PET_PHOTO}
+     */
+    static String importPhoto(Context context, Uri source) throws IOException {
+        File directory = getDirectory(context);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        InputStream in = context.getContentResolver().openInputStream(source);
+        if (in == null) {
+            throw new FileNotFoundException("Unable to open " + source);
+        }
+        String name = UUID.randomUUID() + ".jpg";
+        // Write to a temporary name first, so a half written file never has a photo's name
+        File partial = new File(directory, name + ".partial");
+        try {
+            OutputStream out = new FileOutputStream(partial);
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!partial.renameTo(new File(directory, name))) {
+            partial.delete();
+            throw new IOException("Unable to create " + name);
+        }
+        return name;
+    }
+
+    /**
+     * Delete the photo files that no row of the pets table refers to, such as the photos of
+     * purged pets and photos that were replaced. Pets that are deleted but not yet purged
+     * keep their photos.
+     *
+     * @return the number of files deleted
+     */
+    static int deleteUnreferenced(Context context, SQLiteDatabase db) {
+        File[] files = getDirectory(context).listFiles();
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+
+        HashSet<String> referenced = new HashSet<>();
+        Cursor cursor = DatabaseMetrics.query(db, PetEntry.TABLE_NAME,
+                new String[] { PetEntry.COLUMN_PET_PHOTO },
+                PetEntry.COLUMN_PET_PHOTO + " IS NOT NULL", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                referenced.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long cutoff = System.currentTimeMillis() - MIN_UNREFERENCED_AGE_MILLIS;
+        int deleted = 0;
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && file.lastModified() < cutoff) {
+                if (file.delete()) {
+                    deleted++;
+                } else {
+                    Log.w(LOG_TAG, "Unable to delete " + file);
+                }
+            }
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Deletes pets in two steps, so a delete never has to wait for rows to be removed.
+ *
+ * Deleting marks pets as deleted: a single pet gets a row in
+ * {@link PetDbHelper#TOMBSTONE_TABLE_NAME}, and deleting every pet moves
+ * {@link PetDbHelper#COLUMN_DELETED_UP_TO} to the highest ID. Either takes a moment however
+ * many pets there are, and readers stop seeing the pets as soon as it commits, because they
+ * read from {@link PetDbHelper#LIVE_VIEW_NAME}.
+ *
+ * The marked rows are removed later by {@link #purgeBatch(SQLiteDatabase, int)}, a bounded
+ * number per transaction so other writes can run in between. Once they are gone,
+ * {@link #vacuumStep(SQLiteDatabase, int)} gives the free pages back to the file system a few
+ * at a time.
+ *
+ * All methods must be called on a background thread, with the writable database.
+ */
+final class PetPurger {
+
+    /** Value of PRAGMA auto_vacuum in incremental mode */
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private PetPurger() {
+    }
+
+    /**
+     * Mark a single pet as deleted.
+     *
+     * @return 1 if the pet was deleted, or 0 if there was no such pet
+     */
+    static int deletePet(SQLiteDatabase db, long id) {
+        return deletePets(db, PetEntry._ID + " = ?", new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * Mark the pets that match a selection as deleted.
+     *
+     * @return the number of pets deleted
+     */
+    static int deletePets(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        long start = DatabaseMetrics.start();
+        String sql = "INSERT OR IGNORE INTO " + PetDbHelper.TOMBSTONE_TABLE_NAME
+                + " (" + PetEntry._ID + ") SELECT " + PetEntry._ID
+                + " FROM " + PetDbHelper.LIVE_VIEW_NAME;
+        if (selection != null) {
+            sql += " WHERE " + selection;
+        }
+        SQLiteStatement statement = db.compileStatement(sql);
+        int rows;
+        try {
+            if (selectionArgs != null) {
+                statement.bindAllArgsAsStrings(selectionArgs);
+            }
+            rows = statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+        DatabaseMetrics.record("delete", PetEntry.TABLE_NAME, start, rows);
+        return rows;
+    }
+
+    /**
+     * Mark every pet as deleted by moving the deleted mark up to the highest ID. Pets added
+     * afterwards get higher IDs, because IDs are never reused.
+     *
+     * @return the number of pets deleted
+     */
+    static int deleteAllPets(SQLiteDatabase db) {
+        long start = DatabaseMetrics.start();
+        int rows;
+        db.beginTransaction();
+        try {
+            rows = (int) DatabaseUtils.queryNumEntries(db, PetDbHelper.LIVE_VIEW_NAME);
+            db.execSQL("UPDATE " + PetDbHelper.PURGE_STATE_TABLE_NAME
+                    + " SET " + PetDbHelper.COLUMN_DELETED_UP_TO + " = (SELECT IFNULL(MAX("
+                    + PetEntry._ID + "), " + PetDbHelper.COLUMN_DELETED_UP_TO + ") FROM "
+                    + PetEntry.TABLE_NAME + ")");
+            // Pets deleted one at a time are all below the mark now
+            db.execSQL("DELETE FROM " + PetDbHelper.TOMBSTONE_TABLE_NAME);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        DatabaseMetrics.record("delete", PetEntry.TABLE_NAME, start, rows);
+        return rows;
+    }
+
+    /**
+     * Remove up to the given number of deleted pets from the pets table, in one transaction.
+     * Pets below the deleted mark go first, oldest first, then the ones deleted one at a time.
+     *
+     * @return the number of deleted pets removed, which is 0 once there are none left
+     */
+    static int purgeBatch(SQLiteDatabase db, int limit) {
+        long start = DatabaseMetrics.start();
+        int purged;
+        db.beginTransaction();
+        try {
+            purged = executeUpdateDelete(db, "DELETE FROM " + PetEntry.TABLE_NAME
+                    + " WHERE " + PetEntry._ID + " IN (SELECT " + PetEntry._ID
+                    + " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID
+                    + " <= (SELECT " + PetDbHelper.COLUMN_DELETED_UP_TO
+                    + " FROM " + PetDbHelper.PURGE_STATE_TABLE_NAME + ")"
+                    + " ORDER BY " + PetEntry._ID + " LIMIT " + limit + ")");
+
+            if (purged < limit) {
+                String tombstones = "SELECT " + PetEntry._ID
+                        + " FROM " + PetDbHelper.TOMBSTONE_TABLE_NAME
+                        + " ORDER BY " + PetEntry._ID + " LIMIT " + (limit - purged);
+                executeUpdateDelete(db, "DELETE FROM " + PetEntry.TABLE_NAME
+                        + " WHERE " + PetEntry._ID + " IN (" + tombstones + ")");
+                // Count the tombstones rather than the rows, so a tombstone whose row is
+                // already gone still counts as progress
+                purged += executeUpdateDelete(db, "DELETE FROM "
+                        + PetDbHelper.TOMBSTONE_TABLE_NAME
+                        + " WHERE " + PetEntry._ID + " IN (" + tombstones + ")");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (purged > 0) {
+            DatabaseMetrics.record("purge", PetEntry.TABLE_NAME, start, purged);
+        }
+        return purged;
+    }
+
+    /**
+     * Give up to the given number of free pages back to the file system.
+     *
+     * Only databases created in incremental auto-vacuum mode can do that. Converting an older
+     * one takes a VACUUM that rewrites the whole file while holding the write lock, which
+     * isn't worth it for a shelter's database, so those keep their free pages for new rows.
+     *
+     * @return the number of pages freed, which is 0 once there are none left
+     */
+    static int vacuumStep(SQLiteDatabase db, int pages) {
+        long start = DatabaseMetrics.start();
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            return 0;
+        }
+
+        int free = (int) DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        if (free == 0) {
+            return 0;
+        }
+        // The pragma frees one page per step, so the cursor has to be run to the end
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                // Nothing to read
+            }
+        } finally {
+            cursor.close();
+        }
+        int freed = Math.min(free, pages);
+        DatabaseMetrics.record("vacuum", PetEntry.TABLE_NAME, start, freed);
+        return freed;
+    }
+
+    private static int executeUpdateDelete(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+
+/**
+ * Describes which pets to show and in what order. Build one with {@link Builder}.
+ *
+ * Every filter and sort order has an index behind it (see {@link PetDbHelper}), and pages are
+ * read with keyset conditions on the sort column and {@link PetEntry#_ID}, so no supported
+ * query has to scan the whole table.
+ */
+public final class PetQuery {
+
+    /** Sort by {@link PetEntry#_ID}, which is the order pets were added in */
+    public static final int SORT_BY_ID = 0;
+
+    /** Sort by {@link PetEntry#COLUMN_PET_NAME} */
+    public static final int SORT_BY_NAME = 1;
+
+    /** Sort by {@link PetEntry#COLUMN_PET_WEIGHT} */
+    public static final int SORT_BY_WEIGHT = 2;
+
+    /** Value of the filter fields when there is no filter */
+    private static final int NO_FILTER = -1;
+
+    /** Keys for saving a query in a {@link Bundle} */
+    private static final String KEY_GENDER = "query_gender";
+    private static final String KEY_MIN_WEIGHT = "query_min_weight";
+    private static final String KEY_MAX_WEIGHT = "query_max_weight";
+    private static final String KEY_BREED = "query_breed";
+    private static final String KEY_SORT_BY = "query_sort_by";
+
+    /** Every pet, in the order they were added */
+    public static final PetQuery ALL = new Builder().build();
+
+    private final int mGender;
+    private final int mMinWeight;
+    private final int mMaxWeight;
+    private final String mBreed;
+    private final int mSortBy;
+
+    /** WHERE clause and arguments for the filters alone */
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+
+    /**
+     * A WHERE clause and its arguments.
+     */
+    static final class Selection {
+        final String selection;
+        final String[] selectionArgs;
+
+        Selection(String selection, String[] selectionArgs) {
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+        }
+    }
+
+    private PetQuery(Builder builder) {
+        mGender = builder.mGender;
+        mMinWeight = builder.mMinWeight;
+        mMaxWeight = builder.mMaxWeight;
+        mBreed = builder.mBreed;
+        mSortBy = builder.mSortBy;
+
+        StringBuilder selection = new StringBuilder();
+        ArrayList<String> args = new ArrayList<>();
+        if (mGender != NO_FILTER) {
+            appendCondition(selection, PetEntry.COLUMN_PET_GENDER + " = ?");
+            args.add(String.valueOf(mGender));
+        }
+        if (mBreed != null) {
+            appendCondition(selection, PetEntry.COLUMN_PET_BREED + " = ?");
+            args.add(mBreed);
+        }
+        if (mMinWeight != NO_FILTER) {
+            appendCondition(selection, PetEntry.COLUMN_PET_WEIGHT + " >= ?");
+            args.add(String.valueOf(mMinWeight));
+        }
+        if (mMaxWeight != NO_FILTER) {
+            appendCondition(selection, PetEntry.COLUMN_PET_WEIGHT + " <= ?");
+            args.add(String.valueOf(mMaxWeight));
+        }
+        mSelection = selection.length() > 0 ? selection.toString() : null;
+        mSelectionArgs = args.isEmpty() ? null : args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Returns the WHERE clause for the filters, or null if there are none.
+     */
+    public String getSelection() {
+        return mSelection;
+    }
+
+    /**
+     * Returns the arguments for {@link #getSelection()}, or null if there are none.
+     */
+    public String[] getSelectionArgs() {
+        return mSelectionArgs;
+    }
+
+    /**
+     * Returns the ORDER BY clause. Ties are broken by {@link PetEntry#_ID}, so the order is
+     * always total.
+     */
+    public String getSortOrder() {
+        if (mSortBy == SORT_BY_ID) {
+            return PetEntry._ID + " ASC";
+        }
+        return sortColumn() + " ASC, " + PetEntry._ID + " ASC";
+    }
+
+    /**
+     * Returns {@link #getSortOrder()} backwards, for reading pages towards the start.
+     */
+    String getReverseSortOrder() {
+        if (mSortBy == SORT_BY_ID) {
+            return PetEntry._ID + " DESC";
+        }
+        return sortColumn() + " DESC, " + PetEntry._ID + " DESC";
+    }
+
+    /**
+     * Returns the gender pets must have, or -1 for any gender.
+     */
+    public int getGender() {
+        return mGender;
+    }
+
+    /**
+     * Returns the lowest weight pets may have, or -1 for no lower bound.
+     */
+    public int getMinWeight() {
+        return mMinWeight;
+    }
+
+    /**
+     * Returns the highest weight pets may have, or -1 for no upper bound.
+     */
+    public int getMaxWeight() {
+        return mMaxWeight;
+    }
+
+    /**
+     * Returns the breed pets must have, or null for any breed.
+     */
+    public String getBreed() {
+        return mBreed;
+    }
+
+    /**
+     * Returns one of {@link #SORT_BY_ID}, {@link #SORT_BY_NAME} or {@link #SORT_BY_WEIGHT}.
+     */
+    public int getSortBy() {
+        return mSortBy;
+    }
+
+    /**
+     * Returns whether any filter is set.
+     */
+    public boolean isFiltered() {
+        return mSelection != null;
+    }
+
+    /**
+     * Returns the pets that come after the given row in sort order.
+     */
+    Selection after(long id, String name, int weight) {
+        return keyset(">", id, name, weight);
+    }
+
+    /**
+     * Returns the pets that come before the given row in sort order.
+     */
+    Selection before(long id, String name, int weight) {
+        return keyset("<", id, name, weight);
+    }
+
+    /**
+     * Returns the pets from the first row to the last row in sort order, including both.
+     */
+    Selection between(long firstId, String firstName, int firstWeight,
+            long lastId, String lastName, int lastWeight) {
+        Selection from = rangeOnly(">=", firstId, firstName, firstWeight);
+        Selection to = rangeOnly("<=", lastId, lastName, lastWeight);
+        String selection = "(" + from.selection + ") AND (" + to.selection + ")";
+        if (mSelection != null) {
+            selection += " AND " + mSelection;
+        }
+        return new Selection(selection,
+                concat(concat(from.selectionArgs, to.selectionArgs), mSelectionArgs));
+    }
+
+    /**
+     * Returns the pets on one side of a row in sort order, together with the filters.
+     *
+     * @param operator one of "<", "<=", ">" or ">="
+     */
+    private Selection keyset(String operator, long id, String name, int weight) {
+        Selection range = rangeOnly(operator, id, name, weight);
+        if (mSelection == null) {
+            return range;
+        }
+        return new Selection("(" + range.selection + ") AND " + mSelection,
+                concat(range.selectionArgs, mSelectionArgs));
+    }
+
+    /**
+     * Returns the keyset condition for one side of a row, without the filters.
+     *
+     * The condition is written as "column >= value AND (column > value OR _id > id)" rather
+     * than with OR at the top level, so SQLite can use the leading part as an index range.
+     */
+    private Selection rangeOnly(String operator, long id, String name, int weight) {
+        String idArg = String.valueOf(id);
+        if (mSortBy == SORT_BY_ID) {
+            return new Selection(PetEntry._ID + " " + operator + " ?", new String[] { idArg });
+        }
+
+        String column = sortColumn();
+        String key = mSortBy == SORT_BY_NAME ? name : String.valueOf(weight);
+        String strict = operator.substring(0, 1);
+        String inclusive = strict + "=";
+        return new Selection(column + " " + inclusive + " ? AND (" + column + " " + strict
+                + " ? OR " + PetEntry._ID + " " + operator + " ?)",
+                new String[] { key, key, idArg });
+    }
+
+    private String sortColumn() {
+        switch (mSortBy) {
+            case SORT_BY_NAME:
+                return PetEntry.COLUMN_PET_NAME;
+            case SORT_BY_WEIGHT:
+                return PetEntry.COLUMN_PET_WEIGHT;
+            default:
+                return PetEntry._ID;
+        }
+    }
+
+    /**
+     * Save this query in a bundle, for example across a configuration change.
+     */
+    public void writeToBundle(Bundle bundle) {
+        bundle.putInt(KEY_GENDER, mGender);
+        bundle.putInt(KEY_MIN_WEIGHT, mMinWeight);
+        bundle.putInt(KEY_MAX_WEIGHT, mMaxWeight);
+        bundle.putString(KEY_BREED, mBreed);
+        bundle.putInt(KEY_SORT_BY, mSortBy);
+    }
+
+    /**
+     * Returns the query saved by {@link #writeToBundle(Bundle)}, or {@link #ALL} if the bundle
+     * is null or doesn't hold one.
+     */
+    public static PetQuery fromBundle(Bundle bundle) {
+        if (bundle == null || !bundle.containsKey(KEY_SORT_BY)) {
+            return ALL;
+        }
+        Builder builder = new Builder();
+        builder.mGender = bundle.getInt(KEY_GENDER, NO_FILTER);
+        builder.mMinWeight = bundle.getInt(KEY_MIN_WEIGHT, NO_FILTER);
+        builder.mMaxWeight = bundle.getInt(KEY_MAX_WEIGHT, NO_FILTER);
+        builder.mBreed = bundle.getString(KEY_BREED);
+        builder.mSortBy = bundle.getInt(KEY_SORT_BY, SORT_BY_ID);
+        return builder.build();
+    }
+
+    /**
+     * Returns a builder that starts out with the filters and sort order of this query.
+     */
+    public Builder buildUpon() {
+        Builder builder = new Builder();
+        builder.mGender = mGender;
+        builder.mMinWeight = mMinWeight;
+        builder.mMaxWeight = mMaxWeight;
+        builder.mBreed = mBreed;
+        builder.mSortBy = mSortBy;
+        return builder;
+    }
+
+    private static void appendCondition(StringBuilder selection, String condition) {
+        if (selection.length() > 0) {
+            selection.append(" AND ");
+        }
+        selection.append(condition);
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * Builds a {@link PetQuery}. Without any calls, the query returns every pet sorted by
+     * {@link PetEntry#_ID}.
+     */
+    public static final class Builder {
+
+        private int mGender = NO_FILTER;
+        private int mMinWeight = NO_FILTER;
+        private int mMaxWeight = NO_FILTER;
+        private String mBreed;
+        private int mSortBy = SORT_BY_ID;
+
+        /**
+         * Only return pets of the given gender.
+         *
+         * @param gender one of the gender constants in {@link PetEntry}, or -1 for any gender
+         */
+        public Builder gender(int gender) {
+            if (gender != NO_FILTER && !PetEntry.isValidGender(gender)) {
+                throw new IllegalArgumentException("Invalid gender " + gender);
+            }
+            mGender = gender;
+            return this;
+        }
+
+        /**
+         * Only return pets that weigh between the given weights, in kg, including both.
+         *
+         * @param minWeight lowest weight, or -1 for no lower bound
+         * @param maxWeight highest weight, or -1 for no upper bound
+         */
+        public Builder weightBetween(int minWeight, int maxWeight) {
+            mMinWeight = Math.max(minWeight, NO_FILTER);
+            mMaxWeight = Math.max(maxWeight, NO_FILTER);
+            return this;
+        }
+
+        /**
+         * Only return pets of the given breed.
+         *
+         * @param breed to match exactly, or null or empty for any breed
+         */
+        public Builder breed(String breed) {
+            mBreed = TextUtils.isEmpty(breed) ? null : breed;
+            return this;
+        }
+
+        /**
+         * Set the sort order.
+         *
+         * @param sortBy one of {@link #SORT_BY_ID}, {@link #SORT_BY_NAME} or
+         *               {@link #SORT_BY_WEIGHT}
+         */
+        public Builder sortBy(int sortBy) {
+            if (sortBy != SORT_BY_ID && sortBy != SORT_BY_NAME && sortBy != SORT_BY_WEIGHT) {
+                throw new IllegalArgumentException("Invalid sort order " + sortBy);
+            }
+            mSortBy = sortBy;
+            return this;
+        }
+
+        public PetQuery build() {
+            return new PetQuery(this);
+        }
+    }
+}
@@ -0,0 +1,1221 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single entry point for reading and writing pets.
+ *
+ * All database I/O runs on background threads: writes go through one writer thread with a
+ * bounded queue, so they are applied in the order they were submitted, and reads run on a
+ * small pool of reader threads. Results are delivered to a {@link Callback} on the main thread.
+ *
+ * Every write notifies observers of {@link PetEntry#CONTENT_URI}, the same as a write through
+ * the {@link PetProvider}, so loaders watching the pets table pick up the change.
+ *
+ * Pets that were read or written recently are kept in a {@link PetCache}, so opening the same
+ * pets again is served from memory. Writes update the cache after they commit.
+ *
+ * Deletes only mark pets as deleted. The rows are purged a while later on the writer thread,
+ * in small batches that other writes can get in between of; see {@link PetPurger}.
+ *
+ * Pets saved from the editor with {@link #savePet(long, ContentValues, Callback)} are shown
+ * straight away as {@link PendingSave}s while they wait for the writer thread. Saves that
+ * queue up while the writer is busy are committed together in one transaction.
+ */
+public class PetRepository {
+
+    public static final String LOG_TAG = PetRepository.class.getSimpleName();
+
+    /** Number of threads that run read operations */
+    private static final int READER_THREADS = 2;
+
+    /** Maximum number of writes that may be waiting for the writer thread */
+    private static final int WRITE_QUEUE_CAPACITY = 64;
+
+    /** How long after the last delete the purge starts, so deletes in a row share one */
+    private static final long PURGE_DELAY_MILLIS = 10000;
+
+    /** Number of deleted pets removed per transaction by the purge */
+    private static final int PURGE_BATCH_SIZE = 500;
+
+    /** Number of free pages given back to the file system per incremental vacuum step */
+    private static final int VACUUM_PAGES_PER_STEP = 256;
+
+    /** How long until a housekeeping step that found the write queue full is tried again */
+    private static final long MAINTENANCE_RETRY_MILLIS = 1000;
+
+    /** The one instance of this class, created on first use */
+    private static PetRepository sInstance;
+
+    /** Application context, used to notify observers of changes */
+    private final Context mContext;
+
+    /** Database helper that all operations run against */
+    private final PetDbHelper mDbHelper;
+
+    /** Runs reads, several at a time */
+    private final ExecutorService mReadExecutor;
+
+    /** Runs writes, one at a time and in order */
+    private final ThreadPoolExecutor mWriteExecutor;
+
+    /** Number of threads that aggregates over a {@link PetSnapshot} are split over */
+    private final int mComputeThreads;
+
+    /** Runs chunks of aggregates in parallel, one thread per core */
+    private final ExecutorService mComputeExecutor;
+
+    /** Delivers results on the main thread */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Recently used pets */
+    private final PetCache mCache;
+
+    /** Starts purging deleted pets, posted to {@link #mMainHandler} after a delay */
+    private final Runnable mPurgeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            purgeStep(0);
+        }
+    };
+
+    /** Saves waiting for their results, in the order they were made. Main thread only. */
+    private final ArrayList<PendingSave> mPendingSaves = new ArrayList<>();
+
+    /** Told when {@link #mPendingSaves} changes. Main thread only. */
+    private final ArrayList<SaveListener> mSaveListeners = new ArrayList<>();
+
+    /** Saves not yet taken by the writer thread. Guarded by itself. */
+    private final ArrayList<PendingSave> mSaveQueue = new ArrayList<>();
+
+    /** Whether a write that commits {@link #mSaveQueue} is queued. Guarded by mSaveQueue. */
+    private boolean mSaveFlushQueued;
+
+    /**
+     * Receives the result of an asynchronous operation on the main thread.
+     *
+     * @param <T> type of the result
+     */
+    public abstract static class Callback<T> {
+
+        /**
+         * Called on the main thread when the operation succeeds.
+         */
+        public abstract void onResult(T result);
+
+        /**
+         * Called on the main thread when the operation fails. Logs the error by default.
+         */
+        public void onError(Exception e) {
+            Log.e(LOG_TAG, "Database operation failed", e);
+        }
+    }
+
+    /**
+     * Told on the main thread when a save starts or finishes, to show the pets being saved.
+     */
+    public interface SaveListener {
+        void onPendingSavesChanged();
+    }
+
+    /**
+     * A pet that was saved but isn't committed yet.
+     */
+    public static final class PendingSave {
+
+        private final long mId;
+        private final ContentValues mValues;
+        private final Callback<Long> mCallback;
+        private final PetRow mRow = new PetRow();
+
+        /** Outcome, set on the writer thread */
+        private long mResult = -1;
+        private Exception mError;
+
+        PendingSave(long id, ContentValues values, Callback<Long> callback) {
+            mId = id;
+            mValues = values;
+            mCallback = callback;
+            mRow.id = id;
+            mRow.name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+            mRow.breed = values.getAsString(PetEntry.COLUMN_PET_BREED);
+            Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+            mRow.gender = gender == null ? PetEntry.GENDER_UNKNOWN : gender;
+            Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+            mRow.weight = weight == null ? 0 : weight;
+            mRow.photo = values.getAsString(PetEntry.COLUMN_PET_PHOTO);
+        }
+
+        /** Returns whether this adds a new pet rather than changing one */
+        public boolean isNew() {
+            return mId == -1;
+        }
+
+        /**
+         * Returns whether the save was committed. Only known once the save has left
+         * {@link #getPendingSaves()}.
+         */
+        public boolean isSaved() {
+            return mError == null && mResult != -1;
+        }
+
+        /**
+         * Returns the pet as it will be once the save commits. The ID of a new pet is -1.
+         * The row must not be changed.
+         */
+        public PetRow getRow() {
+            return mRow;
+        }
+    }
+
+    /**
+     * A unit of work that runs against the database on a background thread.
+     *
+     * @param <T> type of the result
+     */
+    interface Operation<T> {
+        T run(SQLiteDatabase db);
+    }
+
+    /**
+     * Returns the repository for this process, creating it if needed.
+     *
+     * @param context of the app
+     */
+    public static synchronized PetRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetRepository(Context context) {
+        this(context, PetDbHelper.getInstance(context));
+    }
+
+    /**
+     * Constructs a repository over a database of its own, so tests don't share the one of the
+     * app.
+     */
+    PetRepository(Context context, PetDbHelper dbHelper) {
+        mContext = context;
+        mDbHelper = dbHelper;
+        mCache = PetCache.forDevice(context);
+        mReadExecutor = Executors.newFixedThreadPool(READER_THREADS,
+                new BackgroundThreadFactory("PetRepository-reader"));
+        mWriteExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(WRITE_QUEUE_CAPACITY),
+                new BackgroundThreadFactory("PetRepository-writer"));
+        mComputeThreads = Runtime.getRuntime().availableProcessors();
+        mComputeExecutor = Executors.newFixedThreadPool(mComputeThreads,
+                new BackgroundThreadFactory("PetRepository-compute"));
+
+        // Finish the work an upgrade of the database left, and any purge that the process
+        // didn't get to before it was stopped
+        migrateStep();
+        schedulePurge();
+    }
+
+    /**
+     * Returns the cache of recently used pets, for example to read its hit and miss counts.
+     */
+    public PetCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Read a single pet. If the pet is cached, the database isn't touched.
+     *
+     * @param id of the pet
+     * @param callback receives the pet, or null if there is no pet with that ID
+     */
+    public Future<Pet> getPet(final long id, Callback<Pet> callback) {
+        Pet cached = mCache.get(id);
+        if (cached != null) {
+            return deliverNow(cached, callback);
+        }
+        return read(new Operation<Pet>() {
+            @Override
+            public Pet run(SQLiteDatabase db) {
+                Pet[] pets = loadPets(db, new long[] { id }, 1);
+                return pets[0];
+            }
+        }, callback);
+    }
+
+    /**
+     * Count the pets in the database.
+     */
+    public Future<Integer> countPets(Callback<Integer> callback) {
+        return read(new Operation<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                return (int) DatabaseMetrics.count(db, PetDbHelper.LIVE_VIEW_NAME, null, null);
+            }
+        }, callback);
+    }
+
+    /**
+     * Count every pet by gender, weight and breed. The table is read once into a
+     * {@link PetSnapshot}, and the counting is spread over every core for large tables.
+     *
+     * @param weightBucketSize width of a bar of the weight histogram, in kg
+     * @param callback receives the counts
+     */
+    public Future<PetSnapshot.Stats> loadStats(final int weightBucketSize,
+            Callback<PetSnapshot.Stats> callback) {
+        return read(new Operation<PetSnapshot.Stats>() {
+            @Override
+            public PetSnapshot.Stats run(SQLiteDatabase db) {
+                PetSnapshot snapshot = PetSnapshot.load(db);
+                return snapshot.computeStats(weightBucketSize, mComputeExecutor,
+                        mComputeThreads);
+            }
+        }, callback);
+    }
+
+    /**
+     * Find pets whose name or breed contains words starting with the words in the given text.
+     * Pets whose name matches come first, then pets that only match by breed, each in order of
+     * name.
+     *
+     * Cancelling the returned future also stops the query in SQLite, so a search that went
+     * stale while the user kept typing doesn't hold up the next one.
+     *
+     * @param text typed by the user
+     * @param limit maximum number of pets to return
+     * @param callback receives the matching pets
+     */
+    public Future<List<PetRow>> searchPets(final String text, final int limit,
+            Callback<List<PetRow>> callback) {
+        final String nameQuery = toMatchQuery(text, PetEntry.COLUMN_PET_NAME);
+        final String anyQuery = toMatchQuery(text, null);
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        return submit(mReadExecutor, new Operation<List<PetRow>>() {
+            @Override
+            public List<PetRow> run(SQLiteDatabase db) {
+                ArrayList<PetRow> results = new ArrayList<>();
+                if (anyQuery.isEmpty()) {
+                    return results;
+                }
+                if (PetMigrations.isPending(db, PetMigrations.JOB_SEARCH_INDEX)) {
+                    return searchWithoutIndex(db, text, limit, cancellationSignal);
+                }
+
+                // Rank 0 for a match in the name, 1 for a match in the breed only
+                String sql = "SELECT p." + PetEntry._ID
+                        + ", p." + PetEntry.COLUMN_PET_NAME
+                        + ", p." + PetEntry.COLUMN_PET_BREED
+                        + ", p." + PetEntry.COLUMN_PET_GENDER
+                        + ", p." + PetEntry.COLUMN_PET_WEIGHT
+                        + ", p." + PetEntry.COLUMN_PET_PHOTO
+                        + " FROM " + PetDbHelper.LIVE_VIEW_NAME + " p JOIN ("
+                        + "SELECT docid, MIN(rank) AS rank FROM ("
+                        + "SELECT docid, 0 AS rank FROM " + PetDbHelper.SEARCH_TABLE_NAME
+                        + " WHERE " + PetDbHelper.SEARCH_TABLE_NAME + " MATCH ?"
+                        + " UNION ALL "
+                        + "SELECT docid, 1 AS rank FROM " + PetDbHelper.SEARCH_TABLE_NAME
+                        + " WHERE " + PetDbHelper.SEARCH_TABLE_NAME + " MATCH ?"
+                        + ") GROUP BY docid) m ON p." + PetEntry._ID + " = m.docid"
+                        + " ORDER BY m.rank, p." + PetEntry.COLUMN_PET_NAME
+                        + " LIMIT " + limit;
+                Cursor cursor = DatabaseMetrics.rawQuery(db, PetDbHelper.SEARCH_TABLE_NAME, sql,
+                        new String[] { nameQuery, anyQuery }, cancellationSignal);
+                try {
+                    BreedInterner breeds = BreedInterner.forCurrentThread();
+                    while (cursor.moveToNext()) {
+                        PetRow row = new PetRow();
+                        row.readFrom(cursor, breeds);
+                        results.add(row);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return results;
+            }
+        }, callback, false, false, cancellationSignal);
+    }
+
+    /**
+     * Find pets whose name or breed contains the given text, by scanning the pets. Only used
+     * while the search index is being filled after an upgrade.
+     */
+    private static List<PetRow> searchWithoutIndex(SQLiteDatabase db, String text, int limit,
+            CancellationSignal cancellationSignal) {
+        String pattern = "%" + text.trim().replace("\\", "\\\\").replace("%", "\\%")
+                .replace("_", "\\_") + "%";
+        String nameMatches = PetEntry.COLUMN_PET_NAME + " LIKE ? ESCAPE '\\'";
+        String sql = "SELECT " + TextUtils.join(", ", PetRow.PROJECTION)
+                + " FROM " + PetDbHelper.LIVE_VIEW_NAME
+                + " WHERE " + nameMatches
+                + " OR " + PetEntry.COLUMN_PET_BREED + " LIKE ? ESCAPE '\\'"
+                + " ORDER BY CASE WHEN " + nameMatches + " THEN 0 ELSE 1 END, "
+                + PetEntry.COLUMN_PET_NAME + " LIMIT " + limit;
+        ArrayList<PetRow> results = new ArrayList<>();
+        Cursor cursor = DatabaseMetrics.rawQuery(db, PetDbHelper.LIVE_VIEW_NAME, sql,
+                new String[] { pattern, pattern, pattern }, cancellationSignal);
+        try {
+            BreedInterner breeds = BreedInterner.forCurrentThread();
+            while (cursor.moveToNext()) {
+                PetRow row = new PetRow();
+                row.readFrom(cursor, breeds);
+                results.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return results;
+    }
+
+    /**
+     * Turn text typed by the user into an FTS query that matches every word as a prefix,
+     * for example "lab ret" becomes "lab* ret*". Characters that mean something in FTS query
+     * syntax are dropped.
+     *
+     * @param column to restrict the match to, or null to match in any column
+     * @return the query, or an empty string if the text has no words in it
+     */
+    private static String toMatchQuery(String text, String column) {
+        StringBuilder query = new StringBuilder();
+        String[] words = text.toLowerCase(Locale.getDefault()).split("[^\\p{L}\\p{N}]+");
+        for (String word : words) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            if (column != null) {
+                query.append(column).append(':');
+            }
+            query.append(word).append('*');
+        }
+        return query.toString();
+    }
+
+    /**
+     * Insert a new pet.
+     *
+     * @param values of the new pet, keyed by the column names in {@link PetEntry}
+     * @param callback receives the ID of the new row, or -1 if the row wasn't inserted
+     */
+    public Future<Long> insertPet(final ContentValues values, Callback<Long> callback) {
+        return write(new Operation<Long>() {
+            @Override
+            public Long run(SQLiteDatabase db) {
+                long id = DatabaseMetrics.insert(db, PetEntry.TABLE_NAME, values);
+                if (id != -1) {
+                    cacheRow(db, id);
+                }
+                return id;
+            }
+        }, callback);
+    }
+
+    /**
+     * Change an existing pet.
+     *
+     * @param id of the pet
+     * @param values to change, keyed by the column names in {@link PetEntry}
+     * @param callback receives the number of rows changed, which is 0 if there was no pet
+     *                 with that ID
+     */
+    public Future<Integer> updatePet(final long id, final ContentValues values,
+            Callback<Integer> callback) {
+        return write(new Operation<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                // A pet that was deleted can't be changed any more
+                int rowsUpdated = DatabaseMetrics.update(db, PetEntry.TABLE_NAME, values,
+                        PetEntry._ID + " = ? AND " + PetDbHelper.LIVE_SELECTION,
+                        new String[] { String.valueOf(id) });
+                if (rowsUpdated > 0) {
+                    cacheRow(db, id);
+                }
+                return rowsUpdated;
+            }
+        }, callback);
+    }
+
+    /**
+     * Save a pet from the editor, without waiting for the database. The pet is listed in
+     * {@link #getPendingSaves()} until its write commits or fails, so it can be shown
+     * meanwhile. Must be called on the main thread.
+     *
+     * The values are checked on the writer thread, the same way the {@link PetProvider}
+     * checks them, and a pet that fails the check fails on its own. Saves that queue up behind
+     * other writes are committed together in one transaction.
+     *
+     * @param id of the pet to change, or -1 to add a new pet
+     * @param values of the pet, keyed by the column names in {@link PetEntry}
+     * @param callback receives the ID of the pet, or -1 if there is no pet with the given ID
+     *                 any more
+     */
+    public void savePet(long id, ContentValues values, Callback<Long> callback) {
+        PendingSave save = new PendingSave(id, new ContentValues(values), callback);
+        mPendingSaves.add(save);
+        notifySaveListeners();
+
+        synchronized (mSaveQueue) {
+            mSaveQueue.add(save);
+            if (mSaveFlushQueued) {
+                return;
+            }
+            mSaveFlushQueued = true;
+        }
+        Future<Void> flush = write(new Operation<Void>() {
+            @Override
+            public Void run(SQLiteDatabase db) {
+                flushSaves(db);
+                return null;
+            }
+        }, null);
+        if (isRejected(flush)) {
+            // The write queue was full, so nothing will pick the saves up
+            flushSaves(null);
+        }
+    }
+
+    /**
+     * Returns whether an operation was turned away by its executor, so it will never run. A
+     * rejected operation is finished before {@link #submit} returns.
+     */
+    private static boolean isRejected(Future<?> future) {
+        if (!future.isDone() || future.isCancelled()) {
+            return false;
+        }
+        try {
+            future.get();
+            return false;
+        } catch (ExecutionException e) {
+            return e.getCause() instanceof RejectedExecutionException;
+        } catch (InterruptedException e) {
+            // get() doesn't block once the future is done, so this can't happen
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the saves that haven't finished yet, oldest first. Must be called on the main
+     * thread.
+     */
+    public List<PendingSave> getPendingSaves() {
+        return Collections.unmodifiableList(mPendingSaves);
+    }
+
+    /**
+     * Start telling a listener about pending saves. Must be called on the main thread.
+     */
+    public void addSaveListener(SaveListener listener) {
+        mSaveListeners.add(listener);
+    }
+
+    public void removeSaveListener(SaveListener listener) {
+        mSaveListeners.remove(listener);
+    }
+
+    private void notifySaveListeners() {
+        for (int i = mSaveListeners.size() - 1; i >= 0; i--) {
+            mSaveListeners.get(i).onPendingSavesChanged();
+        }
+    }
+
+    /**
+     * Commit every queued save in one transaction, then hand the results to the main thread.
+     *
+     * @param db the writable database, or null to fail the saves without writing them
+     */
+    private void flushSaves(SQLiteDatabase db) {
+        final ArrayList<PendingSave> saves;
+        synchronized (mSaveQueue) {
+            saves = new ArrayList<>(mSaveQueue);
+            mSaveQueue.clear();
+            mSaveFlushQueued = false;
+        }
+
+        if (db == null) {
+            for (PendingSave save : saves) {
+                save.mError = new RejectedExecutionException("Too many writes queued");
+            }
+        } else {
+            writeSaves(db, saves);
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingSaves.removeAll(saves);
+                notifySaveListeners();
+                for (PendingSave save : saves) {
+                    if (save.mCallback == null) {
+                        continue;
+                    }
+                    if (save.mError != null) {
+                        save.mCallback.onError(save.mError);
+                    } else {
+                        save.mCallback.onResult(save.mResult);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Write saves in one transaction. If it fails, each save is tried again in a transaction
+     * of its own, so only the save that caused the failure fails.
+     */
+    private void writeSaves(SQLiteDatabase db, List<PendingSave> saves) {
+        ArrayList<PendingSave> valid = new ArrayList<>(saves.size());
+        for (PendingSave save : saves) {
+            try {
+                validatePet(save.mValues, save.isNew());
+                valid.add(save);
+            } catch (IllegalArgumentException e) {
+                save.mError = e;
+            }
+        }
+        if (valid.isEmpty()) {
+            return;
+        }
+
+        try {
+            db.beginTransaction();
+            try {
+                for (PendingSave save : valid) {
+                    writeSave(db, save);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            Log.w(LOG_TAG, "Saving " + valid.size() + " pets together failed", e);
+            for (PendingSave save : valid) {
+                try {
+                    db.beginTransaction();
+                    try {
+                        writeSave(db, save);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } catch (SQLException saveFailed) {
+                    save.mError = saveFailed;
+                }
+            }
+        }
+
+        for (PendingSave save : valid) {
+            if (save.mError == null && save.mResult != -1) {
+                cacheRow(db, save.mResult);
+            }
+        }
+    }
+
+    private static void writeSave(SQLiteDatabase db, PendingSave save) {
+        if (save.isNew()) {
+            save.mResult = DatabaseMetrics.insertOrThrow(db, PetEntry.TABLE_NAME, save.mValues);
+            return;
+        }
+        // A pet that was deleted meanwhile can't be changed any more
+        int rowsUpdated = DatabaseMetrics.update(db, PetEntry.TABLE_NAME, save.mValues,
+                PetEntry._ID + " = ? AND " + PetDbHelper.LIVE_SELECTION,
+                new String[] { String.valueOf(save.mId) });
+        save.mResult = rowsUpdated == 0 ? -1 : save.mId;
+    }
+
+    /**
+     * Check the values of a pet the same way the {@link PetProvider} does.
+     *
+     * @param isNew whether the values are of a new pet, which needs a name and a gender
+     * @throws IllegalArgumentException if a value is missing or invalid
+     */
+    private static void validatePet(ContentValues values, boolean isNew) {
+        if (isNew || values.containsKey(PetEntry.COLUMN_PET_NAME)) {
+            String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+            if (TextUtils.isEmpty(name)) {
+                throw new IllegalArgumentException("Pet requires a name");
+            }
+        }
+        if (isNew || values.containsKey(PetEntry.COLUMN_PET_GENDER)) {
+            Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+            if (gender == null || !PetEntry.isValidGender(gender)) {
+                throw new IllegalArgumentException("Pet requires valid gender");
+            }
+        }
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        if (weight != null && weight < 0) {
+            throw new IllegalArgumentException("Pet requires valid weight");
+        }
+    }
+
+    /**
+     * Delete a pet. It disappears from every read straight away; its row is purged later.
+     *
+     * @param id of the pet
+     * @param callback receives the number of pets deleted, which is 0 if there was no pet
+     *                 with that ID
+     */
+    public Future<Integer> deletePet(final long id, Callback<Integer> callback) {
+        return write(new Operation<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                int rowsDeleted = PetPurger.deletePet(db, id);
+                mCache.remove(id);
+                schedulePurge();
+                return rowsDeleted;
+            }
+        }, callback);
+    }
+
+    /**
+     * Delete every pet. This takes the same short time however many pets there are; the rows
+     * are purged later.
+     *
+     * @param callback receives the number of pets deleted
+     */
+    public Future<Integer> deleteAllPets(Callback<Integer> callback) {
+        return write(new Operation<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                int rowsDeleted = PetPurger.deleteAllPets(db);
+                mCache.clear();
+                schedulePurge();
+                return rowsDeleted;
+            }
+        }, callback);
+    }
+
+    /**
+     * Purge the pets deleted so far once no more deletes came in for a while. Safe to call
+     * from any thread.
+     */
+    void schedulePurge() {
+        mMainHandler.removeCallbacks(mPurgeRunnable);
+        mMainHandler.postDelayed(mPurgeRunnable, PURGE_DELAY_MILLIS);
+    }
+
+    /**
+     * Purge one batch of deleted pets on the writer thread, then queue the next batch behind
+     * whatever other writes came in meanwhile. Once nothing is left, give the space back.
+     *
+     * @param purgedSoFar number of pets purged by the batches before this one
+     */
+    private void purgeStep(final int purgedSoFar) {
+        Future<Void> step = maintain(new Operation<Void>() {
+            @Override
+            public Void run(SQLiteDatabase db) {
+                int purged = PetPurger.purgeBatch(db, PURGE_BATCH_SIZE);
+                if (purged > 0) {
+                    purgeStep(purgedSoFar + purged);
+                    return null;
+                }
+
+                // The photos of the purged pets, and photos that were replaced, are unused now
+                int photosDeleted = PetPhotos.deleteUnreferenced(mContext, db);
+                if (purgedSoFar > 0) {
+                    Log.i(LOG_TAG, "Purged " + purgedSoFar + " deleted pets and "
+                            + photosDeleted + " photos");
+                    vacuumStep();
+                }
+                return null;
+            }
+        });
+        retryIfRejected(step, new Runnable() {
+            @Override
+            public void run() {
+                purgeStep(purgedSoFar);
+            }
+        });
+    }
+
+    /**
+     * Run a chunk of the work left by a database upgrade on the writer thread, then queue
+     * the next chunk behind whatever other writes came in meanwhile.
+     */
+    private void migrateStep() {
+        Future<Void> step = maintain(new Operation<Void>() {
+            @Override
+            public Void run(SQLiteDatabase db) {
+                if (PetMigrations.runChunk(db)) {
+                    migrateStep();
+                }
+                return null;
+            }
+        });
+        retryIfRejected(step, new Runnable() {
+            @Override
+            public void run() {
+                migrateStep();
+            }
+        });
+    }
+
+    /**
+     * Give some free pages back to the file system, then queue another step if there may be
+     * more.
+     */
+    private void vacuumStep() {
+        Future<Void> step = maintain(new Operation<Void>() {
+            @Override
+            public Void run(SQLiteDatabase db) {
+                if (PetPurger.vacuumStep(db, VACUUM_PAGES_PER_STEP) > 0) {
+                    vacuumStep();
+                }
+                return null;
+            }
+        });
+        retryIfRejected(step, new Runnable() {
+            @Override
+            public void run() {
+                vacuumStep();
+            }
+        });
+    }
+
+    /**
+     * Try a housekeeping step again a while later if the write queue was full. Each step
+     * queues the next one, so a step that is dropped would stop its work for the rest of the
+     * process.
+     */
+    private void retryIfRejected(Future<?> step, Runnable retry) {
+        if (isRejected(step)) {
+            Log.w(LOG_TAG, "Write queue full, trying housekeeping again in "
+                    + MAINTENANCE_RETRY_MILLIS + " ms");
+            mMainHandler.postDelayed(retry, MAINTENANCE_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Read back a row that was just written, on the writer thread, and put it in the cache.
+     * Columns with defaults mean the written values alone don't always describe the row.
+     */
+    private void cacheRow(SQLiteDatabase db, long id) {
+        Cursor cursor = DatabaseMetrics.query(db, PetDbHelper.LIVE_VIEW_NAME, PetRow.PROJECTION,
+                PetEntry._ID + " = ?", new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                mCache.put(Pet.fromCursor(cursor, BreedInterner.forCurrentThread()));
+            } else {
+                mCache.remove(id);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the pets with the given IDs, in the same order, taking them from the cache where
+     * possible. The rest are read in one query and added to the cache. Pets that don't exist
+     * are returned as null.
+     *
+     * Must be called on a background thread.
+     *
+     * @param ids of the pets
+     * @param count number of IDs to use from the start of the array
+     */
+    Pet[] loadPets(SQLiteDatabase db, long[] ids, int count) {
+        Pet[] pets = new Pet[count];
+        StringBuilder missing = null;
+        for (int i = 0; i < count; i++) {
+            pets[i] = mCache.get(ids[i]);
+            if (pets[i] == null) {
+                if (missing == null) {
+                    missing = new StringBuilder();
+                } else {
+                    missing.append(',');
+                }
+                // IDs are numbers, so they can go into the SQL without escaping
+                missing.append(ids[i]);
+            }
+        }
+        if (missing == null) {
+            return pets;
+        }
+
+        long writeStamp = mCache.getWriteStamp();
+        LongSparseArray<Pet> loaded = new LongSparseArray<>();
+        Cursor cursor = DatabaseMetrics.query(db, PetDbHelper.LIVE_VIEW_NAME, PetRow.PROJECTION,
+                PetEntry._ID + " IN (" + missing + ")", null, null, null, null);
+        try {
+            BreedInterner breeds = BreedInterner.forCurrentThread();
+            while (cursor.moveToNext()) {
+                Pet pet = Pet.fromCursor(cursor, breeds);
+                loaded.put(pet.getId(), pet);
+                mCache.putIfUnchanged(pet, writeStamp);
+            }
+        } finally {
+            cursor.close();
+        }
+        for (int i = 0; i < count; i++) {
+            if (pets[i] == null) {
+                pets[i] = loaded.get(ids[i]);
+            }
+        }
+        return pets;
+    }
+
+    /**
+     * Copy an image picked by the user into the app's storage, to use as a pet's photo.
+     *
+     * @param source content URI of the image
+     * @param callback receives the file name to store in {@link PetEntry#COLUMN_PET_PHOTO}
+     */
+    public Future<String> importPhoto(final Uri source, Callback<String> callback) {
+        return read(new Operation<String>() {
+            @Override
+            public String run(SQLiteDatabase db) {
+                try {
+                    return PetPhotos.importPhoto(mContext, source);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to import photo " + source, e);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Insert many pets at once, in chunked transactions on the writer thread. Other writes
+     * queue up behind the import.
+     *
+     * @param rows to insert, for example from {@link PetImporter#fromCsv(InputStream)}. If the
+     *             iterator is {@link Closeable} it is closed once the import is done.
+     * @param listener told about progress on the main thread, or null
+     * @param callback receives the number of pets inserted
+     */
+    public Future<Integer> importPets(final Iterator<ContentValues> rows,
+            PetImporter.ProgressListener listener, Callback<Integer> callback) {
+        final PetImporter.ProgressListener mainThreadListener = postProgress(listener);
+        return write(new Operation<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                return importRows(db, rows, mainThreadListener);
+            }
+        }, callback);
+    }
+
+    /**
+     * Insert the pets in a file picked by the user, like {@link #importPets}. The file is
+     * opened and its format told on the writer thread, see
+     * {@link PetImporter#fromFile}.
+     *
+     * @param uri of the file
+     * @param listener told about progress on the main thread, or null
+     * @param callback receives the number of pets inserted
+     */
+    public Future<Integer> importFile(final Uri uri, PetImporter.ProgressListener listener,
+            Callback<Integer> callback) {
+        final PetImporter.ProgressListener mainThreadListener = postProgress(listener);
+        return write(new Operation<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                Iterator<ContentValues> rows;
+                try {
+                    rows = PetImporter.fromFile(mContext.getContentResolver(), uri);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to import " + uri, e);
+                }
+                return importRows(db, rows, mainThreadListener);
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns a listener that passes progress on to the given one on the main thread, or null
+     * if it's null.
+     */
+    private PetImporter.ProgressListener postProgress(
+            final PetImporter.ProgressListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        return new PetImporter.ProgressListener() {
+            @Override
+            public void onProgress(final int rowsImported) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onProgress(rowsImported);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Insert the rows on the writer thread, then close them if they're {@link Closeable}.
+     */
+    private static int importRows(SQLiteDatabase db, Iterator<ContentValues> rows,
+            PetImporter.ProgressListener listener) {
+        try {
+            return PetImporter.importRows(db, rows, listener);
+        } finally {
+            if (rows instanceof Closeable) {
+                try {
+                    ((Closeable) rows).close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Unable to close import source", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write every pet to a {@link PetArchive} file, on a reader thread so writes can go on
+     * meanwhile. Pets written while the export runs may or may not be in the file.
+     *
+     * @param out to write to, which is closed once the export is done
+     * @param callback receives the number of pets exported
+     */
+    public Future<Integer> exportPets(final FileOutputStream out, Callback<Integer> callback) {
+        return read(new Operation<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                try {
+                    try {
+                        return PetArchive.export(db, out.getChannel());
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to export pets", e);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns a future that is already done with the given result, and posts the result to
+     * the callback like an operation that ran on a background thread would.
+     */
+    private <T> Future<T> deliverNow(final T result, final Callback<T> callback) {
+        FutureTask<T> task = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() {
+                return result;
+            }
+        });
+        task.run();
+        if (callback != null) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResult(result);
+                }
+            });
+        }
+        return task;
+    }
+
+    /**
+     * Run an operation on a reader thread.
+     */
+    <T> Future<T> read(Operation<T> operation, Callback<T> callback) {
+        return submit(mReadExecutor, operation, callback, false, false, null);
+    }
+
+    /**
+     * Run an operation on the writer thread, after every write submitted before it.
+     */
+    <T> Future<T> write(Operation<T> operation, Callback<T> callback) {
+        return submit(mWriteExecutor, operation, callback, true, true, null);
+    }
+
+    /**
+     * Run housekeeping on the writer thread that doesn't change what readers see, so
+     * observers aren't told about it.
+     */
+    <T> Future<T> maintain(Operation<T> operation) {
+        return submit(mWriteExecutor, operation, null, true, false, null);
+    }
+
+    /**
+     * @param notifyChange whether to notify observers of {@link PetEntry#CONTENT_URI} once
+     *                     the operation is done
+     * @param cancellationSignal cancelled along with the returned future, or null if the
+     *                           operation can't be stopped once it has started
+     */
+    private <T> Future<T> submit(ExecutorService executor, Operation<T> operation,
+            Callback<T> callback, boolean writable, boolean notifyChange,
+            CancellationSignal cancellationSignal) {
+        DatabaseTask<T> task = new DatabaseTask<>(operation, callback, writable, notifyChange,
+                cancellationSignal);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The write queue is full. Fail this operation rather than block the caller, and
+            // finish its future so nothing waits on it forever.
+            task.reject(e);
+        }
+        return task;
+    }
+
+    /**
+     * Runs an {@link Operation} and posts its outcome to the main thread, unless the task was
+     * cancelled first.
+     */
+    private class DatabaseTask<T> extends FutureTask<T> {
+
+        private final Callback<T> mCallback;
+        private final CancellationSignal mCancellationSignal;
+
+        DatabaseTask(final Operation<T> operation, Callback<T> callback,
+                final boolean writable, final boolean notifyChange,
+                CancellationSignal cancellationSignal) {
+            super(new Callable<T>() {
+                @Override
+                public T call() {
+                    if (!writable) {
+                        return operation.run(mDbHelper.getReadableDatabase());
+                    }
+                    T result = operation.run(mDbHelper.getWritableDatabase());
+                    if (notifyChange) {
+                        mContext.getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+                    }
+                    return result;
+                }
+            });
+            mCallback = callback;
+            mCancellationSignal = cancellationSignal;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+            return cancelled;
+        }
+
+        /**
+         * Finish the task with an error without running it, because its executor won't take
+         * it. The error reaches the callback through {@link #done()}.
+         */
+        void reject(RejectedExecutionException e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                T result = get();
+                if (mCallback != null) {
+                    deliverResult(result);
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                deliverError(cause instanceof Exception ? (Exception) cause : e);
+            } catch (InterruptedException e) {
+                // get() doesn't block once the task is done, so this can't happen
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void deliverResult(final T result) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        mCallback.onResult(result);
+                    }
+                }
+            });
+        }
+
+        private void deliverError(final Exception e) {
+            if (mCallback == null) {
+                Log.e(LOG_TAG, "Database operation failed", e);
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        mCallback.onError(e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates named threads that run at background priority, so database work doesn't compete
+     * with the UI thread for the CPU.
+     */
+    static class BackgroundThreadFactory implements ThreadFactory {
+
+        private final String mNamePrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        BackgroundThreadFactory(String namePrefix) {
+            mNamePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, mNamePrefix + "-" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * A single row of the pets table, as shown in the catalog.
+ *
+ * Rows are mutable so that they can be recycled: when a row scrolls out of the
+ * {@link PetWindow}, the same object is refilled with the next row that is loaded.
+ */
+public final class PetRow {
+
+    /** Columns that must be present in a cursor passed to {@link #readFrom} */
+    public static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO };
+
+    /** Column indexes of {@link #PROJECTION} */
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_NAME = 1;
+    private static final int INDEX_BREED = 2;
+    private static final int INDEX_GENDER = 3;
+    private static final int INDEX_WEIGHT = 4;
+    private static final int INDEX_PHOTO = 5;
+
+    public long id;
+    public String name;
+    public String breed;
+    public int gender;
+    public int weight;
+    public String photo;
+
+    /**
+     * Fill this row from the current position of a cursor queried with {@link #PROJECTION}.
+     *
+     * @param breeds shares the breed with other rows of the same breed
+     */
+    void readFrom(Cursor cursor, BreedInterner breeds) {
+        id = cursor.getLong(INDEX_ID);
+        name = cursor.getString(INDEX_NAME);
+        breed = breeds.read(cursor, INDEX_BREED);
+        gender = cursor.getInt(INDEX_GENDER);
+        weight = cursor.getInt(INDEX_WEIGHT);
+        photo = cursor.getString(INDEX_PHOTO);
+    }
+
+    /**
+     * Fill this row from a pet. The pet's strings are shared, not copied.
+     */
+    public void set(Pet pet) {
+        id = pet.getId();
+        name = pet.getName();
+        breed = pet.getBreed();
+        gender = pet.getGender();
+        weight = pet.getWeight();
+        photo = pet.getPhoto();
+    }
+
+    /**
+     * Drop references held by this row before it goes back to the pool.
+     */
+    void clear() {
+        id = 0;
+        name = null;
+        breed = null;
+        gender = PetEntry.GENDER_UNKNOWN;
+        weight = 0;
+        photo = null;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A copy of the pets table held in primitive arrays, one per column, for computing
+ * {@link Stats} over every pet.
+ *
+ * Breeds are dictionary encoded: each distinct breed is stored once in
+ * {@link #getBreedDictionary()} and every pet holds the index of its breed, or
+ * {@link #NO_BREED}. Loading allocates a String per distinct breed, not per pet, and the
+ * aggregates allocate nothing per pet at all.
+ *
+ * A snapshot is immutable once loaded, so it can be read from any number of threads.
+ */
+public final class PetSnapshot {
+
+    /** Breed code of a pet without a breed */
+    public static final int NO_BREED = -1;
+
+    /** Number of pets below which splitting the work over several threads isn't worth it */
+    private static final int PARALLEL_THRESHOLD = 50000;
+
+    /** Columns read by {@link #load(SQLiteDatabase)} */
+    private static final String[] PROJECTION = {
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    /** Most bars a weight histogram has. Heavier pets are counted in the last one. */
+    private static final int MAX_WEIGHT_BUCKETS = 1000;
+
+    /** Number of gender constants in {@link PetEntry} */
+    private static final int GENDER_COUNT = 3;
+
+    private final int mSize;
+    private final long[] mIds;
+    private final int[] mGenders;
+    private final int[] mWeights;
+    private final int[] mBreedCodes;
+    private final String[] mBreedDictionary;
+
+    private PetSnapshot(int size, long[] ids, int[] genders, int[] weights, int[] breedCodes,
+            String[] breedDictionary) {
+        mSize = size;
+        mIds = ids;
+        mGenders = genders;
+        mWeights = weights;
+        mBreedCodes = breedCodes;
+        mBreedDictionary = breedDictionary;
+    }
+
+    /**
+     * Read every pet into a new snapshot. Must be called on a background thread.
+     *
+     * Rows are read in order of breed, so a new breed only has to be recognised where it
+     * differs from the one before. Breeds are compared as characters in a reused buffer and
+     * only turned into a String when a new one starts.
+     */
+    static PetSnapshot load(SQLiteDatabase db) {
+        Cursor cursor = DatabaseMetrics.query(db, PetDbHelper.LIVE_VIEW_NAME, PROJECTION, null,
+                null, null, null, PetEntry.COLUMN_PET_BREED);
+        try {
+            int size = cursor.getCount();
+            long[] ids = new long[size];
+            int[] genders = new int[size];
+            int[] weights = new int[size];
+            int[] breedCodes = new int[size];
+            ArrayList<String> dictionary = new ArrayList<>();
+
+            CharArrayBuffer breed = new CharArrayBuffer(64);
+            CharArrayBuffer previousBreed = new CharArrayBuffer(64);
+            boolean havePrevious = false;
+            int code = NO_BREED;
+            int i = 0;
+            while (cursor.moveToNext()) {
+                cursor.copyStringToBuffer(0, breed);
+                if (breed.sizeCopied == 0) {
+                    // Null and empty both mean the breed isn't known
+                    code = NO_BREED;
+                    havePrevious = false;
+                } else {
+                    if (!havePrevious || !sameChars(breed, previousBreed)) {
+                        dictionary.add(new String(breed.data, 0, breed.sizeCopied));
+                        code = dictionary.size() - 1;
+                        havePrevious = true;
+                        // Keep this breed to compare against, and reuse the old buffer
+                        CharArrayBuffer swap = previousBreed;
+                        previousBreed = breed;
+                        breed = swap;
+                    }
+                }
+                ids[i] = cursor.getLong(1);
+                genders[i] = cursor.getInt(2);
+                weights[i] = cursor.getInt(3);
+                breedCodes[i] = code;
+                i++;
+            }
+            return new PetSnapshot(i, ids, genders, weights, breedCodes,
+                    dictionary.toArray(new String[dictionary.size()]));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean sameChars(CharArrayBuffer a, CharArrayBuffer b) {
+        if (a.sizeCopied != b.sizeCopied) {
+            return false;
+        }
+        for (int i = 0; i < a.sizeCopied; i++) {
+            if (a.data[i] != b.data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the number of pets in the snapshot */
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the ID of the pet at the given index */
+    public long getId(int index) {
+        return mIds[index];
+    }
+
+    /** Returns the gender of the pet at the given index */
+    public int getGender(int index) {
+        return mGenders[index];
+    }
+
+    /** Returns the weight of the pet at the given index */
+    public int getWeight(int index) {
+        return mWeights[index];
+    }
+
+    /** Returns the breed code of the pet at the given index, or {@link #NO_BREED} */
+    public int getBreedCode(int index) {
+        return mBreedCodes[index];
+    }
+
+    /** Returns the distinct breeds. A breed code is an index into this array. */
+    public String[] getBreedDictionary() {
+        return mBreedDictionary.clone();
+    }
+
+    /**
+     * Count pets by gender, weight and breed. Large snapshots are split into one chunk per
+     * thread of the executor; each chunk is counted into its own arrays and the arrays are
+     * added up at the end.
+     *
+     * @param weightBucketSize width of a bar of the weight histogram, in kg
+     * @param executor to count chunks on, or null to count on the calling thread
+     * @param parallelism number of chunks to split large snapshots into
+     */
+    public Stats computeStats(int weightBucketSize, ExecutorService executor, int parallelism) {
+        if (weightBucketSize <= 0) {
+            throw new IllegalArgumentException("Invalid bucket size " + weightBucketSize);
+        }
+
+        if (executor == null || parallelism < 2 || mSize < PARALLEL_THRESHOLD) {
+            Stats stats = new Stats(weightBucketSize, mBreedDictionary);
+            stats.count(this, 0, mSize);
+            return stats;
+        }
+
+        int chunkSize = (mSize + parallelism - 1) / parallelism;
+        List<Future<Stats>> chunks = new ArrayList<>(parallelism);
+        for (int start = 0; start < mSize; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, mSize);
+            final Stats chunk = new Stats(weightBucketSize, mBreedDictionary);
+            chunks.add(executor.submit(new Callable<Stats>() {
+                @Override
+                public Stats call() {
+                    chunk.count(PetSnapshot.this, from, to);
+                    return chunk;
+                }
+            }));
+        }
+
+        Stats total = new Stats(weightBucketSize, mBreedDictionary);
+        try {
+            for (Future<Stats> chunk : chunks) {
+                total.add(chunk.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while counting pets", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to count pets", e.getCause());
+        }
+        return total;
+    }
+
+    /**
+     * Counts of pets by gender, weight and breed.
+     */
+    public static final class Stats {
+
+        private final int mWeightBucketSize;
+        private final String[] mBreedDictionary;
+
+        private int mCount;
+        private final int[] mGenderCounts = new int[GENDER_COUNT];
+        private int[] mWeightHistogram = new int[0];
+        private long mWeightSum;
+        private int mMaxWeight;
+        private final int[] mBreedCounts;
+        private int mNoBreedCount;
+
+        Stats(int weightBucketSize, String[] breedDictionary) {
+            mWeightBucketSize = weightBucketSize;
+            mBreedDictionary = breedDictionary;
+            mBreedCounts = new int[breedDictionary.length];
+        }
+
+        /**
+         * Count the pets in [from, to) of a snapshot.
+         */
+        void count(PetSnapshot snapshot, int from, int to) {
+            int[] genders = snapshot.mGenders;
+            int[] weights = snapshot.mWeights;
+            int[] breedCodes = snapshot.mBreedCodes;
+
+            // Size the histogram up front so the loop below never has to grow it
+            int maxWeight = mMaxWeight;
+            for (int i = from; i < to; i++) {
+                if (weights[i] > maxWeight) {
+                    maxWeight = weights[i];
+                }
+            }
+            ensureHistogram(maxWeight);
+
+            int[] histogram = mWeightHistogram;
+            long weightSum = 0;
+            for (int i = from; i < to; i++) {
+                int gender = genders[i];
+                if (gender >= 0 && gender < GENDER_COUNT) {
+                    mGenderCounts[gender]++;
+                }
+                int weight = weights[i];
+                weightSum += weight;
+                if (weight >= 0) {
+                    histogram[bucketOf(weight)]++;
+                }
+                int breed = breedCodes[i];
+                if (breed == NO_BREED) {
+                    mNoBreedCount++;
+                } else {
+                    mBreedCounts[breed]++;
+                }
+            }
+            mCount += to - from;
+            mWeightSum += weightSum;
+            mMaxWeight = maxWeight;
+        }
+
+        /**
+         * Add the counts of another chunk of the same snapshot to these.
+         */
+        void add(Stats other) {
+            ensureHistogram(other.mMaxWeight);
+            mCount += other.mCount;
+            mWeightSum += other.mWeightSum;
+            mMaxWeight = Math.max(mMaxWeight, other.mMaxWeight);
+            mNoBreedCount += other.mNoBreedCount;
+            for (int i = 0; i < GENDER_COUNT; i++) {
+                mGenderCounts[i] += other.mGenderCounts[i];
+            }
+            for (int i = 0; i < other.mWeightHistogram.length; i++) {
+                mWeightHistogram[i] += other.mWeightHistogram[i];
+            }
+            for (int i = 0; i < mBreedCounts.length; i++) {
+                mBreedCounts[i] += other.mBreedCounts[i];
+            }
+        }
+
+        private int bucketOf(int weight) {
+            return Math.min(weight / mWeightBucketSize, MAX_WEIGHT_BUCKETS - 1);
+        }
+
+        private void ensureHistogram(int maxWeight) {
+            int buckets = bucketOf(maxWeight) + 1;
+            if (buckets > mWeightHistogram.length) {
+                int[] histogram = new int[buckets];
+                System.arraycopy(mWeightHistogram, 0, histogram, 0, mWeightHistogram.length);
+                mWeightHistogram = histogram;
+            }
+        }
+
+        /** Returns the number of pets counted */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the number of pets of the given gender.
+         *
+         * @param gender one of the gender constants in {@link PetEntry}
+         */
+        public int getGenderCount(int gender) {
+            return mGenderCounts[gender];
+        }
+
+        /** Returns the average weight in kg, or 0 if there are no pets */
+        public double getAverageWeight() {
+            return mCount == 0 ? 0 : (double) mWeightSum / mCount;
+        }
+
+        /** Returns the width of a bar of {@link #getWeightHistogram()}, in kg */
+        public int getWeightBucketSize() {
+            return mWeightBucketSize;
+        }
+
+        /**
+         * Returns the number of pets per weight range. Entry i counts the pets weighing from
+         * i * {@link #getWeightBucketSize()} up to, but not including, the next range. There are
+         * at most 1000 ranges; the last one also counts any heavier pets.
+         */
+        public int[] getWeightHistogram() {
+            return mWeightHistogram.clone();
+        }
+
+        /** Returns the distinct breeds, in the same order as {@link #getBreedCounts()} */
+        public String[] getBreeds() {
+            return mBreedDictionary.clone();
+        }
+
+        /** Returns the number of pets of each breed in {@link #getBreeds()} */
+        public int[] getBreedCounts() {
+            return mBreedCounts.clone();
+        }
+
+        /** Returns the number of pets without a breed */
+        public int getNoBreedCount() {
+            return mNoBreedCount;
+        }
+    }
+}
@@ -0,0 +1,782 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.os.TraceCompat;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A sliding window over the pets matched by a {@link PetQuery}, in the query's sort order.
+ *
+ * Only a few pages of rows are resident at any time. Pages are loaded with a keyset query
+ * ("rows that sort after the last one we have") rather than an OFFSET, so loading the next
+ * page costs the same no matter how far down the list the user has scrolled. Rows that fall
+ * out of the window are recycled for the next page.
+ *
+ * The window itself must only be used from the main thread. Pages are read on a background
+ * thread by the {@link PetRepository}, and the {@link Listener} is told once they arrive.
+ *
+ * When the table changes, {@link #refresh()} reloads only the resident rows and works out on a
+ * background thread which of them were inserted, removed, moved or changed. The listener is
+ * then told about exactly those rows, so the work done on the main thread depends on how much
+ * changed rather than on the size of the table.
+ *
+ * The first page of the catalog is read ahead while the app starts, with {@link #prefetch},
+ * so the list can be drawn without waiting for its row count to be loaded first.
+ */
+public class PetWindow {
+
+    /** Number of rows loaded by a single query */
+    public static final int PAGE_SIZE = 50;
+
+    /** Maximum number of rows kept in memory at once */
+    public static final int MAX_RESIDENT_ROWS = PAGE_SIZE * 4;
+
+    /** Start loading the next page once a row this close to the edge of the window is read */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    /** Columns read by the queries that find which rows to load */
+    private static final String[] ID_PROJECTION = { PetEntry._ID };
+
+    /** Kinds of page load */
+    private static final int LOAD_AFTER = 0;
+    private static final int LOAD_BEFORE = 1;
+    private static final int LOAD_JUMP = 2;
+
+    /**
+     * Told about changes to the window, on the main thread. Rows that finish loading are
+     * reported through {@link #onChanged(int, int, Object)}; rows that changed in the table
+     * through the other {@link ListUpdateCallback} methods.
+     */
+    public interface Listener extends ListUpdateCallback {
+
+        /** Called when the window was reloaded and every position may have changed. */
+        void onWindowReset();
+
+        /**
+         * Called after a refresh has reported its changes, unless another refresh follows
+         * straight away for changes made while it ran. Every change to the table made before
+         * the last {@link #refresh()} is then shown, or was left out of the window.
+         */
+        void onRefreshed();
+    }
+
+    /** Window of {@link PetQuery#ALL} whose first page is read ahead. Main thread only. */
+    private static PetWindow sPrefetched;
+
+    /** Repository that pages are loaded through */
+    private final PetRepository mRepository;
+
+    /** Filters and sort order of the rows in the window */
+    private PetQuery mQuery = PetQuery.ALL;
+
+    /** Resident rows, in the sort order of {@link #mQuery} */
+    private final ArrayList<PetRow> mRows = new ArrayList<>(MAX_RESIDENT_ROWS + PAGE_SIZE);
+
+    /**
+     * Rows that have left the window and can be refilled. Shared with the reader threads. Backed
+     * by an array, so that handing a row back allocates nothing; a row that doesn't fit is left
+     * to the garbage collector.
+     */
+    private final ArrayBlockingQueue<PetRow> mPool =
+            new ArrayBlockingQueue<>(MAX_RESIDENT_ROWS + PAGE_SIZE * 2);
+
+    /** Told when rows arrive */
+    private Listener mListener;
+
+    /** List position of the first resident row */
+    private int mStart;
+
+    /** Number of rows matched by the query, as of the last {@link #reset(int)} */
+    private int mCount;
+
+    /** Incremented on every reset, so pages loaded before it can be told apart and dropped */
+    private int mGeneration;
+
+    /** The page load currently running, if any */
+    private PageLoad mPendingLoad;
+
+    /** A position that was asked for while another page was loading, or -1 */
+    private int mWantedPosition = -1;
+
+    /** Incremented whenever the resident rows change, so a refresh can tell it went stale */
+    private int mVersion;
+
+    /** The refresh currently running, if any */
+    private WindowRefresh mPendingRefresh;
+
+    /** Whether the table changed again while a refresh was running */
+    private boolean mRefreshAgain;
+
+    /** Whether the rows were read ahead and the row count hasn't been set since */
+    private boolean mPrefetched;
+
+    /**
+     * Constructs a new empty window. Call {@link #reset(int)} to fill it.
+     *
+     * @param repository used to read from the database
+     */
+    public PetWindow(PetRepository repository) {
+        mRepository = repository;
+    }
+
+    /**
+     * Start reading the first page of {@link PetQuery#ALL} on a reader thread, along with its
+     * row count, so it's ready by the time the catalog is shown. Called while the app starts,
+     * on the main thread.
+     */
+    public static void prefetch(PetRepository repository) {
+        if (sPrefetched == null) {
+            sPrefetched = new PetWindow(repository);
+            sPrefetched.loadFirstPage();
+        }
+    }
+
+    /**
+     * Returns the window read ahead by {@link #prefetch(PetRepository)}, or a new empty
+     * window if there is none. The window read ahead is only handed out once.
+     */
+    public static PetWindow obtain(PetRepository repository) {
+        PetWindow window = sPrefetched;
+        sPrefetched = null;
+        return window != null ? window : new PetWindow(repository);
+    }
+
+    /**
+     * Set the listener that is told when rows are loaded.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the query the window shows the rows of.
+     */
+    public PetQuery getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * Show the rows of a different query. The window is emptied; call {@link #reset(int)} with
+     * the number of rows the new query matches to fill it again. Setting the query the window
+     * already shows keeps its rows.
+     */
+    public void setQuery(PetQuery query) {
+        if (query == mQuery) {
+            return;
+        }
+        mQuery = query;
+        reset(0);
+    }
+
+    /**
+     * Drop every resident row and start again with a new row count. Rows are loaded again
+     * as they are asked for.
+     *
+     * @param count number of rows the query now matches
+     */
+    public void reset(int count) {
+        mGeneration++;
+        mVersion++;
+        mPendingRefresh = null;
+        mRefreshAgain = false;
+        mPrefetched = false;
+        recycleRange(0, mRows.size());
+        mStart = 0;
+        mCount = count;
+        mPendingLoad = null;
+        mWantedPosition = -1;
+        if (mListener != null) {
+            mListener.onWindowReset();
+        }
+    }
+
+    /**
+     * Take the number of rows the query matches, once it's known. Rows that were read ahead
+     * are kept and only checked against the table with {@link #refresh()}, since they were
+     * read along with a row count of their own. Otherwise the window starts again as with
+     * {@link #reset(int)}.
+     */
+    public void setCount(int count) {
+        if (mPrefetched) {
+            mPrefetched = false;
+            refresh();
+        } else {
+            reset(count);
+        }
+    }
+
+    /**
+     * Bring the window up to date after the table changed. The resident rows are read again in
+     * the background and compared with the current ones by {@link PetEntry#_ID}, and the
+     * listener is told about the rows that were inserted, removed, moved or changed.
+     */
+    public void refresh() {
+        if (mPendingRefresh != null) {
+            // Run again once the current refresh is done, so the newest change is picked up
+            mRefreshAgain = true;
+            return;
+        }
+
+        final WindowRefresh refresh = new WindowRefresh();
+        mPendingRefresh = refresh;
+        mRepository.read(refresh, new PetRepository.Callback<WindowRefresh>() {
+            @Override
+            public void onResult(WindowRefresh result) {
+                onRefreshLoaded(result);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                if (mPendingRefresh == refresh) {
+                    mPendingRefresh = null;
+                    // Nothing more will come of this refresh, so stop waiting for it
+                    mRefreshAgain = false;
+                    if (mListener != null) {
+                        mListener.onRefreshed();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of rows the query matches.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the number of rows currently held in memory.
+     */
+    public int getResidentCount() {
+        return mRows.size();
+    }
+
+    /**
+     * Returns the row at the given list position. If the row isn't resident yet, this starts
+     * loading it and returns null; the {@link Listener} is told once it arrives.
+     *
+     * The returned object is owned by the window and will be reused once it scrolls away,
+     * so callers must not hold on to it.
+     */
+    public PetRow getRow(int position) {
+        if (position < 0 || position >= mCount) {
+            throw new IndexOutOfBoundsException("Invalid position " + position
+                    + ", count is " + mCount);
+        }
+
+        int index = position - mStart;
+        if (index >= 0 && index < mRows.size()) {
+            // Load the next page ahead of time if we're getting close to the edge
+            if (index >= mRows.size() - PREFETCH_DISTANCE && mStart + mRows.size() < mCount) {
+                startLoad(LOAD_AFTER, position);
+            } else if (index < PREFETCH_DISTANCE && mStart > 0) {
+                startLoad(LOAD_BEFORE, position);
+            }
+            return mRows.get(index);
+        }
+
+        if (mRows.isEmpty() || position < mStart - PAGE_SIZE
+                || position >= mStart + mRows.size() + PAGE_SIZE) {
+            // Too far from the current window to slide, so start again around the position
+            startLoad(LOAD_JUMP, position);
+        } else if (position >= mStart + mRows.size()) {
+            startLoad(LOAD_AFTER, position);
+        } else {
+            startLoad(LOAD_BEFORE, position);
+        }
+        return null;
+    }
+
+    /**
+     * Start loading a page, unless another load is already running.
+     *
+     * @param type one of {@link #LOAD_AFTER}, {@link #LOAD_BEFORE} or {@link #LOAD_JUMP}
+     * @param position that the page is needed for
+     */
+    private void startLoad(int type, int position) {
+        if (mPendingLoad != null) {
+            // Only one load at a time. If this position isn't covered by the running load,
+            // come back to it once that load is done.
+            if (!mPendingLoad.covers(position)) {
+                mWantedPosition = position;
+            }
+            return;
+        }
+
+        final PageLoad load;
+        switch (type) {
+            case LOAD_AFTER:
+                load = new PageLoad(type, mStart + mRows.size(), mRows.get(mRows.size() - 1));
+                break;
+            case LOAD_BEFORE:
+                load = new PageLoad(type, mStart - PAGE_SIZE, mRows.get(0));
+                break;
+            default:
+                load = new PageLoad(type, position - position % PAGE_SIZE, null);
+                break;
+        }
+        mPendingLoad = load;
+
+        mRepository.read(load, new PetRepository.Callback<List<PetRow>>() {
+            @Override
+            public void onResult(List<PetRow> page) {
+                onPageLoaded(load, page);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                if (mPendingLoad == load) {
+                    mPendingLoad = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the first page and the row count at once, for a window that has neither yet.
+     */
+    private void loadFirstPage() {
+        final FirstPageLoad load = new FirstPageLoad();
+        mPendingLoad = load;
+        mRepository.read(load, new PetRepository.Callback<List<PetRow>>() {
+            @Override
+            public void onResult(List<PetRow> page) {
+                onPageLoaded(load, page);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                if (mPendingLoad == load) {
+                    mPendingLoad = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Add a page that was read on a background thread to the window.
+     */
+    private void onPageLoaded(PageLoad load, List<PetRow> page) {
+        if (load != mPendingLoad || load.generation != mGeneration) {
+            // The window was reset while this page was loading
+            recycleAll(page);
+            return;
+        }
+        mPendingLoad = null;
+        mVersion++;
+
+        int positionStart;
+        switch (load.type) {
+            case LOAD_AFTER:
+                positionStart = mStart + mRows.size();
+                mRows.addAll(page);
+                int excessFront = mRows.size() - MAX_RESIDENT_ROWS;
+                if (excessFront > 0) {
+                    recycleRange(0, excessFront);
+                    mStart += excessFront;
+                }
+                break;
+            case LOAD_BEFORE:
+                mRows.addAll(0, page);
+                mStart -= page.size();
+                positionStart = mStart;
+                int excessBack = mRows.size() - MAX_RESIDENT_ROWS;
+                if (excessBack > 0) {
+                    recycleRange(mRows.size() - excessBack, mRows.size());
+                }
+                break;
+            default:
+                recycleRange(0, mRows.size());
+                mRows.addAll(page);
+                mStart = load.positionStart;
+                positionStart = mStart;
+                break;
+        }
+
+        if (load instanceof FirstPageLoad) {
+            // The row count came along with the page, so the whole list is new
+            mCount = ((FirstPageLoad) load).count;
+            mPrefetched = true;
+            if (mListener != null) {
+                mListener.onWindowReset();
+            }
+        } else if (mListener != null && !page.isEmpty()) {
+            mListener.onChanged(positionStart, page.size(), null);
+        }
+
+        // Pick up a position that was asked for while this page was loading
+        int wanted = mWantedPosition;
+        mWantedPosition = -1;
+        if (wanted >= 0 && wanted < mCount) {
+            getRow(wanted);
+        }
+    }
+
+    /**
+     * Swap in the rows read by a refresh, and tell the listener what changed.
+     */
+    private void onRefreshLoaded(WindowRefresh refresh) {
+        if (refresh != mPendingRefresh) {
+            // The window was reset while this refresh was running
+            recycleAll(refresh.newRows);
+            return;
+        }
+        mPendingRefresh = null;
+
+        if (refresh.version != mVersion) {
+            // A page was loaded while this refresh was running, so the diff no longer matches
+            // the window. Start over from the current rows.
+            recycleAll(refresh.newRows);
+            mRefreshAgain = false;
+            refresh();
+            return;
+        }
+
+        int oldStart = mStart;
+        int oldTail = mCount - mStart - mRows.size();
+
+        recycleRange(0, mRows.size());
+        mRows.addAll(refresh.newRows);
+        mStart = refresh.newStart;
+        mCount = refresh.newCount;
+        mVersion++;
+
+        if (mListener != null) {
+            // Rows before the window aren't resident, so only their number matters
+            if (mStart < oldStart) {
+                mListener.onRemoved(0, oldStart - mStart);
+            } else if (mStart > oldStart) {
+                mListener.onInserted(0, mStart - oldStart);
+            }
+
+            // Rows inside the window get item level updates
+            if (refresh.diff != null) {
+                refresh.diff.dispatchUpdatesTo(new OffsetListUpdateCallback(mListener, mStart));
+            }
+
+            // Rows after the window aren't resident either
+            int tailStart = mStart + mRows.size();
+            int newTail = mCount - tailStart;
+            if (newTail > oldTail) {
+                mListener.onInserted(tailStart, newTail - oldTail);
+            } else if (newTail < oldTail) {
+                mListener.onRemoved(tailStart, oldTail - newTail);
+            }
+        }
+
+        if (mRefreshAgain) {
+            mRefreshAgain = false;
+            refresh();
+        } else if (mListener != null) {
+            mListener.onRefreshed();
+        }
+    }
+
+    /**
+     * Move the resident rows in [from, to) back to the pool.
+     */
+    private void recycleRange(int from, int to) {
+        List<PetRow> range = mRows.subList(from, to);
+        recycleAll(range);
+        range.clear();
+    }
+
+    private void recycleAll(List<PetRow> rows) {
+        for (PetRow row : rows) {
+            row.clear();
+            mPool.offer(row);
+        }
+    }
+
+    /**
+     * Read rows into the given list, on a reader thread.
+     *
+     * Only the IDs are read by the query itself, which can usually be answered from an index
+     * alone. The pets are then taken from the {@link PetCache}, and only the ones that aren't
+     * cached are read from the table. A pet that was deleted in between is left out.
+     *
+     * @param sortOrder direction to walk the sort column in
+     * @param limit LIMIT clause, with an offset if there is one
+     */
+    private void readRows(SQLiteDatabase db, String selection, String[] selectionArgs,
+            String sortOrder, String limit, List<PetRow> rows) {
+        long[] ids;
+        int count = 0;
+        Cursor cursor = DatabaseMetrics.query(
+                db,
+                PetDbHelper.LIVE_VIEW_NAME,
+                ID_PROJECTION,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder,
+                limit);
+        try {
+            ids = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                ids[count++] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Pet[] pets = mRepository.loadPets(db, ids, count);
+        for (Pet pet : pets) {
+            if (pet == null) {
+                continue;
+            }
+            PetRow row = mPool.poll();
+            if (row == null) {
+                row = new PetRow();
+            }
+            row.set(pet);
+            rows.add(row);
+        }
+    }
+
+    /**
+     * Reads one page of rows on a reader thread.
+     */
+    private class PageLoad implements PetRepository.Operation<List<PetRow>> {
+
+        final int type;
+        final int positionStart;
+        final int generation;
+        final PetQuery query = mQuery;
+
+        /** Keyset condition for the page, built from the anchor row on the main thread */
+        final PetQuery.Selection keyset;
+
+        /**
+         * @param anchor the resident row to load the page next to, or null for
+         *               {@link #LOAD_JUMP}
+         */
+        PageLoad(int type, int positionStart, PetRow anchor) {
+            this.type = type;
+            this.positionStart = positionStart;
+            this.generation = mGeneration;
+            if (type == LOAD_AFTER) {
+                keyset = query.after(anchor.id, anchor.name, anchor.weight);
+            } else if (type == LOAD_BEFORE) {
+                keyset = query.before(anchor.id, anchor.name, anchor.weight);
+            } else {
+                keyset = null;
+            }
+        }
+
+        /**
+         * Returns true if the page this load reads contains the given position.
+         */
+        boolean covers(int position) {
+            return position >= positionStart && position < positionStart + PAGE_SIZE;
+        }
+
+        @Override
+        public List<PetRow> run(SQLiteDatabase db) {
+            ArrayList<PetRow> page = new ArrayList<>(PAGE_SIZE);
+            switch (type) {
+                case LOAD_AFTER:
+                    readRows(db, keyset.selection, keyset.selectionArgs, query.getSortOrder(),
+                            String.valueOf(PAGE_SIZE), page);
+                    break;
+                case LOAD_BEFORE:
+                    readRows(db, keyset.selection, keyset.selectionArgs,
+                            query.getReverseSortOrder(), String.valueOf(PAGE_SIZE), page);
+                    // The page was read backwards from the first row, so flip it
+                    Collections.reverse(page);
+                    break;
+                default:
+                    // There's no row to start from, so skip to the page. This walks the index
+                    // of the sort column, which is only done when the user jumps far away.
+                    readRows(db, query.getSelection(), query.getSelectionArgs(),
+                            query.getSortOrder(), positionStart + "," + PAGE_SIZE, page);
+                    break;
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Reads the first page and counts the rows of the query, on a reader thread.
+     */
+    private class FirstPageLoad extends PageLoad {
+
+        /** Number of rows the query matches, written on the reader thread */
+        int count;
+
+        FirstPageLoad() {
+            super(LOAD_JUMP, 0, null);
+        }
+
+        @Override
+        public List<PetRow> run(SQLiteDatabase db) {
+            TraceCompat.beginSection("PetWindow.firstPage");
+            try {
+                count = (int) DatabaseMetrics.count(db, PetDbHelper.LIVE_VIEW_NAME,
+                        query.getSelection(), query.getSelectionArgs());
+                return super.run(db);
+            } finally {
+                TraceCompat.endSection();
+            }
+        }
+    }
+
+    /**
+     * Reads the rows between the first and last resident rows again, on a reader thread, and
+     * compares them with a copy of the resident rows taken on the main thread.
+     */
+    private class WindowRefresh implements PetRepository.Operation<WindowRefresh> {
+
+        /** Value of {@link #mVersion} when the snapshot was taken */
+        final int version = mVersion;
+
+        final PetQuery query = mQuery;
+
+        /** Copy of the resident rows. The rows themselves may be recycled in the meantime. */
+        final long[] oldIds;
+        final String[] oldNames;
+        final String[] oldBreeds;
+        final int[] oldGenders;
+        final int[] oldWeights;
+        final String[] oldPhotos;
+
+        /** Results, written on the reader thread */
+        int newCount;
+        int newStart;
+        final ArrayList<PetRow> newRows = new ArrayList<>();
+        DiffUtil.DiffResult diff;
+
+        WindowRefresh() {
+            int size = mRows.size();
+            oldIds = new long[size];
+            oldNames = new String[size];
+            oldBreeds = new String[size];
+            oldGenders = new int[size];
+            oldWeights = new int[size];
+            oldPhotos = new String[size];
+            for (int i = 0; i < size; i++) {
+                PetRow row = mRows.get(i);
+                oldIds[i] = row.id;
+                oldNames[i] = row.name;
+                oldBreeds[i] = row.breed;
+                oldGenders[i] = row.gender;
+                oldWeights[i] = row.weight;
+                oldPhotos[i] = row.photo;
+            }
+        }
+
+        @Override
+        public WindowRefresh run(SQLiteDatabase db) {
+            newCount = (int) DatabaseMetrics.count(db, PetDbHelper.LIVE_VIEW_NAME,
+                    query.getSelection(), query.getSelectionArgs());
+            if (oldIds.length == 0) {
+                newStart = 0;
+                return this;
+            }
+
+            int last = oldIds.length - 1;
+            PetQuery.Selection before = query.before(oldIds[0], oldNames[0], oldWeights[0]);
+            newStart = (int) DatabaseMetrics.count(db, PetDbHelper.LIVE_VIEW_NAME,
+                    before.selection, before.selectionArgs);
+
+            PetQuery.Selection range = query.between(oldIds[0], oldNames[0], oldWeights[0],
+                    oldIds[last], oldNames[last], oldWeights[last]);
+            readRows(db, range.selection, range.selectionArgs, query.getSortOrder(),
+                    String.valueOf(MAX_RESIDENT_ROWS), newRows);
+
+            diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return oldIds.length;
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return newRows.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return oldIds[oldPosition] == newRows.get(newPosition).id;
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    PetRow row = newRows.get(newPosition);
+                    return TextUtils.equals(oldNames[oldPosition], row.name)
+                            && TextUtils.equals(oldBreeds[oldPosition], row.breed)
+                            && oldGenders[oldPosition] == row.gender
+                            && oldWeights[oldPosition] == row.weight
+                            && TextUtils.equals(oldPhotos[oldPosition], row.photo);
+                }
+            }, true);
+            return this;
+        }
+    }
+
+    /**
+     * Shifts the positions reported by a {@link DiffUtil.DiffResult} for the window by the
+     * window's position in the whole list.
+     */
+    private static class OffsetListUpdateCallback implements ListUpdateCallback {
+
+        private final ListUpdateCallback mTarget;
+        private final int mOffset;
+
+        OffsetListUpdateCallback(ListUpdateCallback target, int offset) {
+            mTarget = target;
+            mOffset = offset;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            mTarget.onInserted(position + mOffset, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            mTarget.onRemoved(position + mOffset, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mTarget.onMoved(fromPosition + mOffset, toPosition + mOffset);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            mTarget.onChanged(position + mOffset, count, payload);
+        }
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the database of each shelter, and runs queries across all of them.
+ *
+ * Every shelter has a database file of its own, so the pets of one shelter don't slow down
+ * queries on another, and writes to different shelters don't wait for each other's locks. Each
+ * open database costs a connection pool and a page cache, so only {@link #MAX_OPEN_SHARDS} are
+ * kept open. The least recently used one is closed when another shelter is opened, and any
+ * that went unused for {@link #IDLE_TIMEOUT_MILLIS} are closed in the background. The default
+ * shelter's database is shared with {@link PetRepository} and is never closed here.
+ *
+ * Opening a shelter's database for the first time in the process also finishes any work its
+ * last upgrade left, see {@link PetMigrations}, the way {@link PetRepository} does for the
+ * default shelter.
+ *
+ * A query across shelters reads every shelter in parallel, each already sorted and limited by
+ * SQLite, and merges the sorted cursors a row at a time.
+ */
+public final class ShelterShards {
+
+    public static final String LOG_TAG = ShelterShards.class.getSimpleName();
+
+    /** Most shelter databases kept open at once, not counting the default one */
+    private static final int MAX_OPEN_SHARDS = 4;
+
+    /** How long a shelter database may go unused before it's closed */
+    private static final long IDLE_TIMEOUT_MILLIS = 60000;
+
+    /** The one instance of this class, created on first use */
+    private static ShelterShards sInstance;
+
+    /** Application context, to open databases with */
+    private final Context mContext;
+
+    /** Open shelter databases, least recently used first. Guarded by this. */
+    private final LinkedHashMap<String, Shard> mShards = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Reads the shelters of a query, several at a time */
+    private final ExecutorService mShardExecutor;
+
+    /** Runs each query across shelters and merges what the shelters return */
+    private final ExecutorService mMergeExecutor;
+
+    /** Finishes the work upgrades of shelter databases left, and closes ones that went idle */
+    private final ScheduledExecutorService mMaintenanceExecutor;
+
+    /** Delivers results on the main thread */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Closes the shelter databases that went idle, then checks again later if any are left */
+    private final Runnable mEvictIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (evictIdle()) {
+                mMaintenanceExecutor.schedule(this, IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                synchronized (ShelterShards.this) {
+                    mEvictScheduled = false;
+                }
+            }
+        }
+    };
+
+    /** Whether {@link #mEvictIdle} is scheduled. Guarded by this. */
+    private boolean mEvictScheduled;
+
+    /**
+     * An open shelter database and how it's being used.
+     */
+    private static final class Shard {
+        final String shelterId;
+        final PetDbHelper helper;
+
+        /** Number of callers using the database right now */
+        int users;
+
+        /** When the last user let go of it, in {@link SystemClock#elapsedRealtime()} time */
+        long idleSinceMillis;
+
+        Shard(String shelterId, PetDbHelper helper) {
+            this.shelterId = shelterId;
+            this.helper = helper;
+        }
+    }
+
+    /**
+     * A pet along with the shelter it's in. IDs are only unique within a shelter.
+     */
+    public static final class ShelterPet {
+
+        private final String mShelterId;
+        private final Pet mPet;
+
+        ShelterPet(String shelterId, Pet pet) {
+            mShelterId = shelterId;
+            mPet = pet;
+        }
+
+        public String getShelterId() {
+            return mShelterId;
+        }
+
+        public Pet getPet() {
+            return mPet;
+        }
+    }
+
+    /**
+     * Returns the shelter databases for this process, creating the instance if needed.
+     *
+     * @param context of the app
+     */
+    public static synchronized ShelterShards getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ShelterShards(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ShelterShards(Context context) {
+        mContext = context;
+        int threads = Math.min(MAX_OPEN_SHARDS, Runtime.getRuntime().availableProcessors());
+        mShardExecutor = Executors.newFixedThreadPool(threads,
+                new PetRepository.BackgroundThreadFactory("ShelterShards-reader"));
+        mMergeExecutor = Executors.newSingleThreadExecutor(
+                new PetRepository.BackgroundThreadFactory("ShelterShards-merge"));
+        mMaintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+                new PetRepository.BackgroundThreadFactory("ShelterShards-maintenance"));
+    }
+
+    /**
+     * Returns the IDs of every shelter that has a database on this device, starting with
+     * {@link PetDbHelper#DEFAULT_SHELTER_ID}.
+     */
+    public List<String> getShelterIds() {
+        ArrayList<String> shelterIds = new ArrayList<>();
+        shelterIds.add(PetDbHelper.DEFAULT_SHELTER_ID);
+        // The list also holds the journal and WAL files of each database
+        for (String name : mContext.databaseList()) {
+            if (name.startsWith(PetDbHelper.SHELTER_DATABASE_PREFIX)
+                    && name.endsWith(PetDbHelper.SHELTER_DATABASE_SUFFIX)) {
+                String shelterId = name.substring(PetDbHelper.SHELTER_DATABASE_PREFIX.length(),
+                        name.length() - PetDbHelper.SHELTER_DATABASE_SUFFIX.length());
+                if (PetDbHelper.isValidShelterId(shelterId)) {
+                    shelterIds.add(shelterId);
+                }
+            }
+        }
+        return shelterIds;
+    }
+
+    /**
+     * Returns the database helper of a shelter, opening the shelter if it isn't open yet. The
+     * database is kept open until {@link #release(String)} is called as many times as this.
+     *
+     * @param shelterId of the shelter, which gets a new empty database if it has none yet
+     * @throws IllegalArgumentException if the shelter ID can't be used
+     */
+    synchronized PetDbHelper acquire(String shelterId) {
+        if (PetDbHelper.DEFAULT_SHELTER_ID.equals(shelterId)) {
+            return PetDbHelper.getInstance(mContext);
+        }
+        Shard shard = mShards.get(shelterId);
+        if (shard == null) {
+            shard = new Shard(shelterId, PetDbHelper.forShelter(mContext, shelterId));
+            mShards.put(shelterId, shard);
+            scheduleMigrations(shelterId);
+        }
+        shard.users++;
+        evictLeastRecentlyUsed();
+        return shard.helper;
+    }
+
+    /**
+     * Run the work left by upgrades of a shelter's database in the background, a chunk at a
+     * time, keeping the database open meanwhile. Most of the time there is none and opening
+     * the database is all this does.
+     */
+    private void scheduleMigrations(final String shelterId) {
+        mMaintenanceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PetDbHelper helper = acquire(shelterId);
+                try {
+                    // Opening the database upgrades it, which is what leaves the jobs
+                    SQLiteDatabase db = helper.getWritableDatabase();
+                    while (PetMigrations.runChunk(db)) {
+                        // Each chunk is its own transaction, so writes get in between
+                    }
+                } catch (SQLiteException e) {
+                    Log.e(LOG_TAG, "Unable to upgrade the database of shelter " + shelterId, e);
+                } finally {
+                    release(shelterId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Let go of a shelter's database helper returned by {@link #acquire(String)}.
+     */
+    synchronized void release(String shelterId) {
+        Shard shard = mShards.get(shelterId);
+        if (shard == null || shard.users == 0) {
+            return;
+        }
+        shard.users--;
+        if (shard.users == 0) {
+            shard.idleSinceMillis = SystemClock.elapsedRealtime();
+            if (!mEvictScheduled) {
+                mEvictScheduled = true;
+                mMaintenanceExecutor.schedule(mEvictIdle, IDLE_TIMEOUT_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Close the least recently used shelter databases that nobody is using, until no more
+     * than {@link #MAX_OPEN_SHARDS} are open. If every one is in use, more stay open for now.
+     */
+    private void evictLeastRecentlyUsed() {
+        Iterator<Shard> shards = mShards.values().iterator();
+        while (mShards.size() > MAX_OPEN_SHARDS && shards.hasNext()) {
+            Shard shard = shards.next();
+            if (shard.users == 0) {
+                shards.remove();
+                close(shard);
+            }
+        }
+    }
+
+    /**
+     * Close the shelter databases that have been idle for long enough, on the maintenance thread.
+     *
+     * @return whether any shelter databases are still open
+     */
+    private synchronized boolean evictIdle() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Shard> shards = mShards.values().iterator();
+        while (shards.hasNext()) {
+            Shard shard = shards.next();
+            if (shard.users == 0 && now - shard.idleSinceMillis >= IDLE_TIMEOUT_MILLIS) {
+                shards.remove();
+                close(shard);
+            }
+        }
+        return !mShards.isEmpty();
+    }
+
+    private static void close(Shard shard) {
+        Log.d(LOG_TAG, "Closing the database of shelter " + shard.shelterId);
+        shard.helper.close();
+    }
+
+    /**
+     * Find the pets matched by a query in every shelter on this device, in the query's sort
+     * order. Pets that sort the same are ordered by ID, then by shelter.
+     *
+     * @param query filters and sort order, for example every female pet under 5 kg
+     * @param limit maximum number of pets to return
+     * @param callback receives the pets
+     */
+    public Future<List<ShelterPet>> queryAllShelters(final PetQuery query, final int limit,
+            final PetRepository.Callback<List<ShelterPet>> callback) {
+        final List<String> shelterIds = getShelterIds();
+        final FutureTask<List<ShelterPet>> task = new FutureTask<List<ShelterPet>>(
+                new Callable<List<ShelterPet>>() {
+                    @Override
+                    public List<ShelterPet> call() throws Exception {
+                        return mergeShelters(shelterIds, query, limit);
+                    }
+                }) {
+            @Override
+            protected void done() {
+                if (isCancelled() || callback == null) {
+                    return;
+                }
+                try {
+                    final List<ShelterPet> result = get();
+                    deliver(this, new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(result);
+                        }
+                    });
+                } catch (final ExecutionException e) {
+                    deliver(this, new Runnable() {
+                        @Override
+                        public void run() {
+                            Throwable cause = e.getCause();
+                            callback.onError(cause instanceof Exception ? (Exception) cause : e);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    // get() doesn't block once the task is done, so this can't happen
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        mMergeExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Post an outcome to the main thread, unless the task is cancelled before it gets there.
+     */
+    private void deliver(final Future<?> task, final Runnable outcome) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!task.isCancelled()) {
+                    outcome.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Query every shelter in parallel, then merge the sorted results. Runs on the merge
+     * thread.
+     */
+    private List<ShelterPet> mergeShelters(List<String> shelterIds, PetQuery query, int limit)
+            throws InterruptedException, ExecutionException {
+        ArrayList<Future<Cursor>> reads = new ArrayList<>(shelterIds.size());
+        ArrayList<String> acquired = new ArrayList<>(shelterIds.size());
+        ArrayList<Cursor> cursors = new ArrayList<>(shelterIds.size());
+        try {
+            for (String shelterId : shelterIds) {
+                PetDbHelper helper = acquire(shelterId);
+                acquired.add(shelterId);
+                reads.add(mShardExecutor.submit(new ShardRead(helper, query, limit)));
+            }
+            for (Future<Cursor> read : reads) {
+                cursors.add(read.get());
+            }
+            return merge(shelterIds, cursors, query.getSortBy(), limit);
+        } finally {
+            // After a failure, wait for the reads that are still running so their cursors are
+            // closed too, before their shelters are released
+            boolean interrupted = false;
+            for (int i = cursors.size(); i < reads.size(); i++) {
+                try {
+                    cursors.add(reads.get(i).get());
+                } catch (ExecutionException e) {
+                    // Failed, so there's no cursor to close
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    i--;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+            for (String shelterId : acquired) {
+                release(shelterId);
+            }
+        }
+    }
+
+    /**
+     * Merge cursors that are each sorted already. Only the first row of each cursor is
+     * compared at a time, so every pet is read once and the merge stops once it has enough.
+     */
+    private static List<ShelterPet> merge(List<String> shelterIds, List<Cursor> cursors,
+            int sortBy, int limit) throws InterruptedException {
+        long start = DatabaseMetrics.start();
+        BreedInterner breeds = BreedInterner.forCurrentThread();
+        PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(cursors.size(), 1));
+        for (int i = 0; i < cursors.size(); i++) {
+            Head head = new Head(i, cursors.get(i), sortBy);
+            if (head.advance(breeds)) {
+                heads.add(head);
+            }
+        }
+
+        ArrayList<ShelterPet> results = new ArrayList<>();
+        while (results.size() < limit && !heads.isEmpty()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Head head = heads.poll();
+            results.add(new ShelterPet(shelterIds.get(head.shard), head.pet));
+            if (head.advance(breeds)) {
+                heads.add(head);
+            }
+        }
+        DatabaseMetrics.record("merge", PetEntry.TABLE_NAME, start, results.size());
+        return results;
+    }
+
+    /**
+     * The next pet of one shelter's cursor, ordered like the query sorts.
+     */
+    private static final class Head implements Comparable<Head> {
+
+        final int shard;
+        final Cursor cursor;
+        final int sortBy;
+        Pet pet;
+
+        Head(int shard, Cursor cursor, int sortBy) {
+            this.shard = shard;
+            this.cursor = cursor;
+            this.sortBy = sortBy;
+        }
+
+        /**
+         * Move to the cursor's next pet.
+         *
+         * @return false if the cursor has no more pets
+         */
+        boolean advance(BreedInterner breeds) {
+            if (!cursor.moveToNext()) {
+                pet = null;
+                return false;
+            }
+            pet = Pet.fromCursor(cursor, breeds);
+            return true;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            int result = 0;
+            if (sortBy == PetQuery.SORT_BY_NAME) {
+                result = compareCodePoints(pet.getName(), other.pet.getName());
+            } else if (sortBy == PetQuery.SORT_BY_WEIGHT) {
+                result = compare(pet.getWeight(), other.pet.getWeight());
+            }
+            if (result == 0) {
+                result = compare(pet.getId(), other.pet.getId());
+            }
+            return result != 0 ? result : compare(shard, other.shard);
+        }
+
+        private static int compare(long a, long b) {
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+
+        /**
+         * Compares like SQLite's BINARY collation, which compares the UTF-8 bytes and so
+         * orders by code point rather than by UTF-16 char.
+         */
+        private static int compareCodePoints(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (i < a.length() && j < b.length()) {
+                int ca = a.codePointAt(i);
+                int cb = b.codePointAt(j);
+                if (ca != cb) {
+                    return ca < cb ? -1 : 1;
+                }
+                i += Character.charCount(ca);
+                j += Character.charCount(cb);
+            }
+            return compare(a.length() - i, b.length() - j);
+        }
+    }
+
+    /**
+     * Reads the pets of one shelter that match a query, sorted and limited, on a shard reader
+     * thread.
+     */
+    private static final class ShardRead implements Callable<Cursor> {
+
+        private final PetDbHelper mHelper;
+        private final PetQuery mQuery;
+        private final int mLimit;
+
+        ShardRead(PetDbHelper helper, PetQuery query, int limit) {
+            mHelper = helper;
+            mQuery = query;
+            mLimit = limit;
+        }
+
+        @Override
+        public Cursor call() {
+            SQLiteDatabase db = mHelper.getReadableDatabase();
+            // The query runs to the end of its first window here, in parallel with the other
+            // shelters, rather than during the merge
+            return DatabaseMetrics.query(
+                    db,
+                    PetDbHelper.LIVE_VIEW_NAME,
+                    PetRow.PROJECTION,
+                    mQuery.getSelection(),
+                    mQuery.getSelectionArgs(),
+                    null,
+                    null,
+                    mQuery.getSortOrder(),
+                    String.valueOf(mLimit));
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the pets in step with a server by exchanging only what changed.
+ *
+ * A sync first pushes the local changes from the {@link PetChangeLog}, oldest first and a
+ * batch per request, and drops each batch from the log once the server acknowledges it. Then
+ * it pulls the server's changes since the last one it pulled, a batch per request, applying
+ * each batch in one transaction. Both directions pick up where they left off if a sync is
+ * interrupted, so the requests and bytes sent depend on the number of changes, not on the
+ * number of pets.
+ *
+ * The server's API, relative to its base URL:
+ * <ul>
+ *     <li>POST changes, with {"changes": [...]}, answers {"acknowledged": seq} with the
+ *     sequence number of the last change it stored.</li>
+ *     <li>GET changes?since=seq&amp;limit=n answers {"changes": [...], "more": bool} with
+ *     changes after the given one, in order.</li>
+ * </ul>
+ * A change is {"seq", "op", "id"}, where op is "upsert", "delete" or "delete_up_to", and
+ * upserts also have "name", "breed", "gender" and "weight".
+ *
+ * Requests that fail for network errors or server errors are retried with exponential
+ * backoff.
+ */
+public class SyncEngine {
+
+    public static final String LOG_TAG = SyncEngine.class.getSimpleName();
+
+    /** Number of changes sent per push request */
+    private static final int PUSH_BATCH_SIZE = 500;
+
+    /** Number of changes asked for per pull request */
+    private static final int PULL_BATCH_SIZE = 500;
+
+    /** Number of times a request is tried before the sync gives up */
+    private static final int MAX_ATTEMPTS = 5;
+
+    /** Wait before the first retry, doubled for every retry after it */
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    /**
+     * Longest a sync waits for a database operation. Writes queue up behind an import, so this
+     * is generous; the sync gives up and tries again next time rather than hang.
+     */
+    private static final long DATABASE_TIMEOUT_MILLIS = 120000;
+
+    private static final String PATH_CHANGES = "changes";
+
+    private static final String OP_UPSERT = "upsert";
+    private static final String OP_DELETE = "delete";
+    private static final String OP_DELETE_UP_TO = "delete_up_to";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The one instance of this class, created on first use */
+    private static SyncEngine sInstance;
+
+    private final PetRepository mRepository;
+    private final SyncTransport mTransport;
+
+    /** Runs syncs, one at a time */
+    private final ExecutorService mExecutor;
+
+    /** Whether a sync is waiting to start, so requests made meanwhile share it */
+    private final AtomicBoolean mSyncPending = new AtomicBoolean();
+
+    private final Random mRandom = new Random();
+
+    /**
+     * What a sync did.
+     */
+    public static final class Result {
+        public int pushed;
+        public int pulled;
+        public int requests;
+
+        @Override
+        public String toString() {
+            return "pushed " + pushed + ", pulled " + pulled + " in " + requests + " requests";
+        }
+    }
+
+    /**
+     * Returns the sync engine for this process, creating it if needed.
+     *
+     * @param context of the app
+     * @param serverUrl base URL of the server's sync API, used when the engine is created
+     */
+    public static synchronized SyncEngine getInstance(Context context, String serverUrl) {
+        if (sInstance == null) {
+            sInstance = new SyncEngine(PetRepository.getInstance(context),
+                    new HttpSyncTransport(serverUrl));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param transport that carries the requests to the server
+     */
+    public SyncEngine(PetRepository repository, SyncTransport transport) {
+        mRepository = repository;
+        mTransport = transport;
+        mExecutor = Executors.newSingleThreadExecutor(
+                new PetRepository.BackgroundThreadFactory("SyncEngine"));
+    }
+
+    /**
+     * Sync in the background. If a sync is already waiting to start, this one is dropped, as
+     * the waiting one will pick up everything anyway. Safe to call from any thread.
+     */
+    public void requestSync() {
+        if (!mSyncPending.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSyncPending.set(false);
+                try {
+                    Log.i(LOG_TAG, "Synced: " + syncNow());
+                } catch (IOException | RuntimeException e) {
+                    // A database error or a shared server is no reason to take the app down;
+                    // the next sync tries again
+                    Log.w(LOG_TAG, "Sync failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Push the local changes, then pull the server's. Blocks until done, so it must not be
+     * called on the main thread.
+     *
+     * @throws IOException if a request still fails after all its retries
+     */
+    public Result syncNow() throws IOException {
+        Result result = new Result();
+        push(result);
+        pull(result);
+        return result;
+    }
+
+    private void push(Result result) throws IOException {
+        PetChangeLog.Batch batch;
+        do {
+            batch = await(mRepository.read(new PetRepository.Operation<PetChangeLog.Batch>() {
+                @Override
+                public PetChangeLog.Batch run(SQLiteDatabase db) {
+                    return PetChangeLog.readPending(db, PUSH_BATCH_SIZE);
+                }
+            }, null));
+            if (batch.lastSeq == 0) {
+                return;
+            }
+
+            long acknowledged = batch.lastSeq;
+            if (!batch.changes.isEmpty()) {
+                byte[] response = send(PATH_CHANGES, encodeChanges(batch.changes));
+                result.requests++;
+                long serverSeq = readAcknowledged(response);
+                long lastSent = batch.changes.get(batch.changes.size() - 1).seq;
+                if (serverSeq < batch.changes.get(0).seq) {
+                    throw new IOException("Server acknowledged none of the changes");
+                }
+                if (serverSeq < lastSent) {
+                    // Only part of the batch was stored. The rest goes in the next one.
+                    acknowledged = serverSeq;
+                    batch.more = true;
+                }
+                for (PetChangeLog.Change change : batch.changes) {
+                    if (change.seq <= acknowledged) {
+                        result.pushed++;
+                    }
+                }
+            }
+
+            final long seq = acknowledged;
+            await(mRepository.maintain(new PetRepository.Operation<Integer>() {
+                @Override
+                public Integer run(SQLiteDatabase db) {
+                    return PetChangeLog.acknowledge(db, seq);
+                }
+            }));
+        } while (batch.more);
+    }
+
+    private void pull(Result result) throws IOException {
+        long since = await(mRepository.read(new PetRepository.Operation<Long>() {
+            @Override
+            public Long run(SQLiteDatabase db) {
+                return PetChangeLog.getPulledSeq(db);
+            }
+        }, null));
+        // A device that has never had a pet takes on the server's IDs, see PetChangeLog
+        final boolean restoring = since == 0 && await(mRepository.read(
+                new PetRepository.Operation<Long>() {
+                    @Override
+                    public Long run(SQLiteDatabase db) {
+                        return PetChangeLog.getLastPetId(db);
+                    }
+                }, null)) == 0;
+
+        boolean more;
+        do {
+            byte[] response = send(PATH_CHANGES + "?since=" + since
+                    + "&limit=" + PULL_BATCH_SIZE, null);
+            result.requests++;
+            final List<PetChangeLog.Change> changes = new ArrayList<>();
+            more = readChanges(response, changes);
+            if (changes.isEmpty()) {
+                break;
+            }
+
+            final long pulledSeq = changes.get(changes.size() - 1).seq;
+            try {
+                await(mRepository.write(new PetRepository.Operation<Void>() {
+                    @Override
+                    public Void run(SQLiteDatabase db) {
+                        PetChangeLog.applyRemote(db, changes, pulledSeq, restoring);
+                        mRepository.getCache().clear();
+                        return null;
+                    }
+                }, null));
+            } catch (IllegalStateException e) {
+                // Pulling again won't help, but it mustn't take down the sync thread either
+                throw new IOException("Server has changes from another device", e);
+            }
+            result.pulled += changes.size();
+            since = pulledSeq;
+        } while (more);
+
+        if (result.pulled > 0) {
+            // Pulled deletes leave rows to purge, the same as local ones
+            mRepository.schedulePurge();
+        }
+    }
+
+    /**
+     * Send a request, retrying with exponential backoff and jitter while it fails for reasons
+     * that may go away.
+     *
+     * @param body to post, or null to get
+     */
+    private byte[] send(String path, byte[] body) throws IOException {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return body == null ? mTransport.get(path) : mTransport.post(path, body);
+            } catch (IOException e) {
+                boolean retryable = !(e instanceof SyncTransport.StatusException)
+                        || ((SyncTransport.StatusException) e).isRetryable();
+                if (!retryable || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                // Somewhere between half and all of the backoff, so clients that failed
+                // together don't all come back at the same moment
+                long delay = backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2);
+                Log.w(LOG_TAG, "Request failed, retrying in " + delay + " ms: " + e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry");
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Wait for a repository operation, rethrowing what made it fail. An operation that doesn't
+     * finish in time is cancelled, unless it has started already.
+     */
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get(DATABASE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("Timed out waiting for the database");
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the database");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static byte[] encodeChanges(List<PetChangeLog.Change> changes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, UTF_8));
+        try {
+            writer.beginObject();
+            writer.name("changes").beginArray();
+            for (PetChangeLog.Change change : changes) {
+                writer.beginObject();
+                writer.name("seq").value(change.seq);
+                writer.name("id").value(change.petId);
+                if (change.op == PetChangeLog.OP_UPSERT) {
+                    writer.name("op").value(OP_UPSERT);
+                    writer.name("name").value(change.name);
+                    writer.name("breed").value(change.breed);
+                    writer.name("gender").value(change.gender);
+                    writer.name("weight").value(change.weight);
+                } else if (change.op == PetChangeLog.OP_DELETE) {
+                    writer.name("op").value(OP_DELETE);
+                } else {
+                    writer.name("op").value(OP_DELETE_UP_TO);
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static long readAcknowledged(byte[] response) throws IOException {
+        JsonReader reader = newReader(response);
+        try {
+            long acknowledged = -1;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("acknowledged".equals(reader.nextName())) {
+                    acknowledged = reader.nextLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return acknowledged;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the changes of a pull response.
+     *
+     * @param changes filled with the changes
+     * @return whether the server has more changes after these
+     */
+    private static boolean readChanges(byte[] response, List<PetChangeLog.Change> changes)
+            throws IOException {
+        JsonReader reader = newReader(response);
+        try {
+            boolean more = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if ("more".equals(key)) {
+                    more = reader.nextBoolean();
+                } else if ("changes".equals(key)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        changes.add(readChange(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return more;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static PetChangeLog.Change readChange(JsonReader reader) throws IOException {
+        PetChangeLog.Change change = new PetChangeLog.Change();
+        String op = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if ("seq".equals(key)) {
+                change.seq = reader.nextLong();
+            } else if ("op".equals(key)) {
+                op = reader.nextString();
+            } else if ("id".equals(key)) {
+                change.petId = reader.nextLong();
+            } else if ("name".equals(key)) {
+                change.name = reader.nextString();
+            } else if ("breed".equals(key)) {
+                change.breed = reader.nextString();
+            } else if ("gender".equals(key)) {
+                change.gender = reader.nextInt();
+            } else if ("weight".equals(key)) {
+                change.weight = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (OP_UPSERT.equals(op)) {
+            if (change.name == null) {
+                throw new IOException("Upsert of pet " + change.petId + " has no name");
+            }
+            if (!PetEntry.isValidGender(change.gender)) {
+                throw new IOException("Upsert of pet " + change.petId + " has invalid gender "
+                        + change.gender);
+            }
+            change.op = PetChangeLog.OP_UPSERT;
+        } else if (OP_DELETE.equals(op)) {
+            change.op = PetChangeLog.OP_DELETE;
+        } else if (OP_DELETE_UP_TO.equals(op)) {
+            change.op = PetChangeLog.OP_DELETE_UP_TO;
+        } else {
+            throw new IOException("Unknown change " + op);
+        }
+        return change;
+    }
+
+    private static JsonReader newReader(byte[] json) {
+        return new JsonReader(new InputStreamReader(new ByteArrayInputStream(json), UTF_8));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import java.io.IOException;
+
+/**
+ * Carries the requests of a {@link SyncEngine} to the server. {@link HttpSyncTransport} talks
+ * to a real server; other implementations can stand in for one.
+ */
+public interface SyncTransport {
+
+    /**
+     * Send a request with a body.
+     *
+     * @param path relative to the server's base URL
+     * @param body JSON, uncompressed
+     * @return the response body, uncompressed
+     * @throws StatusException if the server answered with an error
+     */
+    byte[] post(String path, byte[] body) throws IOException;
+
+    /**
+     * Send a request without a body.
+     *
+     * @param path relative to the server's base URL, with the query string
+     * @return the response body, uncompressed
+     * @throws StatusException if the server answered with an error
+     */
+    byte[] get(String path) throws IOException;
+
+    /**
+     * The server answered with an HTTP error status.
+     */
+    class StatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int mStatus;
+
+        public StatusException(int status, String message) {
+            super("HTTP " + status + ": " + message);
+            mStatus = status;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * Returns whether sending the same request again later might work: the server had a
+         * problem of its own, timed out or asked to slow down.
+         */
+        public boolean isRetryable() {
+            return mStatus >= 500 || mStatus == 408 || mStatus == 429;
+        }
+    }
+}
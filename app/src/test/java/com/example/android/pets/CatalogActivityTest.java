@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.content.ContentValues;
+import android.support.v7.widget.RecyclerView;
+
+import com.example.android.pets.data.DatabaseMetrics;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetRepository;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the catalog with the app's resources, so it needs the build's merged resources
+ * ({@code includeAndroidResources}).
+ *
+ * The main looper is paused, so results posted by the loader and the repository wait until
+ * the test runs them, the way they would run on the main thread of the app.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class CatalogActivityTest {
+
+    private static final int PET_COUNT = 3;
+
+    /** Longest a test waits for background work */
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    /** How long no database call must be made before the catalog counts as settled */
+    private static final long SETTLE_MILLIS = 500;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLooper.pauseMainLooper();
+        PetRepository repository = PetRepository.getInstance(RuntimeEnvironment.application);
+        ContentValues values = new ContentValues();
+        for (int i = 1; i <= PET_COUNT; i++) {
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_BREED, "Tabby");
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, i);
+            repository.insertPet(values, null).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void comingBackWithoutChangesQueriesNothing() {
+        ActivityController<CatalogActivity> controller =
+                Robolectric.buildActivity(CatalogActivity.class).setup();
+        RecyclerView list = (RecyclerView) controller.get().findViewById(R.id.list);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (list.getAdapter().getItemCount() != PET_COUNT) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for the pets to load");
+            }
+            runUiFor(10);
+        }
+        settle();
+        int calls = DatabaseMetrics.getInstance().getCalls();
+
+        // Leave the catalog, for example for the editor, and come back without saving
+        controller.pause().stop();
+        settle();
+        controller.restart().start().resume();
+        settle();
+
+        assertEquals(DatabaseMetrics.getInstance().toString(),
+                calls, DatabaseMetrics.getInstance().getCalls());
+        assertEquals(PET_COUNT, list.getAdapter().getItemCount());
+    }
+
+    /**
+     * Run what was posted to the main thread until no database call has been made for a while.
+     */
+    private static void settle() {
+        int calls;
+        do {
+            calls = DatabaseMetrics.getInstance().getCalls();
+            runUiFor(SETTLE_MILLIS);
+        } while (calls != DatabaseMetrics.getInstance().getCalls());
+    }
+
+    private static void runUiFor(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            ShadowLooper.runUiThreadTasks();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.MatrixCursor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Reads breeds from a {@link MatrixCursor}, which copies them into the buffer in Java. Under
+ * Robolectric a cursor over SQLite leaves the buffer empty, as its CursorWindow doesn't
+ * implement copying a string into one.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class BreedInternerTest {
+
+    @Test
+    public void petsOfABreedShareOneString() {
+        MatrixCursor cursor = newCursor("Tabby", "Beagle", "Tabby", "Beagle", "Tabby");
+        BreedInterner breeds = new BreedInterner();
+        String[] read = new String[cursor.getCount()];
+        while (cursor.moveToNext()) {
+            read[cursor.getPosition()] = breeds.read(cursor, 0);
+        }
+
+        assertEquals("Tabby", read[0]);
+        assertEquals("Beagle", read[1]);
+        assertSame(read[0], read[2]);
+        assertSame(read[0], read[4]);
+        assertSame(read[1], read[3]);
+        assertNotSame(read[0], read[1]);
+    }
+
+    @Test
+    public void internersShareTheirBreeds() {
+        MatrixCursor cursor = newCursor("Siamese");
+        cursor.moveToFirst();
+        assertSame(new BreedInterner().read(cursor, 0), new BreedInterner().read(cursor, 0));
+    }
+
+    @Test
+    public void breedsLongerThanTheBufferAreRead() {
+        String breed = "Staffordshire Bull Terrier crossed with a Labrador";
+        MatrixCursor cursor = newCursor(breed, breed);
+        BreedInterner breeds = new BreedInterner();
+        cursor.moveToFirst();
+        String first = breeds.read(cursor, 0);
+        cursor.moveToNext();
+        assertEquals(breed, first);
+        assertSame(first, breeds.read(cursor, 0));
+    }
+
+    @Test
+    public void missingBreedsAreNull() {
+        MatrixCursor cursor = newCursor(null, "");
+        BreedInterner breeds = new BreedInterner();
+        cursor.moveToFirst();
+        assertNull(breeds.read(cursor, 0));
+        cursor.moveToNext();
+        assertNull(breeds.read(cursor, 0));
+    }
+
+    private static MatrixCursor newCursor(String... breeds) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "breed" });
+        for (String breed : breeds) {
+            cursor.addRow(new Object[] { breed });
+        }
+        return cursor;
+    }
+}
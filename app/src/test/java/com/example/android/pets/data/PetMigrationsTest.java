@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PetMigrationsTest {
+
+    private static final int PET_COUNT = 20000;
+
+    private static final String SHELTER_ID = "legacy";
+
+    private static final int MILLION_PET_COUNT = 1000000;
+
+    /**
+     * Most an upgrade of a million pets may take. It does no work per row, so this is mostly
+     * opening the file; generous for slow machines.
+     */
+    private static final long MAX_UPGRADE_MILLIS = 3000;
+
+    /** Most a chunk of rows may hold the writer for; generous for slow machines */
+    private static final long MAX_ROW_CHUNK_MILLIS = 1500;
+
+    @Test
+    public void upgradeQueuesTheWorkOverTheRows() {
+        createVersion1Database();
+        PetDbHelper dbHelper = TestPets.newDbHelper(SHELTER_ID);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        assertTrue(PetMigrations.isPending(db, PetMigrations.JOB_SEARCH_INDEX));
+        assertTrue(PetMigrations.isPending(db, PetMigrations.JOB_QUERY_INDEXES));
+        assertTrue(PetMigrations.isPending(db, PetMigrations.JOB_CHANGE_LOG));
+        assertEquals(0, countRows(db, PetDbHelper.CHANGE_LOG_TABLE_NAME));
+        assertEquals(PET_COUNT, countRows(db, PetDbHelper.LIVE_VIEW_NAME));
+        dbHelper.close();
+    }
+
+    @Test
+    public void searchIndexGoesOnWhereItStoppedAfterARestart() {
+        restartHalfwayThrough(PetDbHelper.SEARCH_TABLE_NAME + "_docsize");
+    }
+
+    @Test
+    public void changeLogGoesOnWhereItStoppedAfterARestart() {
+        restartHalfwayThrough(PetDbHelper.CHANGE_LOG_TABLE_NAME);
+    }
+
+    /**
+     * Upgrade, run the jobs until half the rows are in the given table, then start again and
+     * let the repository finish them. Two pets the jobs haven't reached are changed before
+     * they go on.
+     */
+    private static void restartHalfwayThrough(String table) {
+        createVersion1Database();
+        PetDbHelper dbHelper = TestPets.newDbHelper(SHELTER_ID);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        while (countRows(db, table) < PET_COUNT / 2) {
+            assertTrue(PetMigrations.runChunk(db));
+        }
+        long done = countRows(db, table);
+        assertTrue("Done " + done, done < PET_COUNT);
+        dbHelper.close();
+
+        dbHelper = TestPets.newDbHelper(SHELTER_ID);
+        db = dbHelper.getWritableDatabase();
+        assertEquals(done, countRows(db, table));
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Rex");
+        assertEquals(1, db.update(PetEntry.TABLE_NAME, values, PetEntry._ID + " = ?",
+                new String[] { String.valueOf(PET_COUNT) }));
+        // Deleted, then purged
+        assertEquals(1, PetPurger.deletePet(db, PET_COUNT - 1));
+        db.execSQL("DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = "
+                + (PET_COUNT - 1));
+
+        TestPets.newRepository(dbHelper);
+        final SQLiteDatabase migrating = db;
+        TestPets.runUiUntil(new TestPets.Condition() {
+            @Override
+            public boolean isMet() {
+                return countRows(migrating, PetMigrations.TABLE_NAME) == 0;
+            }
+        });
+
+        // Every pet logged once, the deleted one with its delete
+        assertEquals(PET_COUNT, countRows(db, PetDbHelper.CHANGE_LOG_TABLE_NAME));
+        // Every pet indexed once, the edited one as it is now
+        assertEquals(PET_COUNT - 2, countMatches(db, "pet"));
+        assertEquals(1, countMatches(db, "12345"));
+        assertEquals(0, countMatches(db, String.valueOf(PET_COUNT - 1)));
+        assertEquals(PET_COUNT, DatabaseUtils.longForQuery(db, "SELECT docid FROM "
+                + PetDbHelper.SEARCH_TABLE_NAME + " WHERE " + PetDbHelper.SEARCH_TABLE_NAME
+                + " MATCH 'rex'", null));
+        PetDbHelper newHelper = TestPets.newDbHelper("new");
+        assertEquals(getSchema(newHelper.getWritableDatabase()), getSchema(db));
+        newHelper.close();
+    }
+
+    /**
+     * Upgrade a million pets and time what holds the writer thread, which a save from the UI
+     * waits behind. Opening the database, which upgrades it, runs on a background thread in
+     * the app too. The times are printed for comparing runs.
+     */
+    @Test
+    public void upgradingAMillionPetsHoldsTheWriterBrieflyPerChunk() {
+        createVersion1Database(MILLION_PET_COUNT);
+        long start = System.nanoTime();
+        PetDbHelper dbHelper = TestPets.newDbHelper(SHELTER_ID);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long upgradeMillis = (System.nanoTime() - start) / 1000000;
+        System.out.println("Upgrade of " + MILLION_PET_COUNT + " pets: " + upgradeMillis + " ms");
+        assertTrue("Upgrade took " + upgradeMillis + " ms", upgradeMillis < MAX_UPGRADE_MILLIS);
+
+        long slowestRowChunkMillis = 0;
+        long slowestIndexMillis = 0;
+        while (true) {
+            boolean buildingIndex = !PetMigrations.isPending(db, PetMigrations.JOB_SEARCH_INDEX)
+                    && PetMigrations.isPending(db, PetMigrations.JOB_QUERY_INDEXES);
+            start = System.nanoTime();
+            if (!PetMigrations.runChunk(db)) {
+                break;
+            }
+            long millis = (System.nanoTime() - start) / 1000000;
+            if (buildingIndex) {
+                slowestIndexMillis = Math.max(slowestIndexMillis, millis);
+            } else {
+                slowestRowChunkMillis = Math.max(slowestRowChunkMillis, millis);
+            }
+        }
+        System.out.println("Slowest chunk of rows: " + slowestRowChunkMillis
+                + " ms, slowest index: " + slowestIndexMillis + " ms");
+        assertTrue("Chunk took " + slowestRowChunkMillis + " ms",
+                slowestRowChunkMillis < MAX_ROW_CHUNK_MILLIS);
+        assertEquals(MILLION_PET_COUNT, countRows(db, PetDbHelper.CHANGE_LOG_TABLE_NAME));
+        assertEquals(MILLION_PET_COUNT, countRows(db, PetDbHelper.SEARCH_TABLE_NAME + "_docsize"));
+        dbHelper.close();
+    }
+
+    @Test
+    public void newDatabaseHasNoJobs() {
+        PetDbHelper dbHelper = TestPets.newDbHelper("new");
+        assertFalse(PetMigrations.runChunk(dbHelper.getWritableDatabase()));
+        dbHelper.close();
+    }
+
+    /**
+     * Create the shelter's database the way the first version of the app did, with pets.
+     */
+    private static void createVersion1Database() {
+        createVersion1Database(PET_COUNT);
+    }
+
+    /**
+     * Create the shelter's database the way the first version of the app did, with the given
+     * number of pets.
+     */
+    private static void createVersion1Database(int petCount) {
+        File file = RuntimeEnvironment.application.getDatabasePath(
+                PetDbHelper.SHELTER_DATABASE_PREFIX + SHELTER_ID
+                        + PetDbHelper.SHELTER_DATABASE_SUFFIX);
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            db.execSQL("CREATE TABLE " + PetEntry.TABLE_NAME + " ("
+                    + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+                    + PetEntry.COLUMN_PET_BREED + " TEXT, "
+                    + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+                    + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);");
+            // A large table is made by copying its pets over and over, which is much faster
+            // than inserting them one at a time. The copies have the same names.
+            int inserted = petCount;
+            while (inserted > PET_COUNT && inserted % 2 == 0) {
+                inserted /= 2;
+            }
+            TestPets.insertPets(db, inserted);
+            String columns = PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", "
+                    + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT;
+            for (; inserted < petCount; inserted *= 2) {
+                db.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " (" + columns + ") SELECT "
+                        + columns + " FROM " + PetEntry.TABLE_NAME);
+            }
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static long countMatches(SQLiteDatabase db, String text) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + PetDbHelper.SEARCH_TABLE_NAME + " WHERE " + PetDbHelper.SEARCH_TABLE_NAME
+                + " MATCH ?", new String[] { text });
+    }
+
+    private static long countRows(SQLiteDatabase db, String table) {
+        return DatabaseUtils.queryNumEntries(db, table);
+    }
+
+    /**
+     * Returns the type and name of every table, index, view and trigger.
+     */
+    private static Set<String> getSchema(SQLiteDatabase db) {
+        Set<String> schema = new HashSet<>();
+        Cursor cursor = db.rawQuery("SELECT type, name FROM sqlite_master", null);
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(cursor.getString(0) + " " + cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PetPurgerTest {
+
+    /** Rows the tests purge per transaction */
+    private static final int BATCH_SIZE = 4;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = TestPets.newDbHelper("purger").getWritableDatabase();
+        TestPets.insertPets(mDb, 10);
+    }
+
+    @Test
+    public void deletingMarksPetsAndLogsTheDeletes() {
+        assertEquals(1, PetPurger.deletePet(mDb, 3));
+        assertEquals(1, PetPurger.deletePet(mDb, 7));
+        assertEquals(0, PetPurger.deletePet(mDb, 7));
+
+        assertEquals(Arrays.asList(3L, 7L), readIds(PetDbHelper.TOMBSTONE_TABLE_NAME));
+        assertEquals(10, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME));
+        assertEquals(8, DatabaseUtils.queryNumEntries(mDb, PetDbHelper.LIVE_VIEW_NAME));
+        assertEquals(0, getDeletedUpTo());
+        assertEquals(Arrays.asList("1 upsert", "2 upsert", "4 upsert", "5 upsert", "6 upsert",
+                "8 upsert", "9 upsert", "10 upsert", "3 delete", "7 delete"), readChanges());
+
+        // Deleting every pet only moves the mark, and its change replaces those it covers
+        assertEquals(8, PetPurger.deleteAllPets(mDb));
+        assertEquals(10, getDeletedUpTo());
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, PetDbHelper.TOMBSTONE_TABLE_NAME));
+        assertEquals(10, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, PetDbHelper.LIVE_VIEW_NAME));
+        assertEquals(Arrays.asList("10 delete up to"), readChanges());
+    }
+
+    @Test
+    public void purgingRemovesTheMarkedRowsButKeepsTheLog() {
+        PetPurger.deletePet(mDb, 3);
+        PetPurger.deleteAllPets(mDb);
+        TestPets.insertPets(mDb, 5);
+        PetPurger.deletePet(mDb, 12);
+        List<String> changes = readChanges();
+
+        int batches = 0;
+        int purged;
+        int total = 0;
+        while ((purged = PetPurger.purgeBatch(mDb, BATCH_SIZE)) > 0) {
+            assertTrue("Purged " + purged, purged <= BATCH_SIZE);
+            total += purged;
+            batches++;
+        }
+        assertEquals(11, total);
+        assertEquals(3, batches);
+
+        assertEquals(Arrays.asList(11L, 13L, 14L, 15L), readIds(PetEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, PetDbHelper.TOMBSTONE_TABLE_NAME));
+        assertEquals(10, getDeletedUpTo());
+        assertEquals(Arrays.asList(11L, 13L, 14L, 15L), readIds(PetDbHelper.LIVE_VIEW_NAME));
+
+        // The deletes still have to be pushed, so purging leaves them in the log
+        assertEquals(changes, readChanges());
+        assertEquals(Arrays.asList("10 delete up to", "11 upsert", "13 upsert", "14 upsert",
+                "15 upsert", "12 delete"), changes);
+    }
+
+    private long getDeletedUpTo() {
+        return DatabaseUtils.longForQuery(mDb, "SELECT " + PetDbHelper.COLUMN_DELETED_UP_TO
+                + " FROM " + PetDbHelper.PURGE_STATE_TABLE_NAME, null);
+    }
+
+    private List<Long> readIds(String table) {
+        List<Long> ids = new ArrayList<>();
+        Cursor cursor = mDb.query(table, new String[] { PetEntry._ID }, null, null, null, null,
+                PetEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the change log in the order the changes were made, as "pet_id op".
+     */
+    private List<String> readChanges() {
+        List<String> changes = new ArrayList<>();
+        Cursor cursor = mDb.query(PetDbHelper.CHANGE_LOG_TABLE_NAME,
+                new String[] { PetDbHelper.COLUMN_PET_ID, PetDbHelper.COLUMN_OP },
+                null, null, null, null, PetDbHelper.COLUMN_SEQ);
+        try {
+            while (cursor.moveToNext()) {
+                changes.add(cursor.getLong(0) + " " + describeOp(cursor.getInt(1)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return changes;
+    }
+
+    private static String describeOp(int op) {
+        switch (op) {
+            case PetChangeLog.OP_UPSERT:
+                return "upsert";
+            case PetChangeLog.OP_DELETE:
+                return "delete";
+            case PetChangeLog.OP_DELETE_UP_TO:
+                return "delete up to";
+            default:
+                throw new IllegalArgumentException("Unknown op " + op);
+        }
+    }
+}
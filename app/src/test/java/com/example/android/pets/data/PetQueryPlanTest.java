@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the pages of every filter and sort order a
+ * {@link PetQuery} supports are read through an index rather than by scanning the pets.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PetQueryPlanTest {
+
+    private static final int[] SORT_ORDERS = {
+            PetQuery.SORT_BY_ID, PetQuery.SORT_BY_NAME, PetQuery.SORT_BY_WEIGHT };
+    private static final int[] GENDERS = { -1, PetEntry.GENDER_FEMALE };
+    private static final String[] BREEDS = { null, "Tabby" };
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = TestPets.newDbHelper("plan").getWritableDatabase();
+        TestPets.insertPets(mDb, 1000);
+    }
+
+    @Test
+    public void filtersSearchAnIndex() {
+        for (PetQuery query : allQueries()) {
+            if (query.getGender() == -1 && query.getBreed() == null) {
+                continue;
+            }
+            String plan = explainPage(query);
+            assertTrue(query.getSelection() + ": " + plan,
+                    plan.contains("SEARCH TABLE pets USING INDEX"));
+        }
+    }
+
+    @Test
+    public void weightRangesSearchAnIndexOrReadInSortOrder() {
+        for (PetQuery query : allQueries()) {
+            if (query.getGender() != -1 || query.getBreed() != null
+                    || query.getMinWeight() == -1) {
+                continue;
+            }
+            // A page of a range that matches many pets is found sooner by reading every pet
+            // in sort order than by sorting the whole range, and SQLite may do either
+            String plan = explainPage(query);
+            assertTrue(query.getSortOrder() + ": " + plan,
+                    plan.contains("SEARCH TABLE pets USING INDEX")
+                            || !plan.contains("USE TEMP B-TREE FOR ORDER BY"));
+        }
+    }
+
+    @Test
+    public void pagesNeverScanThePetsWithoutAnIndex() {
+        for (PetQuery query : allQueries()) {
+            String plan = explainPage(query);
+            for (String step : plan.split("\n")) {
+                if (step.startsWith("SCAN TABLE pets ")) {
+                    assertTrue(plan, step.contains(" USING "));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sortOrdersReadAnIndexInOrder() {
+        for (PetQuery query : allQueries()) {
+            // Rows in a range of weights can only come out of an index in order of weight
+            boolean weightRange = query.getMinWeight() != -1 || query.getMaxWeight() != -1;
+            if (weightRange && query.getSortBy() != PetQuery.SORT_BY_WEIGHT) {
+                continue;
+            }
+            String plan = explainPage(query);
+            assertFalse(query.getSelection() + " " + query.getSortOrder() + ": " + plan,
+                    plan.contains("USE TEMP B-TREE FOR ORDER BY"));
+        }
+    }
+
+    /**
+     * Returns every combination of the filters and sort orders.
+     */
+    private static List<PetQuery> allQueries() {
+        List<PetQuery> queries = new ArrayList<>();
+        for (int sortBy : SORT_ORDERS) {
+            for (int gender : GENDERS) {
+                for (String breed : BREEDS) {
+                    for (int minWeight = -1; minWeight <= 10; minWeight += 11) {
+                        queries.add(new PetQuery.Builder()
+                                .gender(gender)
+                                .breed(breed)
+                                .weightBetween(minWeight, minWeight == -1 ? -1 : 20)
+                                .sortBy(sortBy)
+                                .build());
+                    }
+                }
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Returns the plan of the query that reads the first page of a query, a step per line.
+     */
+    private String explainPage(PetQuery query) {
+        String sql = "EXPLAIN QUERY PLAN SELECT " + PetEntry._ID
+                + " FROM " + PetDbHelper.LIVE_VIEW_NAME
+                + (query.getSelection() != null ? " WHERE " + query.getSelection() : "")
+                + " ORDER BY " + query.getSortOrder() + " LIMIT " + PetWindow.PAGE_SIZE;
+        Cursor cursor = mDb.rawQuery(sql, query.getSelectionArgs());
+        StringBuilder plan = new StringBuilder();
+        try {
+            // The description of the step is the last column
+            int detail = cursor.getColumnCount() - 1;
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+}
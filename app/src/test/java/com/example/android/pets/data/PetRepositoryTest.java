@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PetRepositoryTest {
+
+    /** Longer than any delay the repository waits before housekeeping */
+    private static final long HOUSEKEEPING_DELAY_MILLIS = 60000;
+
+    private SQLiteDatabase mDb;
+    private PetRepository mRepository;
+
+    /** The last write that got into the queue filled by {@link #blockWriter()} */
+    private Future<Void> mLastQueued;
+
+    /** Number of pending saves at each change the repository reported */
+    private final List<Integer> mPendingCounts = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        PetDbHelper dbHelper = TestPets.newDbHelper("repository");
+        mDb = dbHelper.getWritableDatabase();
+        mRepository = TestPets.newRepository(dbHelper);
+        mRepository.addSaveListener(new PetRepository.SaveListener() {
+            @Override
+            public void onPendingSavesChanged() {
+                mPendingCounts.add(mRepository.getPendingSaves().size());
+            }
+        });
+    }
+
+    @Test
+    public void savesQueuedBehindAWriteCommitTogether() throws Exception {
+        CountDownLatch release = occupyWriter();
+        SaveResult rex = save(newPet("Rex"));
+        SaveResult tom = save(newPet("Tom"));
+        SaveResult kit = save(newPet("Kit"));
+        assertEquals(3, mRepository.getPendingSaves().size());
+
+        release.countDown();
+        awaitSaves(rex, tom, kit);
+
+        // One flush took all three, so they left the pending list in a single change
+        assertEquals(Arrays.asList(1, 2, 3, 0), mPendingCounts);
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME));
+        assertEquals(rex.id + 1, tom.id.longValue());
+        assertEquals(tom.id + 1, kit.id.longValue());
+    }
+
+    @Test
+    public void aFailedBatchRollsBackAndOnlyTheBadSavesFail() throws Exception {
+        ContentValues unknownColumn = newPet("Spot");
+        unknownColumn.put("colour", "brown");
+        ContentValues invalidGender = newPet("Fido");
+        invalidGender.put(PetEntry.COLUMN_PET_GENDER, 7);
+
+        CountDownLatch release = occupyWriter();
+        SaveResult rex = save(newPet("Rex"));
+        SaveResult spot = save(unknownColumn);
+        SaveResult fido = save(invalidGender);
+        SaveResult tom = save(newPet("Tom"));
+        release.countDown();
+        awaitSaves(rex, spot, fido, tom);
+
+        assertNull(rex.error);
+        assertNull(tom.error);
+        assertTrue(String.valueOf(spot.error), spot.error instanceof SQLException);
+        assertTrue(String.valueOf(fido.error), fido.error instanceof IllegalArgumentException);
+
+        // The batch was rolled back before the good saves were written again on their own
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME,
+                PetEntry.COLUMN_PET_NAME + " = 'Rex'"));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME,
+                PetEntry.COLUMN_PET_NAME + " = 'Tom'"));
+
+        // The failed pets aren't shown as pending any more
+        assertEquals(0, mRepository.getPendingSaves().size());
+        assertEquals(0, mPendingCounts.get(mPendingCounts.size() - 1).intValue());
+    }
+
+    @Test
+    public void aSaveTurnedAwayByAFullQueueFails() throws Exception {
+        CountDownLatch release = blockWriter();
+        SaveResult rex = save(newPet("Rex"));
+        awaitSaves(rex);
+        release.countDown();
+
+        assertTrue(String.valueOf(rex.error), rex.error instanceof RejectedExecutionException);
+        assertEquals(0, mRepository.getPendingSaves().size());
+        assertEquals(Arrays.asList(1, 0), mPendingCounts);
+
+        TestPets.await(mLastQueued);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void housekeepingTurnedAwayByAFullQueueIsTriedAgain() throws Exception {
+        TestPets.insertPets(mDb, 1000);
+        assertEquals(600, TestPets.await(mRepository.write(
+                new PetRepository.Operation<Integer>() {
+                    @Override
+                    public Integer run(SQLiteDatabase db) {
+                        return PetPurger.deletePets(db, PetEntry._ID + " <= 600", null);
+                    }
+                }, null)).intValue());
+        mRepository.schedulePurge();
+
+        // The writer is stuck and its queue full when the purge is due
+        CountDownLatch release = blockWriter();
+        ShadowLooper.idleMainLooper(HOUSEKEEPING_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(600, DatabaseUtils.queryNumEntries(mDb, PetDbHelper.TOMBSTONE_TABLE_NAME));
+
+        release.countDown();
+        TestPets.await(mLastQueued);
+        ShadowLooper.idleMainLooper(HOUSEKEEPING_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        TestPets.runUiUntil(new TestPets.Condition() {
+            @Override
+            public boolean isMet() {
+                return DatabaseUtils.queryNumEntries(mDb, PetDbHelper.TOMBSTONE_TABLE_NAME) == 0;
+            }
+        });
+        assertEquals(400, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME));
+    }
+
+    @Test
+    public void importingAPickedFileTellsItsFormatByItsFirstBytes() {
+        Uri json = Uri.parse("content://downloads/pets-1");
+        Uri csv = Uri.parse("content://downloads/pets-2");
+        registerFile(json, "\uFEFF\n  [{\"name\": \"Rex\", \"gender\": 1, \"weight\": 7}]");
+        registerFile(csv, "name,breed,gender,weight\nTom,Tabby,male,4\nKit,Siamese,2,3\n");
+
+        assertEquals(1, TestPets.await(mRepository.importFile(json, null, null)).intValue());
+        assertEquals(2, TestPets.await(mRepository.importFile(csv, null, null)).intValue());
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME,
+                PetEntry.COLUMN_PET_NAME + " = 'Rex' AND " + PetEntry.COLUMN_PET_WEIGHT + " = 7"));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME,
+                PetEntry.COLUMN_PET_NAME + " = 'Tom' AND " + PetEntry.COLUMN_PET_GENDER + " = "
+                        + PetEntry.GENDER_MALE));
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDb, PetEntry.TABLE_NAME));
+    }
+
+    /**
+     * Occupy the writer thread and fill its queue, until the returned latch is counted down.
+     */
+    private CountDownLatch blockWriter() throws InterruptedException {
+        CountDownLatch release = occupyWriter();
+        while (true) {
+            Future<Void> write = mRepository.write(new NoOp(), null);
+            if (isRejected(write)) {
+                return release;
+            }
+            mLastQueued = write;
+        }
+    }
+
+    /**
+     * Occupy the writer thread, so that writes queue up, until the returned latch is counted
+     * down.
+     */
+    private CountDownLatch occupyWriter() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mRepository.write(new PetRepository.Operation<Void>() {
+            @Override
+            public Void run(SQLiteDatabase db) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        }, null);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    /**
+     * Make the content resolver serve the given text for a URI, as if the user picked a file.
+     */
+    private static void registerFile(Uri uri, String text) {
+        ShadowContentResolver resolver =
+                shadowOf(RuntimeEnvironment.application.getContentResolver());
+        resolver.registerInputStream(uri,
+                new ByteArrayInputStream(text.getBytes(Charset.forName("UTF-8"))));
+    }
+
+    private static ContentValues newPet(String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        return values;
+    }
+
+    private SaveResult save(ContentValues values) {
+        SaveResult result = new SaveResult();
+        mRepository.savePet(-1, values, result);
+        return result;
+    }
+
+    /**
+     * Run what the writer posts to the main thread until every save has finished.
+     */
+    private static void awaitSaves(final SaveResult... saves) {
+        TestPets.runUiUntil(new TestPets.Condition() {
+            @Override
+            public boolean isMet() {
+                for (SaveResult save : saves) {
+                    if (!save.done) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns whether a write was turned away, which is the only way it can be done while
+     * the writer is blocked.
+     */
+    static boolean isRejected(Future<?> write) throws InterruptedException {
+        if (!write.isDone()) {
+            return false;
+        }
+        try {
+            write.get();
+            return false;
+        } catch (ExecutionException e) {
+            return e.getCause() instanceof RejectedExecutionException;
+        }
+    }
+
+    /**
+     * A write that does nothing, to take up a place in the queue.
+     */
+    private static final class NoOp implements PetRepository.Operation<Void> {
+        @Override
+        public Void run(SQLiteDatabase db) {
+            return null;
+        }
+    }
+
+    /**
+     * Holds what a save reported.
+     */
+    private static final class SaveResult extends PetRepository.Callback<Long> {
+        boolean done;
+        Long id;
+        Exception error;
+
+        @Override
+        public void onResult(Long result) {
+            done = true;
+            id = result;
+        }
+
+        @Override
+        public void onError(Exception e) {
+            done = true;
+            error = e;
+        }
+    }
+}
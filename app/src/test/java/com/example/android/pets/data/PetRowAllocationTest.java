@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What scrolling through the catalog allocates.
+ *
+ * Only the main thread is measured. Under Robolectric the reader threads run SQLite through a
+ * shadow that allocates hundreds of kilobytes per row on its own, which would hide anything the
+ * window does there; on those threads the test counts the row objects instead.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PetRowAllocationTest {
+
+    private static final int PET_COUNT = 100000;
+
+    /** Bytes the main thread may allocate per row scrolled past, for messages and pages */
+    private static final int MAX_MAIN_THREAD_BYTES_PER_ROW = 64;
+
+    private PetWindow mWindow;
+
+    /** Reused for every row, so that waiting for a row doesn't allocate */
+    private final RowLoaded mRowLoaded = new RowLoaded();
+
+    @Before
+    public void setUp() {
+        PetDbHelper dbHelper = TestPets.newDbHelper("allocation");
+        TestPets.insertPets(dbHelper.getWritableDatabase(), PET_COUNT);
+        mWindow = new PetWindow(TestPets.newRepository(dbHelper));
+        mWindow.reset(PET_COUNT);
+    }
+
+    @Test
+    public void scrollingReusesTheSameRowObjects() {
+        Set<PetRow> rows = Collections.newSetFromMap(new IdentityHashMap<PetRow, Boolean>());
+        for (int position = 0; position < PET_COUNT; position++) {
+            PetRow row = getRow(position);
+            assertEquals(position + 1, row.id);
+            rows.add(row);
+        }
+        assertTrue("Row objects: " + rows.size(),
+                rows.size() <= PetWindow.MAX_RESIDENT_ROWS + PetWindow.PAGE_SIZE * 2);
+    }
+
+    @Test
+    public void scrollingAllocatesLittleOnTheMainThread() {
+        // The first pass warms up the pool of rows and the cache of pets
+        scrollThroughEveryPet();
+        mWindow.reset(PET_COUNT);
+
+        long before = getMainThreadAllocatedBytes();
+        scrollThroughEveryPet();
+        long bytesPerRow = (getMainThreadAllocatedBytes() - before) / PET_COUNT;
+        assertTrue("Bytes per row: " + bytesPerRow,
+                bytesPerRow <= MAX_MAIN_THREAD_BYTES_PER_ROW);
+    }
+
+    private void scrollThroughEveryPet() {
+        for (int position = 0; position < PET_COUNT; position++) {
+            getRow(position);
+        }
+    }
+
+    private PetRow getRow(int position) {
+        mRowLoaded.position = position;
+        TestPets.runUiUntil(mRowLoaded);
+        return mRowLoaded.row;
+    }
+
+    private static long getMainThreadAllocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Met once the window has loaded the row at a position.
+     */
+    private class RowLoaded implements TestPets.Condition {
+        int position;
+        PetRow row;
+
+        @Override
+        public boolean isMet() {
+            row = mWindow.getRow(position);
+            return row != null;
+        }
+    }
+}
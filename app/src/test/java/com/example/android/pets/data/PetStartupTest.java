@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Starts the catalog the way the app does, with the database closed, and checks that the
+ * main thread never waits for SQLite. The times are printed for comparing table sizes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PetStartupTest {
+
+    @Test
+    public void startupWithNoPets() {
+        assertStartup("empty", 0);
+    }
+
+    @Test
+    public void startupWithAThousandPets() {
+        assertStartup("small", 1000);
+    }
+
+    @Test
+    public void startupWithFiftyThousandPets() {
+        assertStartup("large", 50000);
+    }
+
+    @Test
+    public void windowReadAheadIsOnlyHandedOutOnce() {
+        PetRepository repository = TestPets.newRepository(TestPets.newDbHelper("once"));
+        PetWindow.prefetch(repository);
+        PetWindow window = PetWindow.obtain(repository);
+        assertNotSame(window, PetWindow.obtain(repository));
+    }
+
+    private static void assertStartup(String shelterId, int petCount) {
+        PetDbHelper dbHelper = TestPets.newDbHelper(shelterId);
+        TestPets.insertPets(dbHelper.getWritableDatabase(), petCount);
+        dbHelper.close();
+        DatabaseMetrics.getInstance().reset();
+
+        // What PetsApplication.onCreate does, on the main thread
+        long start = System.nanoTime();
+        dbHelper = TestPets.newDbHelper(shelterId);
+        PetRepository repository = TestPets.newRepository(dbHelper);
+        PetWindow.prefetch(repository);
+        long prefetchNanos = System.nanoTime() - start;
+
+        // Then CatalogActivity takes the window and waits for its first page
+        PetWindow window = PetWindow.obtain(repository);
+        final PetWindowTest.RecordingListener listener = new PetWindowTest.RecordingListener();
+        window.setListener(listener);
+        TestPets.runUiUntil(new TestPets.Condition() {
+            @Override
+            public boolean isMet() {
+                return listener.events.contains("reset");
+            }
+        });
+        long firstPageNanos = System.nanoTime() - start;
+
+        assertEquals(petCount, window.getCount());
+        assertEquals(Math.min(petCount, PetWindow.PAGE_SIZE), window.getResidentCount());
+        if (petCount > 0) {
+            assertEquals(1, window.getRow(0).id);
+        }
+        assertEquals(0, DatabaseMetrics.getInstance().getMainThreadCalls());
+        System.out.println(String.format(Locale.US,
+                "Startup with %d pets: %.1f ms on the main thread, first page after %.1f ms",
+                petCount, prefetchNanos / 1e6, firstPageNanos / 1e6));
+    }
+}
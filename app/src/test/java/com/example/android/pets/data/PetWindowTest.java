@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class PetWindowTest {
+
+    private static final int PET_COUNT = 50000;
+
+    private PetRepository mRepository;
+    private PetWindow mWindow;
+
+    @Before
+    public void setUp() {
+        PetDbHelper dbHelper = TestPets.newDbHelper("window");
+        TestPets.insertPets(dbHelper.getWritableDatabase(), PET_COUNT);
+        mRepository = TestPets.newRepository(dbHelper);
+        mWindow = new PetWindow(mRepository);
+        mWindow.reset(PET_COUNT);
+    }
+
+    @Test
+    public void scrollingThroughEveryPetKeepsOnlyTheWindowResident() {
+        int mostResident = 0;
+        for (int position = 0; position < PET_COUNT; position += 10) {
+            assertEquals(position + 1, getRow(position).id);
+            mostResident = Math.max(mostResident, mWindow.getResidentCount());
+        }
+        assertTrue("Resident rows: " + mostResident,
+                mostResident <= PetWindow.MAX_RESIDENT_ROWS);
+    }
+
+    @Test
+    public void scrollingBackUpKeepsOnlyTheWindowResident() {
+        int mostResident = 0;
+        for (int position = PET_COUNT - 1; position >= PET_COUNT - 5000; position -= 10) {
+            assertEquals(position + 1, getRow(position).id);
+            mostResident = Math.max(mostResident, mWindow.getResidentCount());
+        }
+        assertTrue("Resident rows: " + mostResident,
+                mostResident <= PetWindow.MAX_RESIDENT_ROWS);
+    }
+
+    @Test
+    public void jumpingFarAwayLoadsTheRowsAroundThePosition() {
+        getRow(0);
+        assertEquals(31000, getRow(30999).id);
+        assertEquals(7, getRow(6).id);
+        assertTrue(mWindow.getResidentCount() <= PetWindow.MAX_RESIDENT_ROWS);
+    }
+
+    @Test
+    public void editingAPetOnlyReadsTheResidentRowsAgain() {
+        getRow(0);
+        RecordingListener listener = new RecordingListener();
+        mWindow.setListener(listener);
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 99);
+        assertEquals(1, (int) TestPets.await(mRepository.updatePet(10, values, null)));
+        DatabaseMetrics.getInstance().reset();
+        refresh(listener);
+
+        assertEquals(Collections.singletonList("changed 9 1"), listener.events);
+        assertEquals(99, getRow(9).weight);
+        assertEquals(PET_COUNT, mWindow.getCount());
+        long rowsRead = DatabaseMetrics.getInstance().getRows("query",
+                PetDbHelper.LIVE_VIEW_NAME);
+        assertTrue("Rows read: " + rowsRead, rowsRead <= PetWindow.MAX_RESIDENT_ROWS);
+    }
+
+    @Test
+    public void addingAPetAfterTheWindowOnlyGrowsTheCount() {
+        getRow(0);
+        RecordingListener listener = new RecordingListener();
+        mWindow.setListener(listener);
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Toto");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        TestPets.await(mRepository.insertPet(values, null));
+        refresh(listener);
+
+        assertEquals(Collections.singletonList("inserted " + PetWindow.PAGE_SIZE + " 1"),
+                listener.events);
+        assertEquals(PET_COUNT + 1, mWindow.getCount());
+    }
+
+    @Test
+    public void aRefreshAskedForWhileOneRunsIsDoneBeforeTheWindowSaysSo() {
+        getRow(0);
+        final RecordingListener listener = new RecordingListener();
+        mWindow.setListener(listener);
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 99);
+        assertEquals(1, (int) TestPets.await(mRepository.updatePet(10, values, null)));
+        mWindow.refresh();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 98);
+        assertEquals(1, (int) TestPets.await(mRepository.updatePet(11, values, null)));
+        mWindow.refresh();
+        TestPets.runUiUntil(new TestPets.Condition() {
+            @Override
+            public boolean isMet() {
+                return listener.refreshes > 0;
+            }
+        });
+
+        assertEquals(1, listener.refreshes);
+        assertEquals(99, getRow(9).weight);
+        assertEquals(98, getRow(10).weight);
+    }
+
+    /**
+     * Refresh the window and wait until the listener has been told what changed.
+     */
+    private void refresh(final RecordingListener listener) {
+        mWindow.refresh();
+        TestPets.runUiUntil(new TestPets.Condition() {
+            @Override
+            public boolean isMet() {
+                return !listener.events.isEmpty();
+            }
+        });
+    }
+
+    /**
+     * Ask for a row the way the list does while scrolling, until it's loaded.
+     */
+    private PetRow getRow(final int position) {
+        final PetRow[] row = new PetRow[1];
+        TestPets.runUiUntil(new TestPets.Condition() {
+            @Override
+            public boolean isMet() {
+                row[0] = mWindow.getRow(position);
+                return row[0] != null;
+            }
+        });
+        return row[0];
+    }
+
+    /**
+     * Writes down what the window tells it, except for rows finishing loading. Finished
+     * refreshes are only counted.
+     */
+    static class RecordingListener implements PetWindow.Listener {
+
+        final List<String> events = new ArrayList<>();
+
+        int refreshes;
+
+        @Override
+        public void onWindowReset() {
+            events.add("reset");
+        }
+
+        @Override
+        public void onRefreshed() {
+            refreshes++;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            events.add("inserted " + position + " " + count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            events.add("removed " + position + " " + count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            events.add("moved " + fromPosition + " " + toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            events.add("changed " + position + " " + count);
+        }
+    }
+}
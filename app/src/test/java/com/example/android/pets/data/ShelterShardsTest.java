@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Merges the pets of the default shelter and two others. The default shelter's database is
+ * shared by the whole process, so the orders are all checked in one test.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class ShelterShardsTest {
+
+    /** Sorts after 'Z', and after FULLWIDTH_A by code point, but before it by UTF-16 char */
+    private static final String DOG_FACE = "\uD83D\uDC36";
+
+    private static final String FULLWIDTH_A = "\uFF21ko";
+
+    @Test
+    public void mergeKeepsTheSortOrderThenIdThenShelter() {
+        insertPets(PetDbHelper.getInstance(RuntimeEnvironment.application)
+                .getWritableDatabase(), "Bella 10", "Max 5", "Coco 5");
+        insertPets("north", "Bella 3", "Ares 5", "Zed 10", DOG_FACE + " 20");
+        insertPets("south", "Max 5", "Bella 10", FULLWIDTH_A + " 20");
+        ShelterShards shards = ShelterShards.getInstance(RuntimeEnvironment.application);
+        List<String> shelterIds = shards.getShelterIds();
+        assertEquals(3, shelterIds.size());
+
+        assertEquals(Arrays.asList("north/2 Ares", "default/1 Bella", "north/1 Bella",
+                "south/2 Bella", "default/3 Coco", "south/1 Max", "default/2 Max",
+                "north/3 Zed", "south/3 " + FULLWIDTH_A, "north/4 " + DOG_FACE),
+                query(shards, PetQuery.SORT_BY_NAME, 100));
+        assertEquals(Arrays.asList("north/1 Bella", "south/1 Max", "default/2 Max",
+                "north/2 Ares", "default/3 Coco", "default/1 Bella", "south/2 Bella",
+                "north/3 Zed", "south/3 " + FULLWIDTH_A, "north/4 " + DOG_FACE),
+                query(shards, PetQuery.SORT_BY_WEIGHT, 100));
+        assertEquals(Arrays.asList("north/2 Ares", "default/1 Bella", "north/1 Bella"),
+                query(shards, PetQuery.SORT_BY_NAME, 3));
+
+        // Shelters with the same ID are in the order of getShelterIds()
+        List<String> byId = query(shards, PetQuery.SORT_BY_ID, 100);
+        assertEquals(10, byId.size());
+        assertEquals("default/1 Bella", byId.get(0));
+        for (int i = 1; i < byId.size(); i++) {
+            String previous = byId.get(i - 1);
+            String current = byId.get(i);
+            int order = Long.compare(getId(previous), getId(current));
+            if (order == 0) {
+                order = Integer.compare(shelterIds.indexOf(getShelterId(previous)),
+                        shelterIds.indexOf(getShelterId(current)));
+            }
+            assertEquals(previous + " before " + current, -1, order);
+        }
+    }
+
+    private static List<String> query(ShelterShards shards, int sortBy, int limit) {
+        PetQuery query = new PetQuery.Builder().sortBy(sortBy).build();
+        List<String> pets = new ArrayList<>();
+        for (ShelterShards.ShelterPet pet : TestPets.await(
+                shards.queryAllShelters(query, limit, null))) {
+            pets.add(pet.getShelterId() + "/" + pet.getPet().getId() + " "
+                    + pet.getPet().getName());
+        }
+        return pets;
+    }
+
+    private static long getId(String pet) {
+        return Long.parseLong(pet.substring(pet.indexOf('/') + 1, pet.indexOf(' ')));
+    }
+
+    private static String getShelterId(String pet) {
+        return pet.substring(0, pet.indexOf('/'));
+    }
+
+    private static void insertPets(String shelterId, String... pets) {
+        PetDbHelper dbHelper = TestPets.newDbHelper(shelterId);
+        insertPets(dbHelper.getWritableDatabase(), pets);
+        dbHelper.close();
+    }
+
+    /**
+     * Insert pets given as their name and weight, such as "Bella 10".
+     */
+    private static void insertPets(SQLiteDatabase db, String... pets) {
+        ContentValues values = new ContentValues();
+        for (String pet : pets) {
+            int space = pet.lastIndexOf(' ');
+            values.put(PetEntry.COLUMN_PET_NAME, pet.substring(0, space));
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, Integer.parseInt(pet.substring(space + 1)));
+            db.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+        }
+    }
+}
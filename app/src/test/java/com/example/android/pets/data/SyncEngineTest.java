@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27, manifest = Config.NONE)
+public class SyncEngineTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private MockServer mServer;
+
+    @Before
+    public void setUp() {
+        mServer = new MockServer();
+    }
+
+    @Test
+    public void syncPushesTheChangesAndDoesNotLogThemAgainWhenTheyComeBack()
+            throws Exception {
+        Device device = new Device("pusher");
+        TestPets.insertPets(device.db, 3);
+        TestPets.await(device.repository.deletePet(2, null));
+
+        SyncEngine.Result result = device.engine.syncNow();
+        // The delete replaced the pet's insert in the log
+        assertEquals(3, result.pushed);
+        assertEquals(3, result.pulled);
+        assertEquals(2, result.requests);
+        assertEquals("upsert 1 Pet 1, upsert 3 Pet 3, delete 2", mServer.describe());
+        assertEquals(0, device.countLoggedChanges());
+
+        result = device.engine.syncNow();
+        assertEquals(0, result.pushed);
+        assertEquals(0, result.pulled);
+        assertEquals(1, result.requests);
+    }
+
+    @Test
+    public void syncPushesOnlyWhatChangedSinceTheLastOne() throws Exception {
+        Device device = new Device("edits");
+        TestPets.insertPets(device.db, 1000);
+        device.engine.syncNow();
+
+        device.db.execSQL("UPDATE pets SET name = 'Rex' WHERE _id = 500");
+        SyncEngine.Result result = device.engine.syncNow();
+        assertEquals(1, result.pushed);
+        assertEquals(1, result.pulled);
+        assertEquals(2, result.requests);
+        assertEquals(1001, mServer.changes.size());
+        assertEquals("upsert 500 Rex", mServer.describe(1000));
+    }
+
+    @Test
+    public void pullAppliesTheServersChangesWithoutPushingThemBack() throws Exception {
+        Device device = new Device("puller");
+        TestPets.insertPets(device.db, 3);
+        device.engine.syncNow();
+
+        mServer.add(upsert(1, "Bella"));
+        mServer.add(delete(3));
+        SyncEngine.Result result = device.engine.syncNow();
+        assertEquals(0, result.pushed);
+        assertEquals(2, result.pulled);
+        assertEquals("Bella", TestPets.await(device.repository.getPet(1, null)).getName());
+        assertNull(TestPets.await(device.repository.getPet(3, null)));
+        assertEquals(0, device.countLoggedChanges());
+
+        result = device.engine.syncNow();
+        assertEquals(0, result.pushed);
+        assertEquals(0, result.pulled);
+        assertEquals(5, mServer.changes.size());
+    }
+
+    @Test
+    public void changesMadeBetweenPushAndPullSurviveTheEcho() throws Exception {
+        final Device device = new Device("racing");
+        TestPets.insertPets(device.db, 3);
+        mServer.beforePull = new Runnable() {
+            @Override
+            public void run() {
+                // The user edits and deletes pets the push has just sent
+                device.db.execSQL("UPDATE pets SET name = 'Rex' WHERE _id = 1");
+                TestPets.await(device.repository.deletePet(2, null));
+            }
+        };
+
+        device.engine.syncNow();
+        assertEquals("Rex", TestPets.await(device.repository.getPet(1, null)).getName());
+        assertNull(TestPets.await(device.repository.getPet(2, null)));
+        assertEquals(2, device.countLoggedChanges());
+
+        SyncEngine.Result result = device.engine.syncNow();
+        assertEquals(2, result.pushed);
+        assertEquals("upsert 1 Rex, delete 2", mServer.describe(3));
+        assertEquals("Rex", TestPets.await(device.repository.getPet(1, null)).getName());
+        assertNull(TestPets.await(device.repository.getPet(2, null)));
+        assertEquals(0, device.countLoggedChanges());
+    }
+
+    @Test
+    public void pullRejectsAnInvalidGender() throws Exception {
+        Device device = new Device("gender");
+        TestPets.insertPets(device.db, 1);
+        device.engine.syncNow();
+
+        mServer.add(upsert(1, "Bella").put("gender", 7));
+        try {
+            device.engine.syncNow();
+            fail("Pulled a pet with an invalid gender");
+        } catch (IOException expected) {
+            // The whole batch is left for the next pull
+        }
+        assertEquals("Pet 1", TestPets.await(device.repository.getPet(1, null)).getName());
+    }
+
+    @Test
+    public void restoringTakesOnTheServersPetIds() throws Exception {
+        mServer.add(upsert(7, "Bella"));
+        mServer.add(upsert(9, "Rex"));
+        Device device = new Device("restored");
+
+        SyncEngine.Result result = device.engine.syncNow();
+        assertEquals(2, result.pulled);
+        assertEquals("Rex", TestPets.await(device.repository.getPet(9, null)).getName());
+        assertEquals(0, device.countLoggedChanges());
+
+        TestPets.insertPets(device.db, 1);
+        assertEquals(10, PetChangeLog.getLastPetId(device.db));
+    }
+
+    @Test
+    public void pullRejectsPetsThisDeviceNeverGaveOut() throws Exception {
+        Device device = new Device("shared");
+        TestPets.insertPets(device.db, 2);
+        device.engine.syncNow();
+
+        mServer.add(upsert(1, "Bella"));
+        mServer.add(upsert(3, "Not mine"));
+        try {
+            device.engine.syncNow();
+            fail("Pulled a pet this device never had");
+        } catch (IOException expected) {
+            // Nothing of the batch is applied and the next pull starts at it again
+        }
+        assertEquals("Pet 1", TestPets.await(device.repository.getPet(1, null)).getName());
+        assertEquals(2, PetChangeLog.getLastPetId(device.db));
+        assertEquals(2, PetChangeLog.getPulledSeq(device.db));
+    }
+
+    private static JSONObject upsert(long id, String name) throws JSONException {
+        return new JSONObject().put("op", "upsert").put("id", id).put("name", name)
+                .put("gender", 0).put("weight", 10);
+    }
+
+    private static JSONObject delete(long id) throws JSONException {
+        return new JSONObject().put("op", "delete").put("id", id);
+    }
+
+    /**
+     * A device with a database of its own, syncing with the test's server.
+     */
+    private final class Device {
+
+        final SQLiteDatabase db;
+        final PetRepository repository;
+        final SyncEngine engine;
+
+        Device(String shelterId) {
+            PetDbHelper dbHelper = TestPets.newDbHelper(shelterId);
+            db = dbHelper.getWritableDatabase();
+            repository = TestPets.newRepository(dbHelper);
+            engine = new SyncEngine(repository, mServer);
+        }
+
+        long countLoggedChanges() {
+            return DatabaseUtils.queryNumEntries(db, PetDbHelper.CHANGE_LOG_TABLE_NAME);
+        }
+    }
+
+    /**
+     * Stands in for the sync server, keeping the changes it was sent in memory. It gives the
+     * changes sequence numbers of its own, the way a server shared by the devices of a user
+     * would.
+     */
+    private static final class MockServer implements SyncTransport {
+
+        final List<JSONObject> changes = new ArrayList<>();
+
+        /** Run once, when the next pull request arrives */
+        Runnable beforePull;
+
+        synchronized void add(JSONObject change) throws JSONException {
+            changes.add(new JSONObject(change.toString()).put("seq", changes.size() + 1));
+        }
+
+        String describe() throws JSONException {
+            return describe(0);
+        }
+
+        /**
+         * Returns the changes from the given index on, like "upsert 1 Bella, delete 2".
+         */
+        synchronized String describe(int from) throws JSONException {
+            StringBuilder description = new StringBuilder();
+            for (int i = from; i < changes.size(); i++) {
+                JSONObject change = changes.get(i);
+                if (description.length() > 0) {
+                    description.append(", ");
+                }
+                description.append(change.getString("op")).append(' ')
+                        .append(change.getLong("id"));
+                if (change.has("name")) {
+                    description.append(' ').append(change.getString("name"));
+                }
+            }
+            return description.toString();
+        }
+
+        @Override
+        public synchronized byte[] post(String path, byte[] body) throws IOException {
+            try {
+                JSONArray posted = new JSONObject(new String(body, UTF_8))
+                        .getJSONArray("changes");
+                long acknowledged = -1;
+                for (int i = 0; i < posted.length(); i++) {
+                    JSONObject change = posted.getJSONObject(i);
+                    acknowledged = change.getLong("seq");
+                    add(change);
+                }
+                return toBytes(new JSONObject().put("acknowledged", acknowledged));
+            } catch (JSONException e) {
+                throw new StatusException(400, e.getMessage());
+            }
+        }
+
+        @Override
+        public synchronized byte[] get(String path) throws IOException {
+            if (beforePull != null) {
+                Runnable runnable = beforePull;
+                beforePull = null;
+                runnable.run();
+            }
+            Uri uri = Uri.parse(path);
+            int since = Integer.parseInt(uri.getQueryParameter("since"));
+            int limit = Integer.parseInt(uri.getQueryParameter("limit"));
+            int end = Math.min(changes.size(), since + limit);
+            try {
+                JSONArray pulled = new JSONArray();
+                for (int i = since; i < end; i++) {
+                    pulled.put(changes.get(i));
+                }
+                return toBytes(new JSONObject().put("changes", pulled)
+                        .put("more", end < changes.size()));
+            } catch (JSONException e) {
+                throw new StatusException(500, e.getMessage());
+            }
+        }
+
+        private static byte[] toBytes(JSONObject json) {
+            return json.toString().getBytes(UTF_8);
+        }
+    }
+}
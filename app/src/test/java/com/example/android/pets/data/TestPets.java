@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Helpers shared by the tests of the data layer.
+ *
+ * Tests pause the main looper, so results posted by background threads wait until
+ * {@link #runUiUntil(Condition)} runs them on the test thread, the way they would run on the
+ * main thread of the app.
+ */
+final class TestPets {
+
+    /** Longest a test waits for background work */
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    /**
+     * Something a test waits for.
+     */
+    interface Condition {
+        boolean isMet();
+    }
+
+    private TestPets() {
+    }
+
+    /**
+     * Returns the helper of a new database.
+     */
+    static PetDbHelper newDbHelper(String shelterId) {
+        return PetDbHelper.forShelter(RuntimeEnvironment.application, shelterId);
+    }
+
+    /**
+     * Returns a repository over the given database.
+     */
+    static PetRepository newRepository(PetDbHelper dbHelper) {
+        ShadowLooper.pauseMainLooper();
+        return new PetRepository(RuntimeEnvironment.application, dbHelper);
+    }
+
+    /**
+     * Insert pets named "Pet 1" to "Pet n" in one transaction, without going through a
+     * repository. Their IDs are 1 to n in a new database.
+     */
+    static void insertPets(SQLiteDatabase db, int count) {
+        ContentValues values = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (int i = 1; i <= count; i++) {
+                values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+                values.put(PetEntry.COLUMN_PET_BREED, i % 2 == 0 ? "Tabby" : "Beagle");
+                values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+                values.put(PetEntry.COLUMN_PET_WEIGHT, i % 40);
+                db.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Run what background threads posted to the main thread until the condition is met.
+     */
+    static void runUiUntil(Condition condition) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            ShadowLooper.runUiThreadTasks();
+            if (condition.isMet()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for background work");
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * Wait for an operation to finish on its background thread. A callback of the operation
+     * may not have been posted yet; wait for it with {@link #runUiUntil(Condition)}.
+     */
+    static <T> T await(Future<T> future) {
+        try {
+            return future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new AssertionError(e.getCause());
+        } catch (InterruptedException | TimeoutException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts for the shelter stats computed two ways: with GROUP BY queries in SQLite, and over
+ * primitive column arrays the way PetSnapshot does. Loading the arrays is measured on its own,
+ * since the app pays for it once per set of counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AggregateBenchmark {
+
+    /** Width of a bar of the weight histogram, in kg */
+    private static final int WEIGHT_BUCKET_SIZE = 5;
+
+    /** Number of pets in the table */
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int rows;
+
+    private Connection mConnection;
+    private PreparedStatement mByGender;
+    private PreparedStatement mByWeight;
+    private PreparedStatement mByBreed;
+    private PreparedStatement mSnapshot;
+
+    /** Columns loaded once for the array benchmarks */
+    private int mSize;
+    private int[] mGenders;
+    private int[] mWeights;
+    private int[] mBreedCodes;
+    private int mBreedCount;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        mConnection = BenchmarkDatabase.open(rows, "aggregate");
+        mByGender = mConnection.prepareStatement(
+                "SELECT gender, COUNT(*) FROM pets GROUP BY gender");
+        mByWeight = mConnection.prepareStatement("SELECT weight / " + WEIGHT_BUCKET_SIZE
+                + " AS bucket, COUNT(*) FROM pets GROUP BY bucket");
+        mByBreed = mConnection.prepareStatement(
+                "SELECT breed, COUNT(*) FROM pets GROUP BY breed");
+        mSnapshot = mConnection.prepareStatement(
+                "SELECT breed, _id, gender, weight FROM " + BenchmarkDatabase.LIVE_VIEW_NAME
+                        + " ORDER BY breed");
+        loadColumns(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        mByGender.close();
+        mByWeight.close();
+        mByBreed.close();
+        mSnapshot.close();
+        BenchmarkDatabase.close(mConnection);
+    }
+
+    /**
+     * Counts by gender, weight and breed with one GROUP BY query each.
+     */
+    @Benchmark
+    public void groupBy(Blackhole blackhole) throws SQLException {
+        consumeGroups(mByGender.executeQuery(), blackhole);
+        consumeGroups(mByWeight.executeQuery(), blackhole);
+        consumeGroups(mByBreed.executeQuery(), blackhole);
+    }
+
+    /**
+     * Read the table into column arrays, as PetSnapshot.load does.
+     */
+    @Benchmark
+    public int loadSnapshot(Blackhole blackhole) throws SQLException {
+        return loadColumns(blackhole);
+    }
+
+    /**
+     * Counts by gender, weight and breed in one pass over the column arrays, as
+     * PetSnapshot.Stats does for a single chunk.
+     */
+    @Benchmark
+    public void countArrays(Blackhole blackhole) {
+        int[] genderCounts = new int[3];
+        int[] histogram = new int[1000];
+        int[] breedCounts = new int[mBreedCount];
+        int noBreed = 0;
+        long weightSum = 0;
+        for (int i = 0; i < mSize; i++) {
+            genderCounts[mGenders[i]]++;
+            int weight = mWeights[i];
+            weightSum += weight;
+            histogram[Math.min(weight / WEIGHT_BUCKET_SIZE, histogram.length - 1)]++;
+            int breed = mBreedCodes[i];
+            if (breed < 0) {
+                noBreed++;
+            } else {
+                breedCounts[breed]++;
+            }
+        }
+        blackhole.consume(genderCounts);
+        blackhole.consume(histogram);
+        blackhole.consume(breedCounts);
+        blackhole.consume(noBreed);
+        blackhole.consume(weightSum);
+    }
+
+    /**
+     * Read the table into the column arrays. JDBC has no way to compare a column without
+     * making a String of it, so unlike on Android this allocates one per row.
+     *
+     * @param blackhole to hand the IDs to, or null when called from setup
+     */
+    private int loadColumns(Blackhole blackhole) throws SQLException {
+        int[] genders = new int[rows];
+        int[] weights = new int[rows];
+        int[] breedCodes = new int[rows];
+        HashMap<String, Integer> dictionary = new HashMap<>();
+        String previousBreed = null;
+        int code = -1;
+        int size = 0;
+        ResultSet result = mSnapshot.executeQuery();
+        try {
+            while (result.next() && size < rows) {
+                String breed = result.getString(1);
+                if (breed == null || breed.isEmpty()) {
+                    code = -1;
+                } else if (!breed.equals(previousBreed)) {
+                    code = dictionary.size();
+                    dictionary.put(breed, code);
+                }
+                previousBreed = breed;
+                long id = result.getLong(2);
+                if (blackhole != null) {
+                    blackhole.consume(id);
+                }
+                genders[size] = result.getInt(3);
+                weights[size] = result.getInt(4);
+                breedCodes[size] = code;
+                size++;
+            }
+        } finally {
+            result.close();
+        }
+
+        if (blackhole == null) {
+            mSize = size;
+            mGenders = genders;
+            mWeights = weights;
+            mBreedCodes = breedCodes;
+            mBreedCount = dictionary.size();
+        }
+        return size;
+    }
+
+    private static void consumeGroups(ResultSet result, Blackhole blackhole)
+            throws SQLException {
+        try {
+            while (result.next()) {
+                blackhole.consume(result.getString(1));
+                blackhole.consume(result.getInt(2));
+            }
+        } finally {
+            result.close();
+        }
+    }
+}
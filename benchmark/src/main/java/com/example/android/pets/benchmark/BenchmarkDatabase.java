@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * A pets database on the host, set up the same way as the app's.
+ *
+ * The schema, indexes, search triggers and connection settings are copies of the ones in
+ * PetDbHelper, which can't be used here because it needs the Android framework. Keep them in
+ * step when the schema changes, or the numbers stop meaning anything.
+ *
+ * Filling a large table takes a while, so each size is built once into a template file and
+ * copied for every benchmark trial.
+ */
+final class BenchmarkDatabase {
+
+    /** Names of the pets table and its columns, as in PetContract */
+    static final String TABLE_NAME = "pets";
+    static final String COLUMN_ID = "_id";
+    static final String COLUMN_NAME = "name";
+    static final String COLUMN_BREED = "breed";
+    static final String COLUMN_GENDER = "gender";
+    static final String COLUMN_WEIGHT = "weight";
+    static final String COLUMN_PHOTO = "photo";
+
+    /** View of the pets that aren't deleted, as in PetDbHelper. The app reads pets from here. */
+    static final String LIVE_VIEW_NAME = "live_pets";
+
+    /** Journal modes a connection can be opened in */
+    static final String JOURNAL_MODE_WAL = "WAL";
+    static final String JOURNAL_MODE_ROLLBACK = "DELETE";
+
+    /** How long a connection waits for a lock held by another connection */
+    private static final int BUSY_TIMEOUT_MILLIS = 10000;
+
+    /** Rows inserted per transaction while filling a table, as in PetImporter */
+    static final int CHUNK_SIZE = 500;
+
+    /** Breeds given to generated pets, so filters by breed match a realistic share of rows */
+    private static final String[] BREEDS = {
+            "Tabby", "Siamese", "Persian", "Maine Coon", "Beagle", "Poodle", "Labrador",
+            "Terrier", "Bulldog", "Dachshund", "Husky", "Boxer", "Collie", "Pug", null };
+
+    /** Directory the database files go in */
+    private static final File DIRECTORY = new File(
+            System.getProperty("pets.benchmark.dir", "build/benchmark-db"));
+
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * Returns a connection to a fresh copy of a database that holds the given number of
+     * generated pets. Each call returns a separate copy, so benchmarks that write don't
+     * affect each other.
+     *
+     * @param rows number of pets
+     * @param name to tell the copies of different benchmarks apart
+     */
+    static Connection open(int rows, String name) throws IOException, SQLException {
+        return connect(copy(rows, name), JOURNAL_MODE_WAL);
+    }
+
+    /**
+     * Make a fresh copy of a database that holds the given number of generated pets, for a
+     * benchmark that opens several connections to it with {@link #connect(File, String)}.
+     *
+     * @param rows number of pets
+     * @param name to tell the copies of different benchmarks apart
+     * @return the database file
+     */
+    static File copy(int rows, String name) throws IOException, SQLException {
+        File template = new File(DIRECTORY, "template-" + rows + ".db");
+        if (!template.exists()) {
+            createTemplate(template, rows);
+        }
+
+        File copy = new File(DIRECTORY, name + "-" + rows + ".db");
+        delete(copy);
+        copyFile(template, copy);
+        return copy;
+    }
+
+    /**
+     * Close a connection returned by {@link #open(int, String)}.
+     */
+    static void close(Connection connection) throws SQLException {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Open a connection to a database file with the same settings as the app.
+     *
+     * @param journalMode {@link #JOURNAL_MODE_WAL} as in the app, or
+     *                    {@link #JOURNAL_MODE_ROLLBACK} as before the app turned on
+     *                    write-ahead logging
+     */
+    static Connection connect(File file, String journalMode) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        Statement statement = connection.createStatement();
+        try {
+            // The same settings as PetDbHelper.onConfigure and the WAL mode it turns on
+            statement.execute("PRAGMA journal_mode = " + journalMode);
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA cache_size = -4096");
+            // Android waits for a lock held by another connection rather than failing
+            statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+        } finally {
+            statement.close();
+        }
+        return connection;
+    }
+
+    private static void createTemplate(File template, int rows)
+            throws IOException, SQLException {
+        if (!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs()) {
+            throw new IOException("Unable to create " + DIRECTORY);
+        }
+        File partial = new File(DIRECTORY, "template-" + rows + ".db.partial");
+        delete(partial);
+
+        Connection connection = connect(partial, JOURNAL_MODE_WAL);
+        try {
+            createSchema(connection);
+            insertPets(connection, rows, new Random(rows));
+            Statement statement = connection.createStatement();
+            try {
+                // Fold the log into the main file, so copying the file copies everything
+                statement.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+
+        if (!partial.renameTo(template)) {
+            throw new IOException("Unable to create " + template);
+        }
+    }
+
+    /**
+     * Create the pets table as PetDbHelper does at its current version.
+     */
+    private static void createSchema(Connection connection) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("CREATE TABLE " + TABLE_NAME + " ("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + COLUMN_NAME + " TEXT NOT NULL, "
+                    + COLUMN_BREED + " TEXT, "
+                    + COLUMN_GENDER + " INTEGER NOT NULL, "
+                    + COLUMN_WEIGHT + " INTEGER NOT NULL DEFAULT 0, "
+                    + COLUMN_PHOTO + " TEXT)");
+
+            statement.execute("CREATE VIRTUAL TABLE pets_fts USING fts4("
+                    + "content=\"" + TABLE_NAME + "\", prefix=\"2,3\", "
+                    + COLUMN_NAME + ", " + COLUMN_BREED + ")");
+            String deleteOld = " BEGIN DELETE FROM pets_fts WHERE docid = old." + COLUMN_ID
+                    + "; END";
+            String insertNew = " BEGIN INSERT INTO pets_fts(docid, " + COLUMN_NAME + ", "
+                    + COLUMN_BREED + ") VALUES (new." + COLUMN_ID + ", new." + COLUMN_NAME
+                    + ", new." + COLUMN_BREED + "); END";
+            statement.execute("CREATE TRIGGER pets_fts_before_update BEFORE UPDATE ON "
+                    + TABLE_NAME + deleteOld);
+            statement.execute("CREATE TRIGGER pets_fts_before_delete BEFORE DELETE ON "
+                    + TABLE_NAME + deleteOld);
+            statement.execute("CREATE TRIGGER pets_fts_after_update AFTER UPDATE ON "
+                    + TABLE_NAME + insertNew);
+            statement.execute("CREATE TRIGGER pets_fts_after_insert AFTER INSERT ON "
+                    + TABLE_NAME + insertNew);
+
+            String[][] indexes = {
+                    { COLUMN_NAME },
+                    { COLUMN_WEIGHT },
+                    { COLUMN_GENDER },
+                    { COLUMN_BREED },
+                    { COLUMN_GENDER, COLUMN_NAME },
+                    { COLUMN_GENDER, COLUMN_WEIGHT },
+                    { COLUMN_BREED, COLUMN_NAME },
+                    { COLUMN_BREED, COLUMN_WEIGHT } };
+            for (String[] columns : indexes) {
+                StringBuilder name = new StringBuilder(TABLE_NAME);
+                StringBuilder list = new StringBuilder();
+                for (String column : columns) {
+                    name.append('_').append(column);
+                    if (list.length() > 0) {
+                        list.append(", ");
+                    }
+                    list.append(column);
+                }
+                statement.execute("CREATE INDEX " + name + " ON " + TABLE_NAME
+                        + " (" + list + ")");
+            }
+
+            statement.execute("CREATE TABLE pet_tombstones (" + COLUMN_ID
+                    + " INTEGER PRIMARY KEY)");
+            statement.execute("CREATE TABLE pet_purge_state (deleted_up_to INTEGER NOT NULL)");
+            statement.execute("INSERT INTO pet_purge_state VALUES (0)");
+            statement.execute("CREATE VIEW " + LIVE_VIEW_NAME + " AS SELECT * FROM " + TABLE_NAME
+                    + " WHERE +" + COLUMN_ID + " > (SELECT deleted_up_to FROM pet_purge_state)"
+                    + " AND " + COLUMN_ID + " NOT IN (SELECT " + COLUMN_ID
+                    + " FROM pet_tombstones)");
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Insert generated pets in chunked transactions.
+     */
+    static void insertPets(Connection connection, int count, Random random)
+            throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        PreparedStatement insert = prepareInsert(connection);
+        try {
+            for (int i = 0; i < count; i++) {
+                bindPet(insert, random);
+                insert.executeUpdate();
+                if ((i + 1) % CHUNK_SIZE == 0) {
+                    connection.commit();
+                }
+            }
+            connection.commit();
+        } finally {
+            insert.close();
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Returns the statement the app inserts a pet with.
+     */
+    static PreparedStatement prepareInsert(Connection connection) throws SQLException {
+        return connection.prepareStatement("INSERT INTO " + TABLE_NAME + " ("
+                + COLUMN_NAME + ", " + COLUMN_BREED + ", " + COLUMN_GENDER + ", "
+                + COLUMN_WEIGHT + ") VALUES (?, ?, ?, ?)");
+    }
+
+    /**
+     * Bind the values of a generated pet to a statement from {@link #prepareInsert}.
+     */
+    static void bindPet(PreparedStatement insert, Random random) throws SQLException {
+        insert.setString(1, "Pet " + Integer.toString(random.nextInt(Integer.MAX_VALUE), 36));
+        String breed = BREEDS[random.nextInt(BREEDS.length)];
+        if (breed == null) {
+            insert.setNull(2, java.sql.Types.VARCHAR);
+        } else {
+            insert.setString(2, breed);
+        }
+        insert.setInt(3, random.nextInt(3));
+        insert.setInt(4, random.nextInt(60));
+    }
+
+    /**
+     * Returns one of the breeds generated pets have.
+     */
+    static String breed(int index) {
+        return BREEDS[index % (BREEDS.length - 1)];
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        String[] suffixes = { "", "-wal", "-shm" };
+        for (String suffix : suffixes) {
+            File part = new File(file.getPath() + suffix);
+            if (part.exists() && !part.delete()) {
+                throw new IOException("Unable to delete " + part);
+            }
+        }
+    }
+}
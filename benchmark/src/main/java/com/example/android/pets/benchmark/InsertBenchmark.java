@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of inserting a pet into tables of different sizes, one at a time as the editor does
+ * and in chunked transactions as the importer does. Every insert also updates the search
+ * index and the query indexes, as it does in the app.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InsertBenchmark {
+
+    /** Number of pets in the table before the benchmark starts */
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int rows;
+
+    private Connection mConnection;
+    private PreparedStatement mInsert;
+    private final Random mRandom = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        mConnection = BenchmarkDatabase.open(rows, "insert");
+        mInsert = BenchmarkDatabase.prepareInsert(mConnection);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        mInsert.close();
+        BenchmarkDatabase.close(mConnection);
+    }
+
+    /**
+     * One pet in its own transaction, like a save from the editor.
+     */
+    @Benchmark
+    public int singleInsert() throws SQLException {
+        BenchmarkDatabase.bindPet(mInsert, mRandom);
+        return mInsert.executeUpdate();
+    }
+
+    /**
+     * A chunk of pets in one transaction, like a bulk import. Reported per pet.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkDatabase.CHUNK_SIZE)
+    public int batchedInsert() throws SQLException {
+        mConnection.setAutoCommit(false);
+        try {
+            int inserted = 0;
+            for (int i = 0; i < BenchmarkDatabase.CHUNK_SIZE; i++) {
+                BenchmarkDatabase.bindPet(mInsert, mRandom);
+                inserted += mInsert.executeUpdate();
+            }
+            mConnection.commit();
+            return inserted;
+        } finally {
+            mConnection.setAutoCommit(true);
+        }
+    }
+}
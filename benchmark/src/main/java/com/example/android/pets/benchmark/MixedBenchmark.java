@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the catalog reading pages while the editor saves pets, with each reader and
+ * the writer on a connection of its own as in the app's connection pool.
+ *
+ * With write-ahead logging, as the app opens the database now, readers keep reading while a
+ * save commits. With the rollback journal the app used before, a commit locks the whole file
+ * and readers wait for it, which is the difference the two journal modes show here. A reader
+ * that waited longer than the busy timeout tries again, so waits count against throughput
+ * rather than failing the run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MixedBenchmark {
+
+    /** Number of rows in a page of the catalog, as in PetWindow */
+    private static final int PAGE_SIZE = 50;
+
+    /** Error code of a statement that couldn't get a lock in time */
+    private static final int SQLITE_BUSY = 5;
+
+    /** Pause between saves, so saves come one after another but not back to back */
+    private static final long SAVE_INTERVAL_MILLIS = 1;
+
+    /**
+     * The database file shared by the threads of a group.
+     */
+    @State(Scope.Group)
+    public static class Database {
+
+        /** Number of pets in the table */
+        @Param({ "10000", "100000" })
+        public int rows;
+
+        @Param({ BenchmarkDatabase.JOURNAL_MODE_WAL, BenchmarkDatabase.JOURNAL_MODE_ROLLBACK })
+        public String journalMode;
+
+        File mFile;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, SQLException {
+            mFile = BenchmarkDatabase.copy(rows, "mixed-" + journalMode);
+            // Switch the copy to the journal mode before any of the threads open it
+            BenchmarkDatabase.close(BenchmarkDatabase.connect(mFile, journalMode));
+        }
+    }
+
+    /**
+     * A reader thread's connection, reading pages the way PetWindow does while scrolling.
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+
+        private Connection mConnection;
+        private PreparedStatement mPage;
+        private final Random mRandom = new Random();
+        private int mRows;
+
+        @Setup(Level.Trial)
+        public void setUp(Database database) throws SQLException {
+            mConnection = BenchmarkDatabase.connect(database.mFile, database.journalMode);
+            mPage = mConnection.prepareStatement("SELECT _id, name, breed, gender, weight"
+                    + " FROM " + BenchmarkDatabase.LIVE_VIEW_NAME
+                    + " WHERE _id > ? ORDER BY _id LIMIT " + PAGE_SIZE);
+            mRows = database.rows;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            mPage.close();
+            BenchmarkDatabase.close(mConnection);
+        }
+    }
+
+    /**
+     * The writer thread's connection, saving edits one at a time the way the editor does.
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+
+        private Connection mConnection;
+        private PreparedStatement mUpdate;
+        private final Random mRandom = new Random(42);
+        private int mRows;
+
+        @Setup(Level.Trial)
+        public void setUp(Database database) throws SQLException {
+            mConnection = BenchmarkDatabase.connect(database.mFile, database.journalMode);
+            mUpdate = mConnection.prepareStatement("UPDATE " + BenchmarkDatabase.TABLE_NAME
+                    + " SET " + BenchmarkDatabase.COLUMN_NAME + " = ?, "
+                    + BenchmarkDatabase.COLUMN_WEIGHT + " = ? WHERE "
+                    + BenchmarkDatabase.COLUMN_ID + " = ?");
+            mRows = database.rows;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            mUpdate.close();
+            BenchmarkDatabase.close(mConnection);
+        }
+    }
+
+    /**
+     * Read the page after a random pet, on one of three reader threads.
+     */
+    @Benchmark
+    @Group("catalogWhileEditing")
+    @GroupThreads(3)
+    public int readPage(Reader reader, Blackhole blackhole) throws SQLException {
+        reader.mPage.setLong(1, reader.mRandom.nextInt(reader.mRows));
+        while (true) {
+            try {
+                return consumePage(reader.mPage.executeQuery(), blackhole);
+            } catch (SQLException e) {
+                if (e.getErrorCode() != SQLITE_BUSY) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Save an edit of a random pet in a transaction of its own, on the writer thread.
+     */
+    @Benchmark
+    @Group("catalogWhileEditing")
+    @GroupThreads(1)
+    public int savePet(Writer writer) throws SQLException, InterruptedException {
+        writer.mUpdate.setString(1, "Pet " + Integer.toString(writer.mRandom.nextInt(), 36));
+        writer.mUpdate.setInt(2, writer.mRandom.nextInt(60));
+        writer.mUpdate.setLong(3, 1 + writer.mRandom.nextInt(writer.mRows));
+        int rows = writer.mUpdate.executeUpdate();
+        Thread.sleep(SAVE_INTERVAL_MILLIS);
+        return rows;
+    }
+
+    private static int consumePage(ResultSet result, Blackhole blackhole) throws SQLException {
+        int count = 0;
+        try {
+            while (result.next()) {
+                blackhole.consume(result.getLong(1));
+                blackhole.consume(result.getString(2));
+                blackhole.consume(result.getString(3));
+                blackhole.consume(result.getInt(4));
+                blackhole.consume(result.getInt(5));
+                count++;
+            }
+        } finally {
+            result.close();
+        }
+        return count;
+    }
+}
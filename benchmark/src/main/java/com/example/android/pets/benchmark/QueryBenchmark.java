@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the queries the catalog runs: reading every row, as the catalog did before it paged,
+ * reading one page by keyset and by offset, and the filtered queries behind PetQuery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryBenchmark {
+
+    /** Number of rows in a page of the catalog, as in PetWindow */
+    private static final int PAGE_SIZE = 50;
+
+    /** Number of pets in the table */
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int rows;
+
+    private Connection mConnection;
+    private PreparedStatement mAllRows;
+    private PreparedStatement mIdsAndNames;
+    private PreparedStatement mOffsetPage;
+    private PreparedStatement mKeysetPage;
+    private PreparedStatement mGenderByName;
+    private PreparedStatement mBreedWeightCount;
+    private final Random mRandom = new Random(42);
+
+    /** Names to start keyset pages from, read from the table */
+    private String[] mAnchorNames;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        mConnection = BenchmarkDatabase.open(rows, "query");
+        mAllRows = mConnection.prepareStatement("SELECT _id, name, breed, gender, weight"
+                + " FROM pets");
+        mIdsAndNames = mConnection.prepareStatement("SELECT _id, name FROM pets");
+        mOffsetPage = mConnection.prepareStatement("SELECT _id, name, breed, gender, weight"
+                + " FROM pets ORDER BY _id LIMIT " + PAGE_SIZE + " OFFSET ?");
+        mKeysetPage = mConnection.prepareStatement("SELECT _id, name, breed, gender, weight"
+                + " FROM " + BenchmarkDatabase.LIVE_VIEW_NAME
+                + " WHERE name >= ? AND (name > ? OR _id > ?)"
+                + " ORDER BY name ASC, _id ASC LIMIT " + PAGE_SIZE);
+        mGenderByName = mConnection.prepareStatement("SELECT _id, name, breed, gender, weight"
+                + " FROM " + BenchmarkDatabase.LIVE_VIEW_NAME
+                + " WHERE gender = ? ORDER BY name ASC, _id ASC LIMIT " + PAGE_SIZE);
+        mBreedWeightCount = mConnection.prepareStatement("SELECT COUNT(*) FROM "
+                + BenchmarkDatabase.LIVE_VIEW_NAME
+                + " WHERE breed = ? AND weight >= ? AND weight <= ?");
+
+        PreparedStatement names = mConnection.prepareStatement(
+                "SELECT name FROM pets ORDER BY random() LIMIT 100");
+        try {
+            ResultSet result = names.executeQuery();
+            mAnchorNames = new String[100];
+            int count = 0;
+            while (result.next()) {
+                mAnchorNames[count++] = result.getString(1);
+            }
+            result.close();
+        } finally {
+            names.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        mAllRows.close();
+        mIdsAndNames.close();
+        mOffsetPage.close();
+        mKeysetPage.close();
+        mGenderByName.close();
+        mBreedWeightCount.close();
+        BenchmarkDatabase.close(mConnection);
+    }
+
+    /**
+     * Read every column of every row, as the catalog did before it paged rows in.
+     */
+    @Benchmark
+    public int iterateAllColumns(Blackhole blackhole) throws SQLException {
+        return consumeRows(mAllRows.executeQuery(), 5, blackhole);
+    }
+
+    /**
+     * Read only the columns the list shows, over every row.
+     */
+    @Benchmark
+    public int iterateProjection(Blackhole blackhole) throws SQLException {
+        return consumeRows(mIdsAndNames.executeQuery(), 2, blackhole);
+    }
+
+    /**
+     * Read a page from the middle of the table with OFFSET, which walks every row before it.
+     */
+    @Benchmark
+    public int offsetPage(Blackhole blackhole) throws SQLException {
+        mOffsetPage.setInt(1, rows / 2);
+        return consumeRows(mOffsetPage.executeQuery(), 5, blackhole);
+    }
+
+    /**
+     * Read the page after a row in name order, as PetWindow does while scrolling.
+     */
+    @Benchmark
+    public int keysetPage(Blackhole blackhole) throws SQLException {
+        String name = mAnchorNames[mRandom.nextInt(mAnchorNames.length)];
+        mKeysetPage.setString(1, name);
+        mKeysetPage.setString(2, name);
+        mKeysetPage.setLong(3, 0);
+        return consumeRows(mKeysetPage.executeQuery(), 5, blackhole);
+    }
+
+    /**
+     * Read the first page of pets of one gender in name order.
+     */
+    @Benchmark
+    public int filterByGenderSortByName(Blackhole blackhole) throws SQLException {
+        mGenderByName.setInt(1, mRandom.nextInt(3));
+        return consumeRows(mGenderByName.executeQuery(), 5, blackhole);
+    }
+
+    /**
+     * Count the pets of one breed in a weight range, as the catalog's count loader does.
+     */
+    @Benchmark
+    public int countByBreedAndWeight() throws SQLException {
+        mBreedWeightCount.setString(1, BenchmarkDatabase.breed(mRandom.nextInt(100)));
+        mBreedWeightCount.setInt(2, 10);
+        mBreedWeightCount.setInt(3, 20);
+        ResultSet result = mBreedWeightCount.executeQuery();
+        try {
+            return result.next() ? result.getInt(1) : 0;
+        } finally {
+            result.close();
+        }
+    }
+
+    /**
+     * Read every row of a result, handing each column to the blackhole so none of the reads
+     * can be optimized away. Column 1 is read as a long and the rest as strings or ints in
+     * the order of the pets table.
+     */
+    private static int consumeRows(ResultSet result, int columns, Blackhole blackhole)
+            throws SQLException {
+        int count = 0;
+        try {
+            while (result.next()) {
+                blackhole.consume(result.getLong(1));
+                if (columns > 1) {
+                    blackhole.consume(result.getString(2));
+                }
+                if (columns > 2) {
+                    blackhole.consume(result.getString(3));
+                    blackhole.consume(result.getInt(4));
+                    blackhole.consume(result.getInt(5));
+                }
+                count++;
+            }
+        } finally {
+            result.close();
+        }
+        return count;
+    }
+}